@@ -0,0 +1,16 @@
+package org.viridia.tart.eclipse.benchmarks;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.viridia.tart.eclipse.editors.TartAutoEditStrategy;
+
+/**
+ * Exposes the bracket search of the auto-edit strategy to the benchmarks. The strategy
+ * indexes the brackets of a document on the first search in it, so that first search, which
+ * falls in the warmup, scans the whole document; the others measure a search of the index.
+ */
+class BracketMatcherProbe extends TartAutoEditStrategy {
+  int matchingOpenBracketLine(IDocument doc, int line, int lineEnd) throws BadLocationException {
+    return findMatchingOpenBracket(doc, line, lineEnd, 1);
+  }
+}
@@ -0,0 +1,213 @@
+package org.viridia.tart.eclipse.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Random;
+
+/**
+ * Benchmark inputs. A corpus is built by repeating a generated or real source fragment until
+ * the requested size is reached. Generated corpora use a fixed seed, so every run sees the
+ * same text.
+ */
+public final class Corpus {
+  /** The standard corpus sizes: 1 KB, 1 MB and 50 MB. */
+  public static final int[] SIZES = { 1 << 10, 1 << 20, 50 << 20 };
+
+  /** The shape of a generated corpus. */
+  public enum Shape {
+    /** Ordinary source code: declarations, statements, a few comments. */
+    MIXED,
+    /** Mostly line, block and doc comments. */
+    COMMENTS,
+    /** Long expressions made of operators and short operands. */
+    OPERATORS,
+    /** Blocks nested dozens of levels deep. */
+    NESTED,
+  }
+
+  private static final String SAMPLE =
+      "import tart.collections.ArrayList;\n" +
+      "\n" +
+      "/** A simple binary tree. */\n" +
+      "@Final class Tree[%T] : Iterable[T] {\n" +
+      "  private var root:Node[T]? = null;\n" +
+      "  private var count:int32 = 0;\n" +
+      "\n" +
+      "  // Insert a value, keeping the tree sorted.\n" +
+      "  def insert(value:T) -> bool {\n" +
+      "    if root is null {\n" +
+      "      root = Node(value);\n" +
+      "      count += 1;\n" +
+      "      return true;\n" +
+      "    }\n" +
+      "    let n = root;\n" +
+      "    while n is not null {\n" +
+      "      switch value.compareTo(n.value) {\n" +
+      "        case 0 { return false; }\n" +
+      "        case -1 { n = n.left; }\n" +
+      "        case * { n = n.right; }\n" +
+      "      }\n" +
+      "    }\n" +
+      "    return false;\n" +
+      "  }\n" +
+      "\n" +
+      "  /* Sizes are cached. */\n" +
+      "  def size:int { get { return count; } }\n" +
+      "\n" +
+      "  override iterate -> Iterator[T] {\n" +
+      "    for i in 0 .. count {\n" +
+      "      yield nodeAt(i).value ?? 0x1F;\n" +
+      "    }\n" +
+      "    Debug.write(\"Iterating over \", count, ' ', 1.5e3, \" nodes\\n\");\n" +
+      "  }\n" +
+      "}\n" +
+      "\n";
+
+  private Corpus() {}
+
+  /** Generate a corpus of the given shape and size, in characters. */
+  public static String generate(Shape shape, int size) {
+    StringBuilder sb = new StringBuilder(size + 1024);
+    Random random = new Random(size * 31 + shape.ordinal());
+    while (sb.length() < size) {
+      switch (shape) {
+        case MIXED:
+          sb.append(SAMPLE);
+          break;
+        case COMMENTS:
+          appendComments(sb, random);
+          break;
+        case OPERATORS:
+          appendOperators(sb, random);
+          break;
+        case NESTED:
+          appendNested(sb, random);
+          break;
+      }
+    }
+
+    sb.setLength(size);
+    return sb.toString();
+  }
+
+  /** Build a corpus of the given size by repeating the contents of a file. */
+  public static String replicate(File file, int size) throws IOException {
+    String text = readFile(file);
+    if (text.length() == 0) {
+      throw new IOException("Empty corpus file: " + file);
+    }
+
+    StringBuilder sb = new StringBuilder(size + text.length());
+    while (sb.length() < size) {
+      sb.append(text);
+      if (!text.endsWith("\n")) {
+        sb.append('\n');
+      }
+    }
+
+    sb.setLength(size);
+    return sb.toString();
+  }
+
+  /** Return a human-readable size, such as "1MB". */
+  public static String sizeName(int size) {
+    if (size >= 1 << 20 && size % (1 << 20) == 0) {
+      return (size >> 20) + "MB";
+    } else if (size >= 1 << 10 && size % (1 << 10) == 0) {
+      return (size >> 10) + "KB";
+    }
+
+    return size + "B";
+  }
+
+  private static void appendComments(StringBuilder sb, Random random) {
+    switch (random.nextInt(4)) {
+      case 0:
+        sb.append("// Line comment with some words in it: ");
+        sb.append(random.nextInt(100000)).append('\n');
+        break;
+      case 1:
+        sb.append("/// Doc comment describing the next declaration.\n");
+        break;
+      case 2:
+        sb.append("/* Block comment\n   spanning * a few / lines\n   ");
+        sb.append(random.nextInt(1000)).append(" */\n");
+        break;
+      default:
+        sb.append("/** Doc block. */\n");
+        sb.append("def f").append(random.nextInt(1000)).append("() {} // trailing\n");
+        break;
+    }
+  }
+
+  private static final String[] OPERATORS = {
+    "+", "-", "*", "/", "%", "&", "|", "^", "<<", ">>", "==", "!=", "<=", ">=", "<", ">",
+    "+=", "-=", "->", "..", "?", ":", "=", "!",
+  };
+
+  private static void appendOperators(StringBuilder sb, Random random) {
+    sb.append("let v").append(random.nextInt(100)).append(" = ");
+    int terms = 8 + random.nextInt(16);
+    for (int i = 0; i < terms; ++i) {
+      if (random.nextBoolean()) {
+        sb.append('(');
+      }
+      switch (random.nextInt(3)) {
+        case 0:
+          sb.append((char) ('a' + random.nextInt(26)));
+          break;
+        case 1:
+          sb.append(random.nextInt(256));
+          break;
+        default:
+          sb.append("0x").append(Integer.toHexString(random.nextInt()));
+          break;
+      }
+      sb.append(OPERATORS[random.nextInt(OPERATORS.length)]);
+    }
+
+    sb.append("x;\n");
+  }
+
+  private static void appendNested(StringBuilder sb, Random random) {
+    int depth = 16 + random.nextInt(48);
+    for (int i = 0; i < depth; ++i) {
+      indent(sb, i);
+      sb.append(i % 3 == 0 ? "if c" : i % 3 == 1 ? "while w" : "for i in 0 .. n");
+      sb.append(i).append(" {\n");
+      if (random.nextInt(4) == 0) {
+        indent(sb, i + 1);
+        sb.append("s = \"{ not a brace }\"; // }\n");
+      }
+    }
+
+    for (int i = depth - 1; i >= 0; --i) {
+      indent(sb, i);
+      sb.append("}\n");
+    }
+  }
+
+  private static void indent(StringBuilder sb, int depth) {
+    for (int i = 0; i < depth; ++i) {
+      sb.append("  ");
+    }
+  }
+
+  private static String readFile(File file) throws IOException {
+    Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      StringBuilder sb = new StringBuilder((int) file.length());
+      char[] buffer = new char[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        sb.append(buffer, 0, n);
+      }
+      return sb.toString();
+    } finally {
+      in.close();
+    }
+  }
+}
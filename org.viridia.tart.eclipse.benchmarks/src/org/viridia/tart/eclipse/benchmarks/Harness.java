@@ -0,0 +1,153 @@
+package org.viridia.tart.eclipse.benchmarks;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * A small measurement harness. Each benchmark is warmed up for a fixed time and then run
+ * repeatedly for a fixed time. The harness reports throughput, allocation per token (when
+ * the JVM can count allocated bytes per thread) and latency percentiles.
+ * <p>
+ * Times can be changed with the system properties {@code tart.bench.warmup} and
+ * {@code tart.bench.time}, both in milliseconds.
+ */
+public final class Harness {
+  /** A benchmarked operation. */
+  public interface Operation {
+    /**
+     * Run the operation once.
+     *
+     * @return The number of tokens (or other units of work) processed.
+     */
+    int run() throws Exception;
+  }
+
+  private final long warmupNanos = Long.getLong("tart.bench.warmup", 1000) * 1000000L;
+  private final long measureNanos = Long.getLong("tart.bench.time", 3000) * 1000000L;
+  private final PrintStream out;
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final Method allocatedBytes = findAllocatedBytesMethod(threads);
+
+  public Harness(PrintStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Measure the throughput of an operation over a corpus.
+   *
+   * @param name The name of the benchmark.
+   * @param chars The number of characters processed by each run.
+   * @param op The operation.
+   */
+  public void throughput(String name, long chars, Operation op) throws Exception {
+    long deadline = System.nanoTime() + warmupNanos;
+    do {
+      op.run();
+    } while (System.nanoTime() < deadline);
+
+    long runs = 0;
+    long tokens = 0;
+    long allocStart = allocated();
+    long start = System.nanoTime();
+    deadline = start + measureNanos;
+    long now;
+    do {
+      tokens += op.run();
+      ++runs;
+      now = System.nanoTime();
+    } while (now < deadline);
+    long elapsed = now - start;
+    long alloc = allocated() - allocStart;
+
+    double seconds = elapsed / 1e9;
+    double mbPerSecond = chars * runs / seconds / (1 << 20);
+    double tokensPerSecond = tokens / seconds;
+    out.printf("%-40s %10.1f MB/s %12.0f tokens/s %s%n", name, mbPerSecond, tokensPerSecond,
+        formatAllocation(alloc, tokens, "token"));
+  }
+
+  /**
+   * Measure the latency of an operation and report percentiles. Allocation is reported per
+   * run of the operation.
+   *
+   * @param name The name of the benchmark.
+   * @param samples The number of samples to take, after warming up.
+   * @param op The operation.
+   */
+  public void latency(String name, int samples, Operation op) throws Exception {
+    long deadline = System.nanoTime() + warmupNanos;
+    do {
+      op.run();
+    } while (System.nanoTime() < deadline);
+
+    long[] times = new long[samples];
+    long allocStart = allocated();
+    deadline = System.nanoTime() + measureNanos;
+    int n = 0;
+    while (n < samples) {
+      long start = System.nanoTime();
+      op.run();
+      long end = System.nanoTime();
+      times[n++] = end - start;
+      if (end > deadline) {
+        break;
+      }
+    }
+    long alloc = allocated() - allocStart;
+
+    Arrays.sort(times, 0, n);
+    out.printf("%-40s p50 %9.1f us  p99 %9.1f us  max %9.1f us  (n=%d) %s%n", name,
+        percentile(times, n, 50) / 1e3, percentile(times, n, 99) / 1e3, times[n - 1] / 1e3,
+        n, formatAllocation(alloc, n, "op"));
+  }
+
+  /** Print a section heading. */
+  public void heading(String text) {
+    out.println();
+    out.println(text);
+  }
+
+  private static long percentile(long[] sorted, int n, int p) {
+    int index = (int) Math.ceil(n * p / 100.0) - 1;
+    return sorted[Math.max(0, Math.min(n - 1, index))];
+  }
+
+  private static String formatAllocation(long bytes, long units, String unit) {
+    if (bytes < 0 || units == 0) {
+      return "";
+    }
+
+    return String.format("%8.2f B/%s", (double) bytes / units, unit);
+  }
+
+  /** Return the bytes allocated so far by the current thread, or -1 if unknown. */
+  private long allocated() {
+    if (allocatedBytes == null) {
+      return -1;
+    }
+
+    try {
+      return (Long) allocatedBytes.invoke(threads, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Allocation counting is an extension of the HotSpot ThreadMXBean. It is looked up by
+   * reflection so the harness still runs on other VMs.
+   */
+  private static Method findAllocatedBytesMethod(ThreadMXBean threads) {
+    try {
+      Method method = Class.forName("com.sun.management.ThreadMXBean")
+          .getMethod("getThreadAllocatedBytes", long.class);
+      method.invoke(threads, Thread.currentThread().getId());
+      return method;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,567 @@
+package org.viridia.tart.eclipse.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IDocumentPartitioner;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.TextPresentation;
+import org.eclipse.jface.text.rules.FastPartitioner;
+import org.eclipse.jface.text.rules.IToken;
+import org.eclipse.jface.text.rules.Token;
+import org.viridia.tart.eclipse.editors.DocumentCharSequence;
+import org.viridia.tart.eclipse.editors.NonRuleBasedDamagerRepairer;
+import org.viridia.tart.eclipse.editors.TartDamagerRepairer;
+import org.viridia.tart.eclipse.editors.TartPartitionScanner;
+import org.viridia.tart.eclipse.editors.TartScanner;
+import org.viridia.tart.eclipse.index.TartSymbolIndex;
+import org.viridia.tart.eclipse.lexer.TartLexer;
+import org.viridia.tart.eclipse.lexer.TokenKind;
+import org.viridia.tart.eclipse.parser.TartNode;
+import org.viridia.tart.eclipse.parser.TartParser;
+import org.viridia.tart.eclipse.parser.TartSemanticAnalyzer;
+
+/**
+ * Benchmarks for the hot paths of the Tart editor: lexing, partitioning, reading the
+ * document a character at a time, the bracket search used by auto-indent, the damage/repair
+ * cycle which follows a single keystroke, the repair of a screen when scrolling, parsing
+ * the declarations of the document from scratch and after a keystroke, the semantic
+ * analysis which follows each parse, and the indexing of a workspace of many files.
+ * <p>
+ * Run this class as a Java application with the plug-in's dependencies on the classpath; no
+ * workbench is needed. Any arguments name Tart source files, which are replicated to each
+ * corpus size and measured along with the generated corpora. The system property
+ * {@code tart.bench.sizes} overrides the corpus sizes with a comma-separated list of
+ * character counts. The 50 MB corpora need a heap of at least 2 GB.
+ */
+public final class TartBenchmarks {
+  private static final String[] CONTENT_TYPES = {
+    IDocument.DEFAULT_CONTENT_TYPE,
+    TartPartitionScanner.TART_MULTI_LINE_COMMENT,
+    TartPartitionScanner.TART_SINGLE_LINE_COMMENT,
+    TartPartitionScanner.TART_DOC_COMMENT,
+  };
+
+  /** The number of samples taken by each latency benchmark. */
+  private static final int SAMPLES = 10000;
+
+  /** The maximum number of closing braces tried by the bracket benchmark. */
+  private static final int MAX_BRACES = 1000;
+
+  /** The number of lines repainted by the repaint benchmark. */
+  private static final int SCREEN_LINES = 60;
+
+  /** The approximate size of each file indexed by the index benchmark, in characters. */
+  private static final int INDEX_FILE_SIZE = 8 * 1024;
+
+  private TartBenchmarks() {}
+
+  public static void main(String[] args) throws Exception {
+    Harness harness = new Harness(System.out);
+    for (int size : parseSizes(System.getProperty("tart.bench.sizes"))) {
+      for (Corpus.Shape shape : Corpus.Shape.values()) {
+        String name = shape.name().toLowerCase() + " " + Corpus.sizeName(size);
+        run(harness, name, Corpus.generate(shape, size));
+      }
+
+      for (String arg : args) {
+        File file = new File(arg);
+        run(harness, file.getName() + " " + Corpus.sizeName(size), Corpus.replicate(file, size));
+      }
+    }
+  }
+
+  private static void run(Harness harness, String name, String text) throws Exception {
+    harness.heading(name);
+    benchLexer(harness, text);
+    benchScanner(harness, text);
+    benchPartitioner(harness, text);
+    benchDocumentReads(harness, text);
+    benchBracketSearch(harness, text);
+    benchKeystroke(harness, text, false);
+    benchKeystroke(harness, text, true);
+    benchRepaint(harness, text);
+    benchParser(harness, text);
+    benchSemanticAnalysis(harness, text);
+    benchIndex(harness, text);
+  }
+
+  /** Lex the whole corpus, comments included, straight from a char array. */
+  private static void benchLexer(Harness harness, String text) throws Exception {
+    final char[] chars = text.toCharArray();
+    final TartLexer lexer = new TartLexer(true);
+    harness.throughput("lexer", chars.length, new Harness.Operation() {
+      public int run() {
+        lexer.reset(chars, 0, chars.length);
+        int count = 0;
+        while (lexer.next() != TokenKind.EOF) {
+          ++count;
+        }
+        return count;
+      }
+    });
+  }
+
+  /** Scan the whole corpus through the JFace token scanner interface. */
+  private static void benchScanner(Harness harness, String text) throws Exception {
+    final IDocument doc = new Document(text);
+    final TartScanner scanner = createScanner();
+    harness.throughput("scanner", text.length(), new Harness.Operation() {
+      public int run() {
+        scanner.setRange(doc, 0, doc.getLength());
+        int count = 0;
+        while (!scanner.nextToken().isEOF()) {
+          ++count;
+        }
+        return count;
+      }
+    });
+  }
+
+  /** Partition the whole corpus from scratch, as when a document is opened. */
+  private static void benchPartitioner(Harness harness, String text) throws Exception {
+    final IDocument doc = new Document(text);
+    harness.throughput("partitioner", text.length(), new Harness.Operation() {
+      public int run() {
+        FastPartitioner partitioner =
+            new FastPartitioner(new TartPartitionScanner(), CONTENT_TYPES);
+        partitioner.connect(doc);
+        int count = partitioner.computePartitioning(0, doc.getLength()).length;
+        partitioner.disconnect();
+        return count;
+      }
+    });
+  }
+
+  /**
+   * Count the braces in the whole corpus, reading one character at a time, first through
+   * {@link IDocument#getChar} and then through a buffered {@link DocumentCharSequence} in
+   * each direction.
+   */
+  private static void benchDocumentReads(Harness harness, String text) throws Exception {
+    final IDocument doc = new Document(text);
+    final int length = doc.getLength();
+    harness.throughput("IDocument.getChar", length, new Harness.Operation() {
+      public int run() throws BadLocationException {
+        int count = 0;
+        for (int i = 0; i < length; ++i) {
+          if (doc.getChar(i) == '{') {
+            ++count;
+          }
+        }
+        return count;
+      }
+    });
+
+    final DocumentCharSequence chars = new DocumentCharSequence();
+    harness.throughput("DocumentCharSequence forward", length, new Harness.Operation() {
+      public int run() {
+        chars.reset(doc);
+        int count = 0;
+        for (int i = 0; i < length; ++i) {
+          if (chars.charAt(i) == '{') {
+            ++count;
+          }
+        }
+        return count;
+      }
+    });
+
+    harness.throughput("DocumentCharSequence backward", length, new Harness.Operation() {
+      public int run() {
+        chars.reset(doc);
+        int count = 0;
+        for (int i = length - 1; i >= 0; --i) {
+          if (chars.charAt(i) == '{') {
+            ++count;
+          }
+        }
+        return count;
+      }
+    });
+  }
+
+  /**
+   * Search for the open bracket matching a close bracket at the start of a line, as the
+   * auto-edit strategy does when "}" is typed.
+   */
+  private static void benchBracketSearch(Harness harness, String text) throws Exception {
+    final IDocument doc = createDocument(text);
+    int lineCount = doc.getNumberOfLines();
+    int step = Math.max(1, lineCount / (MAX_BRACES * 4));
+    final int[] lines = new int[MAX_BRACES];
+    final int[] offsets = new int[MAX_BRACES];
+    int count = 0;
+    for (int line = 0; line < lineCount && count < MAX_BRACES; line += step) {
+      int offset = doc.getLineOffset(line);
+      int end = offset + doc.getLineLength(line);
+      while (offset < end && doc.getChar(offset) == ' ') {
+        ++offset;
+      }
+      if (offset < end && doc.getChar(offset) == '}') {
+        lines[count] = line;
+        offsets[count] = offset;
+        ++count;
+      }
+    }
+
+    if (count == 0) {
+      return;
+    }
+
+    final int braceCount = count;
+    final BracketMatcherProbe probe = new BracketMatcherProbe();
+    harness.latency("findMatchingOpenBracket", SAMPLES, new Harness.Operation() {
+      int next;
+
+      public int run() throws BadLocationException {
+        int i = next++ % braceCount;
+        return probe.matchingOpenBracketLine(doc, lines[i], offsets[i]);
+      }
+    });
+  }
+
+  /**
+   * Insert or delete one character, then compute the damaged region and its new
+   * presentation, as the presentation reconciler does after each keystroke.
+   *
+   * @param partitioningChanged If true, damage the whole partition, as the reconciler does
+   *     when the edit changes the partitioning of the document.
+   */
+  private static void benchKeystroke(Harness harness, String text,
+      final boolean partitioningChanged) throws Exception {
+    final IDocument doc = createDocument(text);
+    final TartDamagerRepairer code = new TartDamagerRepairer(createScanner());
+    final NonRuleBasedDamagerRepairer comments =
+        new NonRuleBasedDamagerRepairer(new TextAttribute(null));
+    code.setDocument(doc);
+    comments.setDocument(doc);
+
+    final DocumentEvent[] lastEvent = new DocumentEvent[1];
+    doc.addDocumentListener(new IDocumentListener() {
+      public void documentAboutToBeChanged(DocumentEvent event) {}
+
+      public void documentChanged(DocumentEvent event) {
+        lastEvent[0] = event;
+      }
+    });
+
+    Random random = new Random(1);
+    final int[] offsets = new int[SAMPLES];
+    for (int i = 0; i < offsets.length; ++i) {
+      offsets[i] = random.nextInt(text.length());
+    }
+
+    String name = partitioningChanged ? "keystroke, partition damaged" : "keystroke damage/repair";
+    harness.latency(name, SAMPLES, new Harness.Operation() {
+      int next;
+      boolean inserted;
+
+      public int run() throws BadLocationException {
+        // Alternate between typing a character and deleting it again.
+        int offset = offsets[next % offsets.length];
+        if (inserted) {
+          doc.replace(offset, 1, "");
+          ++next;
+        } else {
+          doc.replace(offset, 0, "x");
+        }
+        inserted = !inserted;
+
+        ITypedRegion partition = doc.getPartition(offset);
+        IRegion damage = isCode(partition)
+            ? code.getDamageRegion(partition, lastEvent[0], partitioningChanged)
+            : comments.getDamageRegion(partition, lastEvent[0], partitioningChanged);
+        TextPresentation presentation = new TextPresentation(damage, 100);
+        for (ITypedRegion region : doc.computePartitioning(damage.getOffset(),
+            damage.getLength())) {
+          if (isCode(region)) {
+            code.createPresentation(presentation, region);
+          } else {
+            comments.createPresentation(presentation, region);
+          }
+        }
+        return presentation.getDenumerableRanges();
+      }
+    });
+  }
+
+  /**
+   * Compute the presentation of one screen of the document, as the viewer does when it is
+   * scrolled. The screens are visited in order, wrapping around at the end, so a small
+   * document is repainted from a warm token cache, while a large one is also lexed a screen
+   * at a time.
+   */
+  private static void benchRepaint(Harness harness, String text) throws Exception {
+    final IDocument doc = createDocument(text);
+    final TartDamagerRepairer code = new TartDamagerRepairer(createScanner());
+    code.setDocument(doc);
+    final int lineCount = doc.getNumberOfLines();
+    harness.latency("repaint screen", SAMPLES, new Harness.Operation() {
+      int next;
+
+      public int run() throws BadLocationException {
+        int firstLine = (next++ * SCREEN_LINES) % Math.max(1, lineCount - SCREEN_LINES);
+        int start = doc.getLineOffset(firstLine);
+        int lastLine = Math.min(lineCount - 1, firstLine + SCREEN_LINES - 1);
+        int end = doc.getLineOffset(lastLine) + doc.getLineLength(lastLine);
+        TextPresentation presentation = new TextPresentation(new Region(start, end - start), 100);
+        for (ITypedRegion region : doc.computePartitioning(start, end - start)) {
+          if (isCode(region)) {
+            code.createPresentation(presentation, region);
+          }
+        }
+        return presentation.getDenumerableRanges();
+      }
+    });
+  }
+
+  /**
+   * Parse the whole corpus, then reparse it after each of a series of keystrokes, reusing
+   * the tree of the previous parse as the reconciler does.
+   */
+  private static void benchParser(Harness harness, String text) throws Exception {
+    final IDocument doc = new Document(text);
+    final DocumentCharSequence chars = new DocumentCharSequence();
+    final TartParser parser = new TartParser();
+    harness.throughput("parser", text.length(), new Harness.Operation() {
+      public int run() {
+        chars.reset(doc);
+        return parser.parse(chars).getChildCount();
+      }
+    });
+
+    Random random = new Random(1);
+    final int[] offsets = new int[SAMPLES];
+    for (int i = 0; i < offsets.length; ++i) {
+      offsets[i] = random.nextInt(text.length());
+    }
+
+    chars.reset(doc);
+    final TartNode[] tree = { parser.parse(chars) };
+    harness.latency("keystroke reparse", SAMPLES, new Harness.Operation() {
+      int next;
+      boolean inserted;
+
+      public int run() throws BadLocationException {
+        // Alternate between typing a character and deleting it again.
+        int offset = offsets[next % offsets.length];
+        int oldEnd = offset;
+        int newEnd = offset;
+        if (inserted) {
+          doc.replace(offset, 1, "");
+          ++oldEnd;
+          ++next;
+        } else {
+          doc.replace(offset, 0, "x");
+          ++newEnd;
+        }
+        inserted = !inserted;
+
+        chars.reset(doc);
+        tree[0] = parser.parse(chars, tree[0], offset, oldEnd, newEnd);
+        return tree[0].getChildCount();
+      }
+    });
+  }
+
+  /**
+   * Parse and analyze the whole corpus from scratch, then reparse and analyze it again after
+   * each of a series of keystrokes, as the semantic highlighter does.
+   */
+  private static void benchSemanticAnalysis(Harness harness, String text) throws Exception {
+    final IDocument doc = new Document(text);
+    final DocumentCharSequence chars = new DocumentCharSequence(doc);
+    final TartParser parser = new TartParser();
+    final TartNode root = parser.parse(chars);
+    harness.throughput("semantic analysis", text.length(), new Harness.Operation() {
+      public int run() {
+        // Parse a new tree, none of whose nodes has been analyzed yet.
+        chars.reset(doc);
+        return new TartSemanticAnalyzer().analyze(chars, parser.parse(chars)).size();
+      }
+    });
+
+    Random random = new Random(1);
+    final int[] offsets = new int[SAMPLES];
+    for (int i = 0; i < offsets.length; ++i) {
+      offsets[i] = random.nextInt(text.length());
+    }
+
+    final TartSemanticAnalyzer analyzer = new TartSemanticAnalyzer();
+    final TartNode[] tree = { root };
+    analyzer.analyze(chars, root);
+    analyzer.commit();
+    harness.latency("keystroke reanalysis", SAMPLES, new Harness.Operation() {
+      int next;
+      boolean inserted;
+
+      public int run() throws BadLocationException {
+        // Alternate between typing a character and deleting it again.
+        int offset = offsets[next % offsets.length];
+        int oldEnd = offset;
+        int newEnd = offset;
+        if (inserted) {
+          doc.replace(offset, 1, "");
+          ++oldEnd;
+          ++next;
+        } else {
+          doc.replace(offset, 0, "x");
+          ++newEnd;
+        }
+        inserted = !inserted;
+
+        chars.reset(doc);
+        tree[0] = parser.parse(chars, tree[0], offset, oldEnd, newEnd);
+        int size = analyzer.analyze(chars, tree[0]).size();
+        analyzer.commit();
+        return size;
+      }
+    });
+  }
+
+  /**
+   * Split the corpus into files at line boundaries, and index them all on a pool with a
+   * thread per processor, as a full scan of the workspace index does. Every run gives the
+   * files a new stamp, so that each is parsed again and its old symbols replaced. Then save
+   * the index, and measure what a restart costs: loading the saved index, and checking the
+   * stamp of every file against it.
+   */
+  private static void benchIndex(Harness harness, String text) throws Exception {
+    final List<String> files = new ArrayList<String>();
+    int start = 0;
+    while (start < text.length()) {
+      int end = Math.min(text.length(), start + INDEX_FILE_SIZE);
+      while (end < text.length() && text.charAt(end - 1) != '\n') {
+        ++end;
+      }
+      files.add(text.substring(start, end));
+      start = end;
+    }
+
+    final TartSymbolIndex index = new TartSymbolIndex();
+    final long[] stamp = { 0 };
+    try {
+      harness.throughput("index " + files.size() + " files", text.length(),
+          new Harness.Operation() {
+            public int run() throws InterruptedException {
+              ++stamp[0];
+              List<TartSymbolIndex.Source> sources =
+                  new ArrayList<TartSymbolIndex.Source>(files.size());
+              for (int i = 0; i < files.size(); ++i) {
+                sources.add(new StringSource("file" + i + ".tart", stamp[0], files.get(i)));
+              }
+              index.index(sources, new NullProgressMonitor());
+              return index.getSymbolCount();
+            }
+          });
+
+      final File directory = File.createTempFile("tartindex", "");
+      directory.delete();
+      directory.mkdir();
+      try {
+        index.save(directory);
+        harness.latency("index load, " + files.size() + " stamps checked", 100,
+            new Harness.Operation() {
+              public int run() {
+                TartSymbolIndex loaded = new TartSymbolIndex(1);
+                loaded.load(directory);
+                int current = 0;
+                for (int i = 0; i < files.size(); ++i) {
+                  if (loaded.isCurrent("file" + i + ".tart", stamp[0])) {
+                    ++current;
+                  }
+                }
+                loaded.dispose();
+                return current;
+              }
+            });
+      } finally {
+        for (File file : directory.listFiles()) {
+          file.delete();
+        }
+        directory.delete();
+      }
+    } finally {
+      index.dispose();
+    }
+  }
+
+  /** A file of the index benchmark, held in memory. */
+  private static final class StringSource implements TartSymbolIndex.Source {
+    private final String path;
+    private final long stamp;
+    private final String text;
+
+    StringSource(String path, long stamp, String text) {
+      this.path = path;
+      this.stamp = stamp;
+      this.text = text;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getStamp() {
+      return stamp;
+    }
+
+    public CharSequence getText() {
+      return text;
+    }
+  }
+
+  /**
+   * Create a scanner with unstyled tokens, so that it can run without the workbench and its
+   * preference store.
+   */
+  private static TartScanner createScanner() {
+    // Give every kind a distinct attribute, so that adjacent tokens of different kinds are
+    // not merged into one style range.
+    IToken[] tokens = new IToken[TokenKind.COUNT];
+    for (int i = 0; i < tokens.length; ++i) {
+      tokens[i] = new Token(new TextAttribute(null, null, i));
+    }
+    tokens[TokenKind.WHITESPACE] = Token.WHITESPACE;
+    return new TartScanner(tokens);
+  }
+
+  private static boolean isCode(ITypedRegion region) {
+    return IDocument.DEFAULT_CONTENT_TYPE.equals(region.getType());
+  }
+
+  /** Create a document partitioned the same way as the editor's document provider does. */
+  private static IDocument createDocument(String text) {
+    IDocument doc = new Document(text);
+    IDocumentPartitioner partitioner = new FastPartitioner(
+        new TartPartitionScanner(), CONTENT_TYPES);
+    partitioner.connect(doc);
+    doc.setDocumentPartitioner(partitioner);
+    return doc;
+  }
+
+  private static int[] parseSizes(String property) {
+    if (property == null || property.trim().length() == 0) {
+      return Corpus.SIZES;
+    }
+
+    String[] parts = property.split(",");
+    int[] sizes = new int[parts.length];
+    for (int i = 0; i < parts.length; ++i) {
+      sizes[i] = Integer.parseInt(parts[i].trim());
+    }
+    return sizes;
+  }
+}
@@ -0,0 +1,186 @@
+package org.viridia.tart.eclipse.editors;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentPartitioner;
+import org.eclipse.jface.text.rules.FastPartitioner;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TartBracketIndex}. Whatever the edits made to the document, searching the
+ * index must find the same lines as scanning the lines of the document one by one.
+ */
+public class TartBracketIndexTest {
+  private static final String[] CONTENT_TYPES = {
+    IDocument.DEFAULT_CONTENT_TYPE,
+    TartPartitionScanner.TART_MULTI_LINE_COMMENT,
+    TartPartitionScanner.TART_SINGLE_LINE_COMMENT,
+    TartPartitionScanner.TART_DOC_COMMENT,
+  };
+
+  private static final String SOURCE =
+      "namespace N {\n"
+      + "class Foo {\n"
+      + "  def x(a:int[], b:int) -> int {\n"
+      + "    if (a[0] > b) { return a[(b)]; }\n"
+      + "    return \"}\".length;\n"
+      + "  }\n"
+      + "  /* def hidden() { */\n"
+      + "  let y = [1, 2, (3)];\n"
+      + "}\n"
+      + "// }\n"
+      + "}\n"
+      + "\n";
+
+  /** The pieces of text inserted by the random edits. */
+  private static final String[] PIECES = {
+    "{", "}", "(", ")", "[", "]", "\n", "\n", "/*", "*/", "//", "\"", "'", " ", "x",
+    "{\n", "}\n", "\n  def f() { return (a[1]); }\n",
+  };
+
+  private TartBracketIndex index;
+
+  @After
+  public void tearDown() {
+    if (index != null) {
+      index.disconnect();
+    }
+  }
+
+  @Test
+  public void testRandomEdits() throws BadLocationException {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 20; ++trial) {
+      IDocument doc = createDocument(SOURCE + SOURCE + SOURCE);
+      index = TartBracketIndex.connect(doc);
+      for (int step = 0; step < 200; ++step) {
+        String message = "Trial " + trial + ", step " + step;
+        int length = doc.getLength();
+        int start = random.nextInt(length + 1);
+        int count = random.nextInt(4) == 0
+            ? random.nextInt(Math.min(20, length - start) + 1) : 0;
+        String insert = random.nextInt(3) == 0 ? "" : PIECES[random.nextInt(PIECES.length)];
+        doc.replace(start, count, insert);
+
+        // Scan some of the document, as the idle batches would.
+        if (random.nextBoolean()) {
+          index.scanTo(random.nextInt(doc.getNumberOfLines() + 1));
+        }
+
+        for (int query = 0; query < 5; ++query) {
+          int line = random.nextInt(doc.getNumberOfLines());
+          int depth = 1 + random.nextInt(3);
+          for (int kind = 0; kind < 3; ++kind) {
+            assertClosingLine(message, kind, line, depth);
+            assertOpeningLine(message, kind, line, depth);
+          }
+        }
+      }
+
+      index.disconnect();
+      index = null;
+    }
+  }
+
+  /** Check a forward search against scanning the scanned lines from the given line on. */
+  private void assertClosingLine(String message, int kind, int line, int depth)
+      throws BadLocationException {
+    int expected = -1;
+    int change = 0;
+    int nesting = 0;
+    int remaining = depth;
+    int end = index.getScannedLines();
+    search:
+    for (int i = line; i < end; ++i) {
+      int count = index.scanBrackets(i);
+      for (int j = 0; j < count; ++j) {
+        char ch = index.getBracket(j);
+        if (TartBracketIndex.getKind(ch) != kind) {
+          continue;
+        }
+
+        if (TartBracketIndex.isOpening(ch)) {
+          ++nesting;
+        } else if (nesting > 0) {
+          --nesting;
+        } else if (--remaining == 0) {
+          expected = i;
+          break search;
+        }
+      }
+
+      change += lineSum(kind, i);
+    }
+
+    String where = message + ", kind " + kind + ", closing from " + line + " at " + depth;
+    assertEquals(where, expected, index.findClosingLine(kind, line, depth));
+    if (expected >= 0) {
+      assertEquals(where, change, index.getDepthChange());
+    }
+  }
+
+  /** Check a backward search against scanning the lines before the given line. */
+  private void assertOpeningLine(String message, int kind, int line, int depth)
+      throws BadLocationException {
+    int expected = -1;
+    int change = 0;
+    int nesting = 0;
+    int remaining = depth;
+    search:
+    for (int i = line - 1; i >= 0; --i) {
+      int count = index.scanBrackets(i);
+      for (int j = count - 1; j >= 0; --j) {
+        char ch = index.getBracket(j);
+        if (TartBracketIndex.getKind(ch) != kind) {
+          continue;
+        }
+
+        if (!TartBracketIndex.isOpening(ch)) {
+          ++nesting;
+        } else if (nesting > 0) {
+          --nesting;
+        } else if (--remaining == 0) {
+          expected = i;
+          break search;
+        }
+      }
+
+      change += lineSum(kind, i);
+    }
+
+    String where = message + ", kind " + kind + ", opening from " + line + " at " + depth;
+    assertEquals(where, expected, index.findOpeningLine(kind, line, depth));
+    if (expected >= 0) {
+      assertEquals(where, change, index.getDepthChange());
+    }
+  }
+
+  /** Return the net change in depth over a line, for one kind of bracket. */
+  private int lineSum(int kind, int line) throws BadLocationException {
+    int sum = 0;
+    int count = index.scanBrackets(line);
+    for (int j = 0; j < count; ++j) {
+      char ch = index.getBracket(j);
+      if (TartBracketIndex.getKind(ch) == kind) {
+        sum += TartBracketIndex.isOpening(ch) ? 1 : -1;
+      }
+    }
+
+    return sum;
+  }
+
+  private static IDocument createDocument(String text) {
+    IDocument doc = new Document(text);
+    IDocumentPartitioner partitioner = new FastPartitioner(
+        new TartPartitionScanner(), CONTENT_TYPES);
+    partitioner.connect(doc);
+    doc.setDocumentPartitioner(partitioner);
+    return doc;
+  }
+}
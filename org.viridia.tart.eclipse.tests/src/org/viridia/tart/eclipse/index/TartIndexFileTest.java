@@ -0,0 +1,231 @@
+package org.viridia.tart.eclipse.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for saving a {@link TartSymbolIndex} to a {@link TartIndexFile} and loading it again:
+ * the symbols must survive the round trip, including which saved files have been replaced or
+ * removed since the index was loaded, the newest valid slot must be loaded, and files which
+ * are incomplete or of another version must be ignored.
+ */
+public class TartIndexFileTest {
+  private static final String[] SLOT_NAMES = { "symbols.0.idx", "symbols.1.idx" };
+
+  private File directory;
+  private final List<TartSymbolIndex> indices = new ArrayList<TartSymbolIndex>();
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("tartindex", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    for (TartSymbolIndex index : indices) {
+      index.dispose();
+    }
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    TartSymbolIndex saved = createIndex();
+    saved.index(Arrays.asList(
+        source("/p/a.tart", 1,
+            "namespace N {\nclass Foo {\n  def bar() {}\n  var baz:int;\n}\n}\n"),
+        source("/p/b.tart", 2, "def bar() {}\nclass Other {}\n")),
+        new NullProgressMonitor());
+    saved.save(directory);
+    assertFalse(saved.isDirty());
+
+    TartSymbolIndex loaded = createIndex();
+    assertTrue(loaded.load(directory));
+    assertFalse(loaded.isDirty());
+    assertEquals(saved.getFileCount(), loaded.getFileCount());
+    assertEquals(saved.getSymbolCount(), loaded.getSymbolCount());
+    for (String name : new String[] { "N", "Foo", "bar", "baz", "Other", "missing" }) {
+      assertEquals(name, describe(saved.getSymbols(name)), describe(loaded.getSymbols(name)));
+    }
+    assertEquals(describe(saved.getFileSymbols("/p/a.tart")),
+        describe(loaded.getFileSymbols("/p/a.tart")));
+    assertTrue(loaded.isCurrent("/p/a.tart", 1));
+    assertFalse(loaded.isCurrent("/p/a.tart", 2));
+  }
+
+  @Test
+  public void testHiddenFiles() throws Exception {
+    TartSymbolIndex saved = createIndex();
+    saved.index(Arrays.asList(
+        source("/p/a.tart", 1, "class A {}\n"),
+        source("/p/b.tart", 1, "class B {}\n"),
+        source("/p/c.tart", 1, "class C {}\n")),
+        new NullProgressMonitor());
+    saved.save(directory);
+
+    // Replace one saved file, remove another, and drop the last one by a scan.
+    TartSymbolIndex loaded = createIndex();
+    assertTrue(loaded.load(directory));
+    loaded.index(Collections.singletonList(source("/p/a.tart", 2, "class A2 {}\n")),
+        new NullProgressMonitor());
+    loaded.remove("/p/b.tart");
+    loaded.retainAll(new HashSet<String>(Arrays.asList("/p/a.tart", "/p/b.tart")));
+    assertTrue(loaded.isDirty());
+    assertHidden(loaded);
+
+    loaded.save(directory);
+    TartSymbolIndex reloaded = createIndex();
+    assertTrue(reloaded.load(directory));
+    assertHidden(reloaded);
+  }
+
+  /** Check the state of the index of {@link #testHiddenFiles}. */
+  private static void assertHidden(TartSymbolIndex index) {
+    assertEquals(1, index.getFileCount());
+    assertEquals(0, index.getSymbols("A").size());
+    assertEquals(1, index.getSymbols("A2").size());
+    assertEquals(0, index.getSymbols("B").size());
+    assertEquals(0, index.getSymbols("C").size());
+    assertEquals(0, index.getFileSymbols("/p/b.tart").size());
+    assertTrue(index.isCurrent("/p/a.tart", 2));
+    assertFalse(index.isCurrent("/p/c.tart", 1));
+  }
+
+  @Test
+  public void testSlotSelection() throws Exception {
+    TartSymbolIndex first = createIndex();
+    first.index(Collections.singletonList(source("/p/a.tart", 1, "class First {}\n")),
+        new NullProgressMonitor());
+    first.save(directory);
+    assertTrue(new File(directory, SLOT_NAMES[0]).isFile());
+
+    // An index loaded from one slot is saved to the other, with a higher generation.
+    TartSymbolIndex second = createIndex();
+    assertTrue(second.load(directory));
+    second.index(Collections.singletonList(source("/p/a.tart", 2, "class Second {}\n")),
+        new NullProgressMonitor());
+    second.save(directory);
+    assertTrue(new File(directory, SLOT_NAMES[1]).isFile());
+    assertEquals(1, load().getSymbols("Second").size());
+
+    TartSymbolIndex third = createIndex();
+    assertTrue(third.load(directory));
+    third.index(Collections.singletonList(source("/p/a.tart", 3, "class Third {}\n")),
+        new NullProgressMonitor());
+    third.save(directory);
+    TartSymbolIndex loaded = load();
+    assertEquals(1, loaded.getSymbols("Third").size());
+    assertEquals(0, loaded.getSymbols("Second").size());
+
+    // When the newest slot is damaged, the other one is loaded.
+    truncate(new File(directory, SLOT_NAMES[0]), 1);
+    loaded = load();
+    assertEquals(1, loaded.getSymbols("Second").size());
+    assertEquals(0, loaded.getSymbols("Third").size());
+  }
+
+  @Test
+  public void testTruncatedFile() throws Exception {
+    TartSymbolIndex saved = createIndex();
+    saved.index(Collections.singletonList(source("/p/a.tart", 1, "class A {}\n")),
+        new NullProgressMonitor());
+    saved.save(directory);
+    File file = new File(directory, SLOT_NAMES[0]);
+    truncate(file, 4);
+    assertFalse(createIndex().load(directory));
+
+    // A file shorter than its header is ignored as well.
+    truncate(file, file.length() - 10);
+    assertFalse(createIndex().load(directory));
+  }
+
+  @Test
+  public void testOtherVersion() throws Exception {
+    TartSymbolIndex saved = createIndex();
+    saved.index(Collections.singletonList(source("/p/a.tart", 1, "class A {}\n")),
+        new NullProgressMonitor());
+    saved.save(directory);
+
+    // The version follows the magic number.
+    RandomAccessFile file = new RandomAccessFile(new File(directory, SLOT_NAMES[0]), "rw");
+    try {
+      file.seek(4);
+      int version = file.readInt();
+      file.seek(4);
+      file.writeInt(version - 1);
+    } finally {
+      file.close();
+    }
+    assertFalse(createIndex().load(directory));
+  }
+
+  private TartSymbolIndex createIndex() {
+    TartSymbolIndex index = new TartSymbolIndex(1);
+    indices.add(index);
+    return index;
+  }
+
+  /** Load the index saved in the directory, which must have one. */
+  private TartSymbolIndex load() {
+    TartSymbolIndex index = createIndex();
+    assertTrue(index.load(directory));
+    return index;
+  }
+
+  /** Cut a number of bytes off the end of a file. */
+  private static void truncate(File file, long count) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - count);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Return a description of a list of symbols which does not depend on their order. */
+  private static Set<String> describe(List<TartSymbol> symbols) {
+    Set<String> result = new HashSet<String>();
+    for (TartSymbol symbol : symbols) {
+      result.add(symbol + " " + symbol.getKind());
+    }
+    return result;
+  }
+
+  private static TartSymbolIndex.Source source(final String path, final long stamp,
+      final String text) {
+    return new TartSymbolIndex.Source() {
+      public String getPath() {
+        return path;
+      }
+
+      public long getStamp() {
+        return stamp;
+      }
+
+      public CharSequence getText() {
+        return text;
+      }
+    };
+  }
+}
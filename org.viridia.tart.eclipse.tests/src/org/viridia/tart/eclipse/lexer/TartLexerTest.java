@@ -0,0 +1,233 @@
+package org.viridia.tart.eclipse.lexer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TartLexer} and {@link TartKeywords}: keywords must be recognized only when
+ * they are the whole identifier, and each kind of token must cover the characters it should.
+ */
+public class TartLexerTest {
+  /** The names of the token kinds, indexed by kind, used to describe the tokens lexed. */
+  private static final String[] KIND_NAMES = {
+    "WHITESPACE", "DEFAULT", "NUMBER", "STRING", "OPERATOR", "ATTRIBUTE", "IDENT",
+    "STMT_KEYWORD", "DECL_KEYWORD", "OPERATOR_KEYWORD", "VISIBILITY", "MODIFIER",
+    "BUILTIN_TYPE", "BUILTIN_SYMBOL", "SINGLE_LINE_COMMENT", "MULTI_LINE_COMMENT",
+    "DOC_COMMENT",
+  };
+
+  /** Each keyword table, and the kind of token its words map to. */
+  private static final Object[][] KEYWORD_TABLES = {
+    { TartKeywords.STATEMENT_KEYWORDS, TokenKind.STMT_KEYWORD },
+    { TartKeywords.DECL_KEYWORDS, TokenKind.DECL_KEYWORD },
+    { TartKeywords.OPERATOR_KEYWORDS, TokenKind.OPERATOR_KEYWORD },
+    { TartKeywords.BUILTIN_TYPES, TokenKind.BUILTIN_TYPE },
+    { TartKeywords.VISIBILITY, TokenKind.VISIBILITY },
+    { TartKeywords.DECL_MODIFIERS, TokenKind.MODIFIER },
+    { TartKeywords.SPECIAL_KEYWORDS, TokenKind.BUILTIN_SYMBOL },
+  };
+
+  /** Pairs of source text and the tokens it is lexed into, without comments. */
+  private static final String[] CODE_TOKENS = {
+    "123", "NUMBER 123",
+    "0", "NUMBER 0",
+    "007", "NUMBER 007",
+    "1_000.25", "NUMBER 1_000.25",
+    "3.", "NUMBER 3.",
+    "0x1f_FF", "NUMBER 0x1f_FF",
+    "0X7", "NUMBER 0X7",
+    "12ab", "NUMBER 12|IDENT ab",
+    "a+=b", "IDENT a|OPERATOR +=|IDENT b",
+    "x++ - -y", "IDENT x|OPERATOR ++|WHITESPACE  |OPERATOR -|WHITESPACE  |OPERATOR -|IDENT y",
+    "->", "OPERATOR ->",
+    "a::b", "IDENT a|OPERATOR ::|IDENT b",
+    "a:b", "IDENT a|OPERATOR :|IDENT b",
+    "<<=", "OPERATOR <<=",
+    ">>>", "OPERATOR >>|OPERATOR >",
+    "<=?", "OPERATOR <=?",
+    "a||b&&c", "IDENT a|OPERATOR |||IDENT b|OPERATOR &&|IDENT c",
+    "!=", "OPERATOR !=",
+    "==", "OPERATOR ==",
+    "{[(;,)]}", "OPERATOR {|OPERATOR [|OPERATOR (|OPERATOR ;|OPERATOR ,|OPERATOR )"
+        + "|OPERATOR ]|OPERATOR }",
+    "a.b", "IDENT a|DEFAULT .|IDENT b",
+    "a/b", "IDENT a|DEFAULT /|IDENT b",
+    "// x", "DEFAULT /|DEFAULT /|WHITESPACE  |IDENT x",
+    "@Foo", "ATTRIBUTE @Foo",
+    "@Foo.bar_2 x", "ATTRIBUTE @Foo.bar_2|WHITESPACE  |IDENT x",
+    "_a$1", "IDENT _a$1",
+    "'a'", "STRING 'a'",
+    "'\\''", "STRING '\\''",
+    "\"a\\\"b\" c", "STRING \"a\\\"b\"|WHITESPACE  |IDENT c",
+    "\"\"", "STRING \"\"",
+    "\"ab", "DEFAULT \"|IDENT ab",
+    "'", "DEFAULT '",
+    "\"ab\ncd", "STRING \"ab\n|IDENT cd",
+    "\"ab\r\ncd", "STRING \"ab\r\n|IDENT cd",
+    "\"ab\\\ncd", "STRING \"ab\\\n|IDENT cd",
+    " \t\r\n x", "WHITESPACE  \t\r\n |IDENT x",
+  };
+
+  /** Pairs of source text and the tokens it is lexed into, with comments. */
+  private static final String[] COMMENT_TOKENS = {
+    "// x\ny", "SINGLE_LINE_COMMENT // x\n|IDENT y",
+    "//", "SINGLE_LINE_COMMENT //",
+    "/// x\r\ny", "DOC_COMMENT /// x\r\n|IDENT y",
+    "/* a\n*/b", "MULTI_LINE_COMMENT /* a\n*/|IDENT b",
+    "/**/", "MULTI_LINE_COMMENT /**/",
+    "/** a **/", "DOC_COMMENT /** a **/",
+    "/* a", "DEFAULT /|OPERATOR *|WHITESPACE  |IDENT a",
+    "a/b", "IDENT a|DEFAULT /|IDENT b",
+  };
+
+  @Test
+  public void testKeywords() {
+    Map<String, Integer> keywords = new HashMap<String, Integer>();
+    for (Object[] table : KEYWORD_TABLES) {
+      for (String word : (String[]) table[0]) {
+        keywords.put(word, (Integer) table[1]);
+      }
+    }
+
+    for (Object[] table : KEYWORD_TABLES) {
+      for (String word : (String[]) table[0]) {
+        assertKind(word, (Integer) table[1]);
+
+        // Near misses are identifiers, unless they happen to be keywords themselves.
+        String[] nearMisses = {
+          word.substring(0, word.length() - 1), word.substring(1), word + "x", word + "_",
+          word + "0", "_" + word, word.toUpperCase(),
+          Character.toUpperCase(word.charAt(0)) + word.substring(1),
+        };
+        for (String nearMiss : nearMisses) {
+          if (nearMiss.length() > 0) {
+            Integer kind = keywords.get(nearMiss);
+            assertKind(nearMiss, kind != null ? kind : TokenKind.IDENT);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLookupRange() {
+    char[] buffer = "xxclassxx".toCharArray();
+    assertEquals(TokenKind.DECL_KEYWORD, TartKeywords.lookup(buffer, 2, 5));
+    assertEquals(TokenKind.IDENT, TartKeywords.lookup(buffer, 2, 6));
+    assertEquals(TokenKind.IDENT, TartKeywords.lookup(buffer, 1, 6));
+  }
+
+  @Test
+  public void testTokens() {
+    for (int i = 0; i < CODE_TOKENS.length; i += 2) {
+      assertEquals(CODE_TOKENS[i], CODE_TOKENS[i + 1], lex(new TartLexer(), CODE_TOKENS[i]));
+    }
+
+    for (int i = 0; i < COMMENT_TOKENS.length; i += 2) {
+      assertEquals(COMMENT_TOKENS[i], COMMENT_TOKENS[i + 1],
+          lex(new TartLexer(true), COMMENT_TOKENS[i]));
+    }
+  }
+
+  /** An operator is exactly one of the listed operators, not the operator and what follows. */
+  @Test
+  public void testOperatorLength() {
+    assertTokens("a=b", "IDENT a|OPERATOR =|IDENT b");
+    assertTokens("a+b-c", "IDENT a|OPERATOR +|IDENT b|OPERATOR -|IDENT c");
+    assertTokens("a<b>c", "IDENT a|OPERATOR <|IDENT b|OPERATOR >|IDENT c");
+    assertTokens("a|b&c", "IDENT a|OPERATOR ||IDENT b|OPERATOR &|IDENT c");
+    assertTokens("=\"s\"", "OPERATOR =|STRING \"s\"");
+  }
+
+  /** Hex constants are numbers, and "0x" with no digits is the number 0. */
+  @Test
+  public void testHexNumbers() {
+    assertTokens("0xff", "NUMBER 0xff");
+    assertTokens("0x1234abcd;", "NUMBER 0x1234abcd|OPERATOR ;");
+    assertTokens("0x", "NUMBER 0|IDENT x");
+    assertTokens("0xg", "NUMBER 0|IDENT xg");
+  }
+
+  /** A keyword must be the whole identifier, rather than a prefix of it. */
+  @Test
+  public void testKeywordPrefixes() {
+    assertTokens("int8", "BUILTIN_TYPE int8");
+    assertTokens("int_x", "IDENT int_x");
+    assertTokens("int8x", "IDENT int8x");
+    assertTokens("classy", "IDENT classy");
+    assertTokens("if2", "IDENT if2");
+    assertTokens("if(", "STMT_KEYWORD if|OPERATOR (");
+  }
+
+  @Test
+  public void testCharSequenceRange() {
+    TartLexer lexer = new TartLexer();
+    lexer.reset(new StringBuilder("(int x)"), 1, 6);
+    assertEquals(TokenKind.BUILTIN_TYPE, lexer.next());
+    assertEquals(1, lexer.getTokenStart());
+    assertEquals(4, lexer.getTokenEnd());
+    assertEquals(TokenKind.WHITESPACE, lexer.next());
+    assertEquals(TokenKind.IDENT, lexer.next());
+    assertEquals(5, lexer.getTokenStart());
+    assertEquals(1, lexer.getTokenLength());
+    assertEquals(TokenKind.EOF, lexer.next());
+  }
+
+  /** A range too large for the lexer's own buffer is lexed the same as a small one. */
+  @Test
+  public void testLargeRange() {
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 100000) {
+      sb.append("def f(x:int) -> int { return x + 0x10; }\n");
+    }
+
+    TartLexer lexer = new TartLexer();
+    lexer.reset(sb, 0, sb.length());
+    int count = 0;
+    for (int kind = lexer.next(); kind != TokenKind.EOF; kind = lexer.next()) {
+      ++count;
+    }
+    assertEquals(lex(new TartLexer(), sb.toString()).split("\\|").length, count);
+
+    lexer.reset(sb, 4, 13);
+    assertEquals(TokenKind.IDENT, lexer.next());
+    assertEquals(TokenKind.OPERATOR, lexer.next());
+    assertEquals(TokenKind.IDENT, lexer.next());
+    assertEquals(TokenKind.OPERATOR, lexer.next());
+    assertEquals(TokenKind.BUILTIN_TYPE, lexer.next());
+    assertEquals(8, lexer.getTokenStart());
+    assertEquals(TokenKind.OPERATOR, lexer.next());
+    assertEquals(TokenKind.WHITESPACE, lexer.next());
+    assertEquals(TokenKind.EOF, lexer.next());
+  }
+
+  /** Check that a word is lexed as one token of the given kind, and looked up as that kind. */
+  private static void assertKind(String word, int kind) {
+    assertEquals(word, kind, TartKeywords.lookup(word.toCharArray(), 0, word.length()));
+    assertEquals(KIND_NAMES[kind] + " " + word, lex(new TartLexer(), word));
+  }
+
+  private static void assertTokens(String text, String expected) {
+    assertEquals(text, expected, lex(new TartLexer(), text));
+  }
+
+  /** Return a description of the tokens of a text, separated by '|'. */
+  private static String lex(TartLexer lexer, String text) {
+    char[] chars = text.toCharArray();
+    lexer.reset(chars, 0, chars.length);
+    StringBuilder sb = new StringBuilder();
+    for (int kind = lexer.next(); kind != TokenKind.EOF; kind = lexer.next()) {
+      if (sb.length() > 0) {
+        sb.append('|');
+      }
+      sb.append(KIND_NAMES[kind]).append(' ')
+          .append(text, lexer.getTokenStart(), lexer.getTokenEnd());
+    }
+
+    return sb.toString();
+  }
+}
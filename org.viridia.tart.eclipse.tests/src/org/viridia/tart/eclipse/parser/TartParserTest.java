@@ -0,0 +1,99 @@
+package org.viridia.tart.eclipse.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TartParser}. An incremental parse must give the same tree as parsing the
+ * edited text from scratch, whatever the edit.
+ */
+public class TartParserTest {
+  private static final String SOURCE =
+      "import foo.bar;\n"
+      + "\n"
+      + "namespace N {\n"
+      + "@Optional class Foo : Bar {\n"
+      + "  private static def x() -> String {\n"
+      + "    let v:int = 0;\n"
+      + "  }\n"
+      + "  var y:int = 3;\n"
+      + "  def z(a:int, b:int) -> int {\n"
+      + "    if a > b { return a; }\n"
+      + "    return b;\n"
+      + "  }\n"
+      + "}\n"
+      + "\n"
+      + "interface I {\n"
+      + "  def m();\n"
+      + "}\n"
+      + "}\n"
+      + "\n"
+      + "/* def hidden() {} */\n"
+      + "def main() {\n"
+      + "  return \"{\";\n"
+      + "}\n";
+
+  /** The pieces of text inserted by the random edits. */
+  private static final String[] PIECES = {
+    "{", "}", "(", ")", ";", "\n", " ", "x", "Foo", "class ", "def ", "var ", "let ",
+    "namespace ", "enum E { A, B }\n", "/*", "*/", "//", "\"", "@Attr ",
+    "\n  def f() { return 1; }\n",
+  };
+
+  @Test
+  public void testParse() {
+    TartNode root = new TartParser().parse(SOURCE);
+    assertEquals(TartNode.FILE, root.getKind());
+    assertEquals(SOURCE.length(), root.getLength());
+    assertEquals(2, root.getChildCount());
+    assertEquals("N", root.getChild(0).getName());
+    assertEquals("main", root.getChild(1).getName());
+  }
+
+  @Test
+  public void testRandomEdits() {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 20; ++trial) {
+      String text = SOURCE + SOURCE + SOURCE;
+      TartParser parser = new TartParser();
+      TartNode root = parser.parse(text);
+      for (int step = 0; step < 200; ++step) {
+        int start = random.nextInt(text.length() + 1);
+        int length = random.nextInt(4) == 0
+            ? random.nextInt(Math.min(20, text.length() - start) + 1) : 0;
+        String insert = random.nextInt(3) == 0 ? "" : PIECES[random.nextInt(PIECES.length)];
+        String edited = text.substring(0, start) + insert + text.substring(start + length);
+
+        root = parser.parse(edited, root, start, start + length, start + insert.length());
+        assertEquals("Trial " + trial + ", step " + step,
+            dump(new TartParser().parse(edited)), dump(root));
+        text = edited;
+      }
+    }
+  }
+
+  /** Return a description of a tree, with the absolute offset of each node. */
+  private static String dump(TartNode root) {
+    StringBuilder sb = new StringBuilder();
+    dump(root, 0, 0, sb);
+    return sb.toString();
+  }
+
+  private static void dump(TartNode node, int offset, int depth, StringBuilder sb) {
+    for (int i = 0; i < depth; ++i) {
+      sb.append("  ");
+    }
+
+    sb.append(TartNode.getKeyword(node.getKind())).append(' ').append(node.getName())
+        .append(" @").append(offset).append('+').append(node.getLength())
+        .append(" name ").append(node.getNameOffset())
+        .append(" body ").append(node.getBodyOffset())
+        .append(" errors ").append(node.getErrors()).append('\n');
+    for (int i = 0; i < node.getChildCount(); ++i) {
+      dump(node.getChild(i), offset + node.getChildOffset(i), depth + 1, sb);
+    }
+  }
+}
@@ -1,8 +1,12 @@
 package org.viridia.tart.eclipse;
 
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
+import org.viridia.tart.eclipse.editors.TartColorManager;
+import org.viridia.tart.eclipse.editors.TartStyleManager;
+import org.viridia.tart.eclipse.index.TartWorkspaceIndex;
 
 /**
  * The activator class controls the plug-in life cycle
@@ -15,6 +19,14 @@ public class Activator extends AbstractUIPlugin {
   // The shared instance
   private static Activator plugin;
 
+  // Colors and styles shared by all editors and preference pages
+  private TartColorManager colorManager;
+  private TartStyleManager styleManager;
+  private int styleManagerRefs;
+
+  // Index of the declarations of every Tart file in the workspace
+  private TartWorkspaceIndex workspaceIndex;
+
   /**
    * The constructor
    */
@@ -41,6 +53,20 @@ public class Activator extends AbstractUIPlugin {
    * )
    */
   public void stop(BundleContext context) throws Exception {
+    synchronized (this) {
+      if (workspaceIndex != null) {
+        workspaceIndex.dispose();
+        workspaceIndex = null;
+      }
+    }
+    if (styleManager != null) {
+      styleManager.dispose();
+      styleManager = null;
+    }
+    if (colorManager != null) {
+      colorManager.dispose();
+      colorManager = null;
+    }
     plugin = null;
     super.stop(context);
   }
@@ -65,4 +91,51 @@ public class Activator extends AbstractUIPlugin {
   public static ImageDescriptor getImageDescriptor(String path) {
     return imageDescriptorFromPlugin(PLUGIN_ID, path);
   }
+
+  /**
+   * Returns the color manager shared by the whole plug-in. Must be called on the UI thread.
+   */
+  public TartColorManager getColorManager() {
+    if (colorManager == null) {
+      colorManager = new TartColorManager();
+    }
+    return colorManager;
+  }
+
+  /**
+   * Returns the style manager shared by all editors, creating it if needed. Each call must be
+   * matched by a call to {@link #releaseStyleManager()}. Must be called on the UI thread.
+   */
+  public TartStyleManager acquireStyleManager() {
+    if (styleManager == null) {
+      styleManager = new TartStyleManager(getColorManager());
+    }
+    ++styleManagerRefs;
+    return styleManager;
+  }
+
+  /**
+   * Releases the style manager, which is disposed, along with its colors, once it has been
+   * released as many times as it was acquired.
+   */
+  public void releaseStyleManager() {
+    if (styleManager != null && --styleManagerRefs <= 0) {
+      styleManager.dispose();
+      styleManager = null;
+      styleManagerRefs = 0;
+    }
+  }
+
+  /**
+   * Returns the index of the declarations of every Tart file in the workspace, which is
+   * started in the background on first use, and saved in the state location of the plug-in
+   * between sessions.
+   */
+  public synchronized TartWorkspaceIndex getWorkspaceIndex() {
+    if (workspaceIndex == null) {
+      workspaceIndex = new TartWorkspaceIndex(ResourcesPlugin.getWorkspace(),
+          getStateLocation().toFile());
+    }
+    return workspaceIndex;
+  }
 }
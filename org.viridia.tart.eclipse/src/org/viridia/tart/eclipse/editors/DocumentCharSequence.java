@@ -0,0 +1,87 @@
+package org.viridia.tart.eclipse.editors;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * Presents the contents of a document as a CharSequence. Characters are fetched from the
+ * document a chunk at a time into a reusable window, so sequential access does not go through
+ * the document for every character, and the document text is never copied as a whole.
+ * <p>
+ * Both forward and backward scans are served from the window: a read just before the window
+ * fetches the chunk which precedes it, and any other read outside the window fetches the
+ * chunk which starts at the character read.
+ */
+public class DocumentCharSequence implements CharSequence {
+  private static final int CHUNK_SIZE = 4096;
+
+  private IDocument document;
+  private int length;
+  private final char[] window = new char[CHUNK_SIZE];
+  private int windowStart;
+  private int windowEnd;
+
+  public DocumentCharSequence() {}
+
+  public DocumentCharSequence(IDocument document) {
+    reset(document);
+  }
+
+  /**
+   * Attach to a document. This must be called again whenever the document changes, since
+   * the window may hold stale characters.
+   */
+  public void reset(IDocument document) {
+    this.document = document;
+    this.length = document.getLength();
+    this.windowStart = 0;
+    this.windowEnd = 0;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public char charAt(int index) {
+    if (index < windowStart || index >= windowEnd) {
+      fill(index);
+    }
+
+    return window[index - windowStart];
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    try {
+      return document.get(start, end - start);
+    } catch (BadLocationException e) {
+      throw new IndexOutOfBoundsException(e.getMessage());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return document.get();
+  }
+
+  private void fill(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+
+    int start = index;
+    if (index < windowStart && index >= windowStart - CHUNK_SIZE) {
+      // Scanning backwards: fetch the chunk which ends where the window starts.
+      start = Math.max(0, windowStart - CHUNK_SIZE);
+    }
+
+    int count = Math.min(CHUNK_SIZE, length - start);
+    try {
+      document.get(start, count).getChars(0, count, window, 0);
+    } catch (BadLocationException e) {
+      throw new IndexOutOfBoundsException(e.getMessage());
+    }
+
+    windowStart = start;
+    windowEnd = start + count;
+  }
+}
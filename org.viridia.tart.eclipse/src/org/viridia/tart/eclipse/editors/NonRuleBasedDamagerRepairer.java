@@ -10,6 +10,7 @@ import org.eclipse.jface.text.TextAttribute;
 import org.eclipse.jface.text.TextPresentation;
 import org.eclipse.jface.text.presentation.IPresentationDamager;
 import org.eclipse.jface.text.presentation.IPresentationRepairer;
+import org.eclipse.jface.text.rules.IToken;
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.swt.custom.StyleRange;
 
@@ -24,6 +25,9 @@ public class NonRuleBasedDamagerRepairer implements IPresentationDamager,
    */
   protected TextAttribute fDefaultTextAttribute;
 
+  /** The token whose data is the text attribute to use, or null to use the default. */
+  protected IToken fToken;
+
   /**
    * Constructor for NonRuleBasedDamagerRepairer.
    */
@@ -32,6 +36,15 @@ public class NonRuleBasedDamagerRepairer implements IPresentationDamager,
     fDefaultTextAttribute = defaultTextAttribute;
   }
 
+  /**
+   * Constructor for NonRuleBasedDamagerRepairer which styles every region with the text
+   * attribute of a token, so that it follows changes to the token's data.
+   */
+  public NonRuleBasedDamagerRepairer(IToken token) {
+    this((TextAttribute) token.getData());
+    fToken = token;
+  }
+
   /**
    * @see IPresentationRepairer#setDocument(IDocument)
    */
@@ -93,7 +106,11 @@ public class NonRuleBasedDamagerRepairer implements IPresentationDamager,
    * @see IPresentationRepairer#createPresentation(TextPresentation, ITypedRegion)
    */
   public void createPresentation(TextPresentation presentation, ITypedRegion region) {
-    addRange(presentation, region.getOffset(), region.getLength(), fDefaultTextAttribute);
+    TextAttribute attr = fDefaultTextAttribute;
+    if (fToken != null && fToken.getData() instanceof TextAttribute) {
+      attr = (TextAttribute) fToken.getData();
+    }
+    addRange(presentation, region.getOffset(), region.getLength(), attr);
   }
 
   /**
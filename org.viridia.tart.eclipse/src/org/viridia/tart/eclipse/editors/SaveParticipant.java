@@ -0,0 +1,57 @@
+package org.viridia.tart.eclipse.editors;
+
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.text.edits.MultiTextEdit;
+
+/**
+ * An action performed when a document is saved, which contributes edits to the document.
+ * <p>
+ * Participants are run by {@link TartSaveActions}, which makes a single pass over the lines of
+ * the document, handing each line to each participant in turn, and then applies all of their
+ * edits at once. The document does not change while the edits are computed, so every offset
+ * is an offset in the document as it was before the save.
+ */
+public abstract class SaveParticipant {
+  /**
+   * Prepare for a pass over a document.
+   *
+   * @param document The document being saved.
+   * @param text The characters of the document.
+   * @return False if the participant can tell that it has nothing to change, in which case it
+   *     is not called again for this pass.
+   */
+  public boolean begin(IDocument document, CharSequence text) {
+    return true;
+  }
+
+  /** Return true if {@link #line} should be called for each line of the document. */
+  public boolean visitsLines() {
+    return true;
+  }
+
+  /**
+   * Add the edits for one line.
+   *
+   * @param text The characters of the document.
+   * @param start The start of the line.
+   * @param end The end of the line's content, not including the line delimiter, nor any text at
+   *     the end of the line which an earlier participant has removed.
+   * @param edit The edit to add to. Edits must not overlap those of other participants.
+   * @return The end of the line's content once this participant's edits are applied.
+   */
+  public int line(CharSequence text, int start, int end, MultiTextEdit edit) {
+    return end;
+  }
+
+  /**
+   * Add the edits for the end of the document, after all the lines have been visited.
+   *
+   * @param text The characters of the document.
+   * @param start The start of the last line.
+   * @param end The end of the last line's content, as returned by the last participant to
+   *     visit it.
+   * @param edit The edit to add to.
+   */
+  public void end(CharSequence text, int start, int end, MultiTextEdit edit) {
+  }
+}
@@ -8,14 +8,58 @@ import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.TextUtilities;
 
 public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
+  /** The document last edited, and whether it is too large for smart indentation. */
+  private IDocument lastDocument;
+  private boolean smartIndent;
+
+  /** Buffered view of the document, used by the bracket scans. */
+  private final DocumentCharSequence text = new DocumentCharSequence();
+
+  /** Index of the brackets in the last document edited, if smart indentation is on. */
+  private TartBracketIndex brackets;
+
   public void customizeDocumentCommand(IDocument doc, DocumentCommand cmd) {
-    if (cmd.length == 0 && cmd.text != null && endsWithDelimiter(doc, cmd.text)) {
+    setDocument(doc);
+    if (!smartIndent) {
+      // Bracket matching scans backwards through the document; just copy the indentation.
+      super.customizeDocumentCommand(doc, cmd);
+    } else if (cmd.length == 0 && cmd.text != null && endsWithDelimiter(doc, cmd.text)) {
       smartIndentAfterNewLine(doc, cmd);
     } else if ("}".equals(cmd.text)) {
       smartInsertAfterBracket(doc, cmd);
     }    
   }
 
+  /**
+   * Switch to a document, if it is not the one last edited: decide whether it is small
+   * enough for smart indentation, and if so index its brackets.
+   */
+  private void setDocument(IDocument doc) {
+    if (doc == lastDocument) {
+      return;
+    }
+
+    if (brackets != null) {
+      brackets.disconnect();
+      brackets = null;
+    }
+
+    lastDocument = doc;
+    smartIndent = TartLargeFileMode.getLevel(doc) < TartLargeFileMode.NO_AUTO_INDENT;
+    if (smartIndent) {
+      brackets = TartBracketIndex.connect(doc);
+    }
+  }
+
+  /** Release the bracket index of the last document edited. */
+  public void dispose() {
+    if (brackets != null) {
+      brackets.disconnect();
+      brackets = null;
+    }
+    lastDocument = null;
+  }
+
   private boolean endsWithDelimiter(IDocument d, String txt) {
     return TextUtilities.endsWith(d.getLegalLineDelimiters(), txt) > -1;
   }
@@ -39,7 +83,8 @@ public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
         int start = doc.getLineOffset(line);
         int whiteend = findEndOfWhiteSpace(doc, start, cmd.offset);
         buf.append(doc.get(start, whiteend - start));
-        if (getNestingDelta(doc, start, cmd.offset, true) > 0) {
+        text.reset(doc);
+        if (getNestingDelta(doc, text, start, cmd.offset, true) > 0) {
           buf.append("  ");
         }
       }
@@ -83,8 +128,20 @@ public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
   protected int findMatchingOpenBracket(IDocument doc, int line, int lineEnd,
       int closingBracketIncrease) throws BadLocationException {
 
+    text.reset(doc);
     int lineStart = doc.getLineOffset(line);
-    int brackcount = getNestingDelta(doc, lineStart, lineEnd, false) - closingBracketIncrease;
+    int brackcount =
+        getNestingDelta(doc, text, lineStart, lineEnd, false) - closingBracketIncrease;
+    if (brackcount >= 0) {
+      return line;
+    }
+
+    setDocument(doc);
+    if (brackets != null) {
+      // find the nearest earlier line with an open bracket that is still unmatched by the
+      // closing brackets counted so far
+      return brackets.findOpeningLine(line, -brackcount);
+    }
 
     // sum up the brackets counts of each line (closing brackets count negative,
     // opening positive) until we find a line the brings the count to zero
@@ -95,7 +152,7 @@ public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
       }
       lineStart = doc.getLineOffset(line);
       lineEnd = lineStart + doc.getLineLength(line) - 1;
-      brackcount += getNestingDelta(doc, lineStart, lineEnd, false);
+      brackcount += getNestingDelta(doc, text, lineStart, lineEnd, false);
     }
 
     return line;
@@ -106,14 +163,15 @@ public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
    * a range of text.
    * 
    * @param doc The document
+   * @param text The characters of the document
    * @param lineStart The start of the range of text
    * @param lineEnd The end of the range of text
    * @param skipLeadingClose If true, skip leading close brackets
    * @return The change in nesting level over the span of text
    * @throws BadLocationException
    */
-  private int getNestingDelta(IDocument doc, int lineStart, int lineEnd, boolean skipLeadingClose)
-      throws BadLocationException {
+  private int getNestingDelta(IDocument doc, CharSequence text, int lineStart, int lineEnd,
+      boolean skipLeadingClose) throws BadLocationException {
 
     int pos = lineStart;
     int bracketcount = 0;
@@ -138,7 +196,7 @@ public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
         }
       }
 
-      char ch = doc.getChar(pos++);
+      char ch = text.charAt(pos++);
       switch (ch) {
         case '{':
           bracketcount++;
@@ -153,7 +211,7 @@ public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
 
         case '"':
         case '\'':
-          pos = getStringEnd(doc, pos, lineEnd, ch);
+          pos = getStringEnd(text, pos, lineEnd, ch);
           break;
 
         default:
@@ -162,10 +220,9 @@ public class TartAutoEditStrategy extends DefaultIndentLineAutoEditStrategy {
     return bracketcount;
   }
 
-  private int getStringEnd(IDocument doc, int pos, int lineEnd, char quote)
-      throws BadLocationException {
+  private int getStringEnd(CharSequence text, int pos, int lineEnd, char quote) {
     while (pos < lineEnd) {
-      char ch = doc.getChar(pos++);
+      char ch = text.charAt(pos++);
       if (ch == '\\') {
         // ignore escaped characters
         pos++;
@@ -0,0 +1,567 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.BadPositionCategoryException;
+import org.eclipse.jface.text.DefaultPositionUpdater;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.IPositionUpdater;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextPresentationListener;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.ITextViewerExtension2;
+import org.eclipse.jface.text.ITextViewerExtension4;
+import org.eclipse.jface.text.IViewportListener;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.TextPresentation;
+import org.eclipse.swt.custom.StyleRange;
+import org.eclipse.swt.custom.StyledText;
+import org.viridia.tart.eclipse.Activator;
+import org.viridia.tart.eclipse.lexer.TartLexer;
+import org.viridia.tart.eclipse.lexer.TartPartitionLexer;
+import org.viridia.tart.eclipse.lexer.TokenKind;
+import org.viridia.tart.eclipse.lexer.TokenStream;
+import org.viridia.tart.eclipse.preferences.TartPrefs;
+
+/**
+ * Highlights the parts of a large document that are not on screen, so that coloring the
+ * visible lines never waits for the rest of the document.
+ * <p>
+ * The repairer colors the visible part of a large region at once, paints the rest in the
+ * default style, and hands the rest over to this class as pending regions. Pending regions
+ * are kept as positions in the document, so they follow edits. They are colored as soon as
+ * they scroll into view, and otherwise a batch at a time while the display is idle.
+ * <p>
+ * When background highlighting is enabled, the pending regions are tokenized by a
+ * low-priority job instead. The document text is copied into an immutable snapshot on the
+ * display thread, tagged with the document's modification stamp, so the job never reads the
+ * document itself. When the job finishes, its tokens are handed back to the display thread,
+ * and kept only if the document has not been modified in the meantime. They are then merged
+ * into every presentation the viewer applies, and the pending regions are repainted. A new
+ * request cancels the job working on an older snapshot.
+ * <p>
+ * The same pending regions are used to repaint a document lazily when a style changes: the
+ * visible part is repainted at once, and the rest as it scrolls into view or while the display
+ * is idle. The repairer is told whenever the last pending region has been repainted.
+ */
+class TartBackgroundHighlighter implements ITextPresentationListener, IViewportListener {
+  /** How long to wait for more edits before starting on a snapshot, in milliseconds. */
+  private static final long DELAY = 100;
+
+  /** The number of characters colored by each idle batch. */
+  private static final int BATCH_SIZE = 16 * 1024;
+
+  /** How long to wait between idle batches, in milliseconds. */
+  private static final int BATCH_DELAY = 50;
+
+  /** The number of lines assumed to be visible before the widget has been laid out. */
+  private static final int DEFAULT_VISIBLE_LINES = 100;
+
+  /** The position category of the regions which are waiting to be colored. */
+  private static final String PENDING_CATEGORY = Activator.PLUGIN_ID + ".pendingHighlight";
+
+  private final ITextViewer viewer;
+  private final TartDamagerRepairer repairer;
+  private final Job job;
+
+  /** The snapshot waiting to be lexed; updated while holding the lock on this. */
+  private volatile Snapshot request;
+
+  /** The tokens of the latest snapshot; only accessed from the display thread. */
+  private Snapshot result;
+
+  /** The style ranges being built by applyTextPresentation(), reused between calls. */
+  private final List<StyleRange> ranges = new ArrayList<StyleRange>();
+
+  /** The document which holds the pending regions, and the updater of their positions. */
+  private IDocument pendingDocument;
+  private IPositionUpdater pendingUpdater;
+
+  /** True if an idle batch has been scheduled. */
+  private boolean batchScheduled;
+
+  /** An immutable copy of the document text, and the tokens lexed from it. */
+  private static final class Snapshot {
+    final IDocument document;
+    final long stamp;
+    final String text;
+    final TokenStream tokens = new TokenStream(1024);
+
+    Snapshot(IDocument document, long stamp, String text) {
+      this.document = document;
+      this.stamp = stamp;
+      this.text = text;
+    }
+
+    /** Return true if the document has been modified since the snapshot was taken. */
+    boolean isStale() {
+      return getStamp(document) != stamp;
+    }
+  }
+
+  /**
+   * Construct a highlighter for a viewer, which must implement both
+   * {@link ITextViewerExtension2} and {@link ITextViewerExtension4}.
+   */
+  TartBackgroundHighlighter(ITextViewer viewer, TartDamagerRepairer repairer) {
+    this.viewer = viewer;
+    this.repairer = repairer;
+    this.job = new Job("Tart syntax highlighting") {
+      @Override
+      protected IStatus run(IProgressMonitor monitor) {
+        return tokenize(monitor);
+      }
+    };
+    job.setSystem(true);
+    job.setPriority(Job.DECORATE);
+    ((ITextViewerExtension4) viewer).addTextPresentationListener(this);
+    viewer.addViewportListener(this);
+  }
+
+  /**
+   * Stop highlighting: cancel the job, stop listening to the viewer, and drop the pending
+   * regions. Called when the editor is disposed.
+   */
+  void dispose() {
+    synchronized (this) {
+      request = null;
+    }
+    job.cancel();
+    result = null;
+    ((ITextViewerExtension4) viewer).removeTextPresentationListener(this);
+    viewer.removeViewportListener(this);
+    dropPending();
+  }
+
+  /** Return true if the background highlighting preference is enabled. */
+  boolean isEnabled() {
+    return Activator.getDefault().getPreferenceStore().getBoolean(TartPrefs.ASYNC_HIGHLIGHTING);
+  }
+
+  /**
+   * Return true if tokens for the current state of the document are available, and will be
+   * merged into presentations as they are applied.
+   */
+  boolean isCurrent(IDocument document) {
+    return result != null && result.document == document
+        && result.stamp == getStamp(document);
+  }
+
+  /**
+   * Return the region of the document which should be colored at once: the visible lines,
+   * and a screenful above and below them.
+   */
+  IRegion getVisibleRegion(IDocument document) {
+    int top = viewer.getTopIndex();
+    int bottom = viewer.getBottomIndex();
+    if (top < 0) {
+      top = 0;
+    }
+    if (bottom < top) {
+      bottom = top + DEFAULT_VISIBLE_LINES - 1;
+    }
+
+    int margin = bottom - top + 1;
+    try {
+      int lastLine = document.getNumberOfLines() - 1;
+      int start = document.getLineOffset(Math.min(lastLine, Math.max(0, top - margin)));
+      IRegion last = document.getLineInformation(Math.min(lastLine, bottom + margin));
+      return new Region(start, last.getOffset() + last.getLength() - start);
+    } catch (BadLocationException e) {
+      return new Region(0, 0);
+    }
+  }
+
+  /**
+   * Record that a range of the document has been painted in the default style, and must be
+   * colored later. Must be called from the display thread.
+   */
+  void defer(IDocument document, int start, int end) {
+    if (start >= end) {
+      return;
+    }
+
+    if (!addPending(document, start, end)) {
+      return;
+    }
+
+    if (isEnabled() && canTokenize(document)) {
+      requestTokens(document);
+    } else {
+      scheduleBatch();
+    }
+  }
+
+  /**
+   * Repaint the visible part of a document at once, and mark the rest to be repainted as it
+   * scrolls into view, or a batch at a time while the display is idle. Used when a style has
+   * changed, which needs no new tokens. Must be called from the display thread.
+   */
+  void restyle(IDocument document) {
+    IRegion visible = getVisibleRegion(document);
+    int start = visible.getOffset();
+    int end = start + visible.getLength();
+    boolean added = addPending(document, 0, start);
+    added |= addPending(document, end, document.getLength());
+    if (start < end) {
+      ((ITextViewerExtension2) viewer).invalidateTextPresentation(start, end - start);
+    }
+    if (added) {
+      scheduleBatch();
+    }
+  }
+
+  /**
+   * Mark a range of the document to be repainted as it scrolls into view, without new tokens.
+   * Must be called from the display thread.
+   */
+  void repaintLater(IDocument document, int start, int end) {
+    addPending(document, start, end);
+  }
+
+  /** Add a range to the pending regions, and return true if it was added. */
+  private boolean addPending(IDocument document, int start, int end) {
+    if (start >= end) {
+      return false;
+    }
+
+    if (document != pendingDocument) {
+      setPendingDocument(document);
+    }
+
+    removePending(start, end);
+    try {
+      document.addPosition(PENDING_CATEGORY, new Position(start, end - start));
+      return true;
+    } catch (BadLocationException e) {
+      return false;
+    } catch (BadPositionCategoryException e) {
+      return false;
+    }
+  }
+
+  /** Return true if the document can be tokenized in the background. */
+  static boolean canTokenize(IDocument document) {
+    return getStamp(document) != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+  }
+
+  private static long getStamp(IDocument document) {
+    if (document instanceof IDocumentExtension4) {
+      return ((IDocumentExtension4) document).getModificationStamp();
+    }
+
+    return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+  }
+
+  public void viewportChanged(int verticalOffset) {
+    if (pendingDocument != null && pendingDocument == viewer.getDocument()) {
+      IRegion visible = getVisibleRegion(pendingDocument);
+      colorPending(visible.getOffset(), visible.getOffset() + visible.getLength());
+    }
+  }
+
+  /** Start tracking the pending regions of another document, dropping those of the old one. */
+  private void setPendingDocument(IDocument document) {
+    dropPending();
+    pendingDocument = document;
+    pendingUpdater = new DefaultPositionUpdater(PENDING_CATEGORY);
+    document.addPositionCategory(PENDING_CATEGORY);
+    document.addPositionUpdater(pendingUpdater);
+  }
+
+  /** Drop the pending regions, and stop tracking them in their document. */
+  private void dropPending() {
+    if (pendingDocument == null) {
+      return;
+    }
+
+    pendingDocument.removePositionUpdater(pendingUpdater);
+    try {
+      pendingDocument.removePositionCategory(PENDING_CATEGORY);
+    } catch (BadPositionCategoryException e) {
+    }
+    pendingDocument = null;
+    pendingUpdater = null;
+  }
+
+  /** Return true if any part of the document is waiting to be colored or repainted. */
+  boolean hasPending() {
+    for (Position position : getPending()) {
+      if (!position.isDeleted() && position.getLength() > 0) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private Position[] getPending() {
+    if (pendingDocument == null) {
+      return new Position[0];
+    }
+
+    try {
+      return pendingDocument.getPositions(PENDING_CATEGORY);
+    } catch (BadPositionCategoryException e) {
+      return new Position[0];
+    }
+  }
+
+  /**
+   * Remove a range from the pending regions, splitting the regions which extend beyond it.
+   * Regions deleted by edits are dropped as well.
+   */
+  private void removePending(int start, int end) {
+    try {
+      for (Position position : getPending()) {
+        int pendingStart = position.getOffset();
+        int pendingEnd = pendingStart + position.getLength();
+        boolean empty = position.isDeleted() || pendingStart == pendingEnd;
+        if (!empty && (pendingEnd <= start || pendingStart >= end)) {
+          continue;
+        }
+
+        pendingDocument.removePosition(PENDING_CATEGORY, position);
+        if (empty) {
+          continue;
+        }
+        if (pendingStart < start) {
+          pendingDocument.addPosition(PENDING_CATEGORY,
+              new Position(pendingStart, start - pendingStart));
+        }
+        if (pendingEnd > end) {
+          pendingDocument.addPosition(PENDING_CATEGORY, new Position(end, pendingEnd - end));
+        }
+      }
+    } catch (BadLocationException e) {
+    } catch (BadPositionCategoryException e) {
+    }
+  }
+
+  /** Repaint the pending parts of a range of the document. */
+  private void colorPending(int start, int end) {
+    List<IRegion> ranges = new ArrayList<IRegion>();
+    for (Position position : getPending()) {
+      int rangeStart = Math.max(start, position.getOffset());
+      int rangeEnd = Math.min(end, position.getOffset() + position.getLength());
+      if (rangeStart < rangeEnd && !position.isDeleted()) {
+        ranges.add(new Region(rangeStart, rangeEnd - rangeStart));
+      }
+    }
+
+    if (!ranges.isEmpty()) {
+      // Unmark the ranges first, since repainting them may defer parts of them again.
+      removePending(start, end);
+      for (IRegion range : ranges) {
+        ((ITextViewerExtension2) viewer).invalidateTextPresentation(
+            range.getOffset(), range.getLength());
+      }
+    }
+
+    if (!hasPending()) {
+      repairer.pendingColored();
+    }
+  }
+
+  private void scheduleBatch() {
+    StyledText widget = viewer.getTextWidget();
+    if (batchScheduled || widget == null || widget.isDisposed()) {
+      return;
+    }
+
+    batchScheduled = true;
+    widget.getDisplay().timerExec(BATCH_DELAY, new Runnable() {
+      public void run() {
+        batchScheduled = false;
+        colorBatch();
+      }
+    });
+  }
+
+  /** Color one batch of the pending region nearest to the top of the viewport. */
+  private void colorBatch() {
+    StyledText widget = viewer.getTextWidget();
+    if (widget == null || widget.isDisposed() || pendingDocument != viewer.getDocument()) {
+      return;
+    }
+
+    int anchor = viewer.getTopIndexStartOffset();
+    Position nearest = null;
+    int nearestDistance = Integer.MAX_VALUE;
+    for (Position position : getPending()) {
+      int start = position.getOffset();
+      int end = start + position.getLength();
+      int distance = start > anchor ? start - anchor : Math.max(0, anchor - end);
+      if (!position.isDeleted() && distance < nearestDistance) {
+        nearest = position;
+        nearestDistance = distance;
+      }
+    }
+
+    if (nearest == null) {
+      return;
+    }
+
+    int start = nearest.getOffset();
+    int end = start + nearest.getLength();
+    if (end <= anchor) {
+      // The region is above the viewport, so work upwards from its end.
+      start = Math.max(start, end - BATCH_SIZE);
+    } else {
+      start = Math.max(start, anchor);
+      end = Math.min(end, start + BATCH_SIZE);
+    }
+
+    colorPending(start, end);
+    scheduleBatch();
+  }
+
+  /**
+   * Ask for the document to be tokenized in the background, unless it already has been, or
+   * a job for its current state is already waiting. Must be called from the display thread.
+   */
+  private void requestTokens(IDocument document) {
+    long stamp = getStamp(document);
+    if (isCurrent(document)) {
+      colorPending(0, document.getLength());
+      return;
+    }
+
+    synchronized (this) {
+      if (request != null && request.document == document && request.stamp == stamp) {
+        return;
+      }
+
+      request = new Snapshot(document, stamp, document.get());
+    }
+
+    job.cancel();
+    job.schedule(DELAY);
+  }
+
+  /** Lex the pending snapshot. Runs in the job. */
+  private IStatus tokenize(IProgressMonitor monitor) {
+    final Snapshot snapshot;
+    synchronized (this) {
+      snapshot = request;
+    }
+
+    if (snapshot == null) {
+      return Status.OK_STATUS;
+    }
+
+    // Split the text into partitions the same way as the document partitioner, and lex
+    // only the code partitions; comments are styled by their own repairers. The lexer reads
+    // the characters of the snapshot in place.
+    String text = snapshot.text;
+    char[] chars = text.toCharArray();
+    TartPartitionLexer partitions = new TartPartitionLexer();
+    TartLexer lexer = new TartLexer();
+    partitions.reset(text, 0, text.length());
+    int partitionKind;
+    while ((partitionKind = partitions.next()) != TokenKind.EOF) {
+      if (partitionKind != TokenKind.DEFAULT) {
+        continue;
+      }
+
+      if (monitor.isCanceled() || snapshot != request) {
+        return Status.CANCEL_STATUS;
+      }
+
+      lexer.reset(chars, partitions.getTokenStart(), partitions.getTokenEnd());
+      snapshot.tokens.lex(lexer, true);
+    }
+
+    StyledText widget = viewer.getTextWidget();
+    if (widget == null || widget.isDisposed()) {
+      return Status.OK_STATUS;
+    }
+
+    widget.getDisplay().asyncExec(new Runnable() {
+      public void run() {
+        apply(snapshot);
+      }
+    });
+
+    return Status.OK_STATUS;
+  }
+
+  /** Install the tokens of a finished snapshot. Runs on the display thread. */
+  private void apply(Snapshot snapshot) {
+    StyledText widget = viewer.getTextWidget();
+    if (widget == null || widget.isDisposed()) {
+      return;
+    }
+
+    synchronized (this) {
+      if (request == snapshot) {
+        request = null;
+      }
+    }
+
+    IDocument document = viewer.getDocument();
+    if (document != snapshot.document || document != pendingDocument) {
+      return;
+    }
+
+    if (snapshot.isStale()) {
+      // The document changed while the snapshot was lexed; try again if parts of it are
+      // still waiting for their colors.
+      if (getPending().length > 0) {
+        requestTokens(document);
+      }
+      return;
+    }
+
+    result = snapshot;
+    colorPending(0, document.getLength());
+  }
+
+  public void applyTextPresentation(TextPresentation presentation) {
+    if (result == null || !isCurrent(viewer.getDocument())) {
+      return;
+    }
+
+    // Adjacent tokens with the same style share a style range.
+    TokenStream tokens = result.tokens;
+    IRegion extent = presentation.getExtent();
+    int start = extent.getOffset();
+    int end = start + extent.getLength();
+    ranges.clear();
+    TextAttribute lastAttribute = null;
+    int lastStart = start;
+    int lastEnd = start;
+    for (int i = tokens.indexOf(start); i < tokens.size() && tokens.getOffset(i) < end; ++i) {
+      int tokenStart = Math.max(start, tokens.getOffset(i));
+      int tokenEnd = Math.min(end, tokens.getEnd(i));
+      TextAttribute attribute = repairer.getTextAttribute(tokens.getKind(i));
+      if (attribute != lastAttribute || tokenStart != lastEnd) {
+        addStyleRange(lastStart, lastEnd, lastAttribute);
+        lastAttribute = attribute;
+        lastStart = tokenStart;
+      }
+      lastEnd = tokenEnd;
+    }
+    addStyleRange(lastStart, lastEnd, lastAttribute);
+
+    if (!ranges.isEmpty()) {
+      presentation.replaceStyleRanges(ranges.toArray(new StyleRange[ranges.size()]));
+    }
+  }
+
+  private void addStyleRange(int start, int end, TextAttribute attr) {
+    if (attr != null && start < end) {
+      ranges.add(new StyleRange(start, end - start,
+          attr.getForeground(), attr.getBackground(), attr.getStyle()));
+    }
+  }
+}
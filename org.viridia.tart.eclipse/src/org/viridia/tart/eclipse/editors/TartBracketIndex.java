@@ -0,0 +1,636 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.DocumentPartitioningChangedEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IDocumentPartitioningListener;
+import org.eclipse.jface.text.IDocumentPartitioningListenerExtension2;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+
+/**
+ * Index of the round, square and curly brackets in the code partitions of a document, used
+ * to find the line which opens or closes the bracket enclosing a given line without scanning
+ * the lines in between. The auto-edit strategy uses it to find the block a line is in, and
+ * the pair matcher to find the peer of a bracket.
+ * <p>
+ * For each line and each kind of bracket the index stores the net change in nesting depth
+ * over the line, and the lowest depth reached within the line relative to its start (zero or
+ * less). The lines are the nodes of a treap, a binary tree kept balanced by random
+ * priorities, in which each node also holds the same values for the lines of its subtree.
+ * So the nearest line with a bracket that is still open at a given point, or that closes
+ * one open at a given point, can be found in logarithmic time, and lines can be inserted and
+ * removed in logarithmic time as well. Each kind of bracket is counted on its own.
+ * <p>
+ * Like {@link TartTokenCache}, the index follows the document's changes: the nodes of the
+ * lines an edit replaces are cut out of the tree, and nodes for the new lines are scanned
+ * and joined in their place, however many lines the edit adds or removes. Lines whose
+ * partitioning changes are scanned again the same way.
+ * <p>
+ * The tree covers the lines from the start of the document up to the last line scanned.
+ * Lines are scanned when a query first needs them, or ahead of time in batches by
+ * {@link #scanTo}; an edit beyond the last line scanned needs no work. The lines are scanned
+ * again from scratch after a change in partitioning which does not say what it covered.
+ * <p>
+ * The nodes are kept in parallel arrays rather than as objects, with node 0 standing for the
+ * empty tree; nodes which are cut out are reused. One index is shared by all the users of a
+ * document, through {@link #connect} and {@link #disconnect}, which must be called from the
+ * display thread.
+ */
+class TartBracketIndex implements IDocumentListener, IDocumentPartitioningListener,
+    IDocumentPartitioningListenerExtension2 {
+  /** The kinds of brackets; the characters of each kind are at 2 * kind in BRACKETS. */
+  static final int ROUND = 0;
+  static final int SQUARE = 1;
+  static final int CURLY = 2;
+  private static final int KINDS = 3;
+  private static final String BRACKETS = "()[]{}";
+
+  /** The index of each connected document. */
+  private static final Map<IDocument, TartBracketIndex> indices =
+      new HashMap<IDocument, TartBracketIndex>();
+
+  private final IDocument document;
+  private final DocumentCharSequence text;
+  private final Random random = new Random();
+
+  /** The number of users connected to this index. */
+  private int connections;
+
+  /** The children of each node, and the next free node for nodes which are not in use. */
+  private int[] left = new int[16];
+  private int[] right = new int[16];
+
+  /** The priority of each node, which is no lower than the priorities of its children. */
+  private int[] priorities = new int[16];
+
+  /** The number of lines in the subtree of each node. */
+  private int[] sizes = new int[16];
+
+  /**
+   * The net change in depth over the line of each node, and the lowest depth within it, for
+   * each kind of bracket; the entry for a node and kind is at node * KINDS + kind.
+   */
+  private int[] lineSums = new int[16 * KINDS];
+  private int[] lineMins = new int[16 * KINDS];
+
+  /** The same values over the lines of the subtree of each node. */
+  private int[] sums = new int[16 * KINDS];
+  private int[] mins = new int[16 * KINDS];
+
+  /** The root of the tree, the number of nodes allocated, and the first free node. */
+  private int root;
+  private int nodeCount = 1;
+  private int freeNode;
+
+  /** Results of {@link #split}. */
+  private int splitLeft;
+  private int splitRight;
+
+  /** The number of lines in the tree, which are the first lines of the document. */
+  private int scannedLines;
+
+  /** The range of lines being replaced by the current document change, or -1. */
+  private int changeFirstLine = -1;
+  private int changeLastLine;
+
+  /** A partitioning change reported while a document change was in progress. */
+  private IRegion pendingCoverage;
+
+  /** The brackets found by the last call to {@link #scanBrackets}. */
+  private int[] bracketOffsets = new int[16];
+  private char[] bracketChars = new char[16];
+  private int bracketCount;
+
+  /** The values of the line last scanned by {@link #scanLine}, for each kind. */
+  private final int[] scanSums = new int[KINDS];
+  private final int[] scanMins = new int[KINDS];
+
+  /** The sum of the lines passed over by the search in progress. */
+  private int searchSum;
+
+  private TartBracketIndex(IDocument document) {
+    this.document = document;
+    this.text = new DocumentCharSequence(document);
+    // Not pre-notified: the partitioner must be up to date before the changed lines are
+    // scanned again.
+    document.addDocumentListener(this);
+    document.addDocumentPartitioningListener(this);
+  }
+
+  /** Return the index of a document, creating it if the document has none. */
+  static TartBracketIndex connect(IDocument document) {
+    TartBracketIndex index = indices.get(document);
+    if (index == null) {
+      index = new TartBracketIndex(document);
+      indices.put(document, index);
+    }
+
+    ++index.connections;
+    return index;
+  }
+
+  /** Release the index, and stop listening to the document once no one is using it. */
+  void disconnect() {
+    if (--connections == 0) {
+      indices.remove(document);
+      document.removeDocumentListener(this);
+      document.removeDocumentPartitioningListener(this);
+    }
+  }
+
+  /** Return the kind of a bracket character, or -1 if it is not a bracket. */
+  static int getKind(char ch) {
+    int index = BRACKETS.indexOf(ch);
+    return index >= 0 ? index / 2 : -1;
+  }
+
+  /** Return true if a bracket character is an opening bracket. */
+  static boolean isOpening(char ch) {
+    return BRACKETS.indexOf(ch) % 2 == 0;
+  }
+
+  /** Return the number of lines at the start of the document which have been scanned. */
+  int getScannedLines() {
+    return scannedLines;
+  }
+
+  /** Return true if every line of the document has been scanned. */
+  boolean isComplete() {
+    return scannedLines >= document.getNumberOfLines();
+  }
+
+  /** Scan the lines before a given line which have not been scanned yet. */
+  void scanTo(int line) throws BadLocationException {
+    int end = Math.min(line, document.getNumberOfLines());
+    if (end > scannedLines) {
+      text.reset(document);
+      root = merge(root, scanLines(scannedLines, end - scannedLines));
+      scannedLines = end;
+    }
+  }
+
+  /**
+   * Return the nearest line before a given line which contains an open curly bracket that is
+   * not closed before the start of the given line, counting outwards.
+   *
+   * @param line The line to search back from.
+   * @param depth How many levels of open brackets to look out through: 1 for the bracket
+   *     which encloses the start of the line, 2 for the bracket enclosing that, and so on.
+   * @return The line, or -1 if there is none.
+   */
+  int findOpeningLine(int line, int depth) throws BadLocationException {
+    return findOpeningLine(CURLY, line, depth);
+  }
+
+  /**
+   * Return the nearest line before a given line which contains an open bracket of a given
+   * kind that is not closed before the start of the given line, counting outwards. The lines
+   * before the given line are scanned if they have not been.
+   *
+   * @param kind The kind of bracket.
+   * @param line The line to search back from.
+   * @param depth How many levels of open brackets to look out through.
+   * @return The line, or -1 if there is none.
+   */
+  int findOpeningLine(int kind, int line, int depth) throws BadLocationException {
+    scanTo(line);
+    searchSum = 0;
+    return searchBack(root, kind, 0, line, depth);
+  }
+
+  /**
+   * Return the first line at or after a given line which contains a closing bracket of a
+   * given kind that closes a bracket open at the start of the given line, counting outwards.
+   * Only the lines which have been scanned are searched.
+   *
+   * @param kind The kind of bracket.
+   * @param line The line to search forward from.
+   * @param depth How many levels of open brackets to look out through: 1 for the bracket
+   *     which encloses the start of the line, 2 for the bracket enclosing that, and so on.
+   * @return The line, or -1 if there is none among the lines scanned.
+   */
+  int findClosingLine(int kind, int line, int depth) {
+    searchSum = 0;
+    return searchForward(root, kind, 0, line, depth);
+  }
+
+  /**
+   * Return the net change in depth over the lines passed over by the last search, which are
+   * those between the line searched from and the line found.
+   */
+  int getDepthChange() {
+    return searchSum;
+  }
+
+  /**
+   * Collect the brackets in the code partitions of a line, in order. Their offsets and
+   * characters are then returned by {@link #getBracketOffset} and {@link #getBracket}.
+   *
+   * @return The number of brackets.
+   */
+  int scanBrackets(int line) throws BadLocationException {
+    bracketCount = 0;
+    int pos = document.getLineOffset(line);
+    int lineEnd = pos + document.getLineLength(line);
+    while (pos < lineEnd) {
+      ITypedRegion partition = document.getPartition(pos);
+      int partitionEnd = Math.min(lineEnd, partition.getOffset() + partition.getLength());
+      if (IDocument.DEFAULT_CONTENT_TYPE.equals(partition.getType())) {
+        scanCode(pos, partitionEnd);
+      }
+
+      pos = Math.max(pos + 1, partitionEnd);
+    }
+
+    return bracketCount;
+  }
+
+  /** Return the offset of a bracket found by {@link #scanBrackets}. */
+  int getBracketOffset(int index) {
+    return bracketOffsets[index];
+  }
+
+  /** Return the character of a bracket found by {@link #scanBrackets}. */
+  char getBracket(int index) {
+    return bracketChars[index];
+  }
+
+  public void documentAboutToBeChanged(DocumentEvent event) {
+    if (scannedLines == 0) {
+      return;
+    }
+
+    try {
+      changeFirstLine = document.getLineOfOffset(event.getOffset());
+      changeLastLine = document.getLineOfOffset(event.getOffset() + event.getLength());
+    } catch (BadLocationException e) {
+      changeFirstLine = -1;
+    }
+  }
+
+  public void documentChanged(DocumentEvent event) {
+    text.reset(document);
+    if (scannedLines == 0) {
+      return;
+    }
+
+    int firstLine = changeFirstLine;
+    changeFirstLine = -1;
+    IRegion coverage = pendingCoverage;
+    pendingCoverage = null;
+    String newText = event.getText();
+    try {
+      if (firstLine < 0) {
+        throw new BadLocationException();
+      }
+
+      int end = event.getOffset() + (newText != null ? newText.length() : 0);
+      int newLastLine = document.getLineOfOffset(end);
+      if (changeLastLine < scannedLines) {
+        replaceLines(firstLine, changeLastLine - firstLine + 1, newLastLine - firstLine + 1);
+      } else if (firstLine < scannedLines) {
+        // The edit runs past the last line scanned; forget the lines from the edit on.
+        replaceLines(firstLine, scannedLines - firstLine, 0);
+      }
+
+      if (coverage != null) {
+        updateLines(coverage);
+      }
+    } catch (BadLocationException e) {
+      clear();
+    }
+  }
+
+  public void documentPartitioningChanged(IDocument document) {
+    // Only called if the extension interface is not supported; assume everything changed.
+    clear();
+  }
+
+  public void documentPartitioningChanged(DocumentPartitioningChangedEvent event) {
+    if (scannedLines == 0) {
+      return;
+    }
+
+    IRegion coverage = event.getCoverage();
+    if (coverage == null) {
+      clear();
+    } else if (changeFirstLine >= 0) {
+      // The coverage is in terms of the new document, but the tree hasn't been updated
+      // yet. Wait for documentChanged().
+      pendingCoverage = coverage;
+    } else {
+      try {
+        updateLines(coverage);
+      } catch (BadLocationException e) {
+        clear();
+      }
+    }
+  }
+
+  /** Forget every line scanned. */
+  private void clear() {
+    free(root);
+    root = 0;
+    scannedLines = 0;
+  }
+
+  /** Scan the lines which overlap a region of the document again, if they were scanned. */
+  private void updateLines(IRegion region) throws BadLocationException {
+    int first = document.getLineOfOffset(region.getOffset());
+    int last = Math.min(scannedLines - 1,
+        document.getLineOfOffset(region.getOffset() + region.getLength()));
+    if (first <= last) {
+      replaceLines(first, last - first + 1, last - first + 1);
+    }
+  }
+
+  /**
+   * Replace the nodes of a run of lines with nodes for the lines now in the document.
+   *
+   * @param first The first line of the run, which is the same before and after the change.
+   * @param oldCount The number of lines in the run before the change.
+   * @param newCount The number of lines in the run now.
+   */
+  private void replaceLines(int first, int oldCount, int newCount)
+      throws BadLocationException {
+    split(root, first);
+    int before = splitLeft;
+    split(splitRight, oldCount);
+    int after = splitRight;
+    free(splitLeft);
+    root = merge(merge(before, scanLines(first, newCount)), after);
+    scannedLines += newCount - oldCount;
+  }
+
+  /**
+   * Scan a run of lines, and return a tree of nodes for them. The tree is built in one pass,
+   * keeping the nodes on its right edge on a stack.
+   */
+  private int scanLines(int first, int count) throws BadLocationException {
+    int[] stack = new int[32];
+    int top = 0;
+    for (int line = first; line < first + count; ++line) {
+      scanLine(line);
+      int node = allocate();
+      System.arraycopy(scanSums, 0, lineSums, node * KINDS, KINDS);
+      System.arraycopy(scanMins, 0, lineMins, node * KINDS, KINDS);
+
+      // Nodes of lower priority than the new one become its left subtree.
+      int child = 0;
+      while (top > 0 && priorities[stack[top - 1]] < priorities[node]) {
+        child = stack[--top];
+        update(child);
+      }
+
+      left[node] = child;
+      if (top > 0) {
+        right[stack[top - 1]] = node;
+      }
+      if (top == stack.length) {
+        stack = Arrays.copyOf(stack, top * 2);
+      }
+      stack[top++] = node;
+    }
+
+    while (top > 1) {
+      update(stack[--top]);
+    }
+    if (top == 0) {
+      return 0;
+    }
+
+    update(stack[0]);
+    return stack[0];
+  }
+
+  /**
+   * Split a tree into the given number of leading lines and the rest, which are left in
+   * {@link #splitLeft} and {@link #splitRight}.
+   */
+  private void split(int node, int count) {
+    if (node == 0) {
+      splitLeft = 0;
+      splitRight = 0;
+    } else if (count <= sizes[left[node]]) {
+      split(left[node], count);
+      left[node] = splitRight;
+      update(node);
+      splitRight = node;
+    } else {
+      split(right[node], count - sizes[left[node]] - 1);
+      right[node] = splitLeft;
+      update(node);
+      splitLeft = node;
+    }
+  }
+
+  /** Join two trees, the lines of the first coming before those of the second. */
+  private int merge(int a, int b) {
+    if (a == 0) {
+      return b;
+    } else if (b == 0) {
+      return a;
+    } else if (priorities[a] >= priorities[b]) {
+      right[a] = merge(right[a], b);
+      update(a);
+      return a;
+    } else {
+      left[b] = merge(a, left[b]);
+      update(b);
+      return b;
+    }
+  }
+
+  /** Recompute the values of a node's subtree from its line and its children. */
+  private void update(int node) {
+    int l = left[node];
+    int r = right[node];
+    sizes[node] = sizes[l] + 1 + sizes[r];
+    for (int kind = 0; kind < KINDS; ++kind) {
+      int n = node * KINDS + kind;
+      int li = l * KINDS + kind;
+      int ri = r * KINDS + kind;
+      int sum = sums[li] + lineSums[n];
+      mins[n] = Math.min(mins[li], Math.min(sums[li] + lineMins[n], sum + mins[ri]));
+      sums[n] = sum + sums[ri];
+    }
+  }
+
+  /** Return a new leaf node with a random priority. */
+  private int allocate() {
+    int node = freeNode;
+    if (node != 0) {
+      freeNode = left[node];
+    } else {
+      if (nodeCount == sizes.length) {
+        int capacity = nodeCount * 2;
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        priorities = Arrays.copyOf(priorities, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        lineSums = Arrays.copyOf(lineSums, capacity * KINDS);
+        lineMins = Arrays.copyOf(lineMins, capacity * KINDS);
+        sums = Arrays.copyOf(sums, capacity * KINDS);
+        mins = Arrays.copyOf(mins, capacity * KINDS);
+      }
+
+      node = nodeCount++;
+    }
+
+    left[node] = 0;
+    right[node] = 0;
+    priorities[node] = random.nextInt();
+    return node;
+  }
+
+  /** Put the nodes of a tree on the free list. */
+  private void free(int node) {
+    if (node != 0) {
+      free(left[node]);
+      free(right[node]);
+      left[node] = freeNode;
+      freeNode = node;
+    }
+  }
+
+  /**
+   * Search the lines of a subtree which come before a given line, from right to left, for
+   * the last line whose highest suffix, added to the sum of the lines after it, reaches a
+   * given depth. {@link #searchSum} accumulates the sums of the lines which have been passed
+   * over.
+   *
+   * @param node The root of the subtree.
+   * @param kind The kind of bracket.
+   * @param first The line number of the first line in the subtree.
+   * @param end The line before which to search.
+   * @param depth The depth to reach.
+   */
+  private int searchBack(int node, int kind, int first, int end, int depth) {
+    if (node == 0 || first >= end) {
+      return -1;
+    }
+
+    int n = node * KINDS + kind;
+    if (first + sizes[node] <= end && searchSum + sums[n] - mins[n] < depth) {
+      searchSum += sums[n];
+      return -1;
+    }
+
+    int line = first + sizes[left[node]];
+    int found = searchBack(right[node], kind, line + 1, end, depth);
+    if (found >= 0) {
+      return found;
+    }
+
+    if (line < end) {
+      if (searchSum + lineSums[n] - lineMins[n] >= depth) {
+        return line;
+      }
+      searchSum += lineSums[n];
+    }
+
+    return searchBack(left[node], kind, first, end, depth);
+  }
+
+  /**
+   * Search the lines of a subtree which come at or after a given line, from left to right,
+   * for the first line whose lowest depth, added to the sum of the lines before it, falls to
+   * minus a given depth. {@link #searchSum} accumulates the sums of the lines which have
+   * been passed over.
+   *
+   * @param node The root of the subtree.
+   * @param kind The kind of bracket.
+   * @param first The line number of the first line in the subtree.
+   * @param start The line at which to start searching.
+   * @param depth The depth to reach.
+   */
+  private int searchForward(int node, int kind, int first, int start, int depth) {
+    if (node == 0 || first + sizes[node] <= start) {
+      return -1;
+    }
+
+    int n = node * KINDS + kind;
+    if (first >= start && searchSum + mins[n] > -depth) {
+      searchSum += sums[n];
+      return -1;
+    }
+
+    int line = first + sizes[left[node]];
+    int found = searchForward(left[node], kind, first, start, depth);
+    if (found >= 0) {
+      return found;
+    }
+
+    if (line >= start) {
+      if (searchSum + lineMins[n] <= -depth) {
+        return line;
+      }
+      searchSum += lineSums[n];
+    }
+
+    return searchForward(right[node], kind, line + 1, start, depth);
+  }
+
+  /**
+   * Compute the net change in depth over the code partitions of a line, and the lowest depth
+   * reached, for each kind of bracket, into {@link #scanSums} and {@link #scanMins}.
+   */
+  private void scanLine(int line) throws BadLocationException {
+    Arrays.fill(scanSums, 0);
+    Arrays.fill(scanMins, 0);
+    int count = scanBrackets(line);
+    for (int i = 0; i < count; ++i) {
+      char ch = bracketChars[i];
+      int kind = getKind(ch);
+      if (isOpening(ch)) {
+        ++scanSums[kind];
+      } else {
+        scanMins[kind] = Math.min(scanMins[kind], --scanSums[kind]);
+      }
+    }
+  }
+
+  /** Collect the brackets in a run of code, skipping string and character literals. */
+  private void scanCode(int pos, int end) {
+    while (pos < end) {
+      char ch = text.charAt(pos++);
+      switch (ch) {
+        case '(': case ')':
+        case '[': case ']':
+        case '{': case '}':
+          if (bracketCount == bracketOffsets.length) {
+            bracketOffsets = Arrays.copyOf(bracketOffsets, bracketCount * 2);
+            bracketChars = Arrays.copyOf(bracketChars, bracketCount * 2);
+          }
+
+          bracketOffsets[bracketCount] = pos - 1;
+          bracketChars[bracketCount] = ch;
+          ++bracketCount;
+          break;
+
+        case '"':
+        case '\'':
+          // As in the lexer, a literal ends at its closing quote or at the end of the line.
+          while (pos < end) {
+            char c = text.charAt(pos++);
+            if (c == '\\') {
+              pos++;
+            } else if (c == ch) {
+              break;
+            }
+          }
+          break;
+
+        default:
+      }
+    }
+  }
+}
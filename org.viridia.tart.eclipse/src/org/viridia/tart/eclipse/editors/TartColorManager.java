@@ -8,23 +8,52 @@ import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.widgets.Display;
 
+/**
+ * Shared, reference-counted cache of colors. There is one color manager for the whole plugin,
+ * owned by the {@link org.viridia.tart.eclipse.Activator}: each user acquires the colors it
+ * needs and releases them when done, and a color is disposed when its last user releases it.
+ * Colors are only used and released on the UI thread.
+ */
 public class TartColorManager {
-  protected Map<RGB, Color> colorTable = new HashMap<RGB, Color>(10);
+  private static class Entry {
+    final Color color;
+    int refs;
 
+    Entry(Color color) {
+      this.color = color;
+    }
+  }
+
+  protected Map<RGB, Entry> colorTable = new HashMap<RGB, Entry>(10);
+
+  /** Dispose all colors, whether or not they have been released. */
   public void dispose() {
-    Iterator<Color> e = colorTable.values().iterator();
+    Iterator<Entry> e = colorTable.values().iterator();
     while (e.hasNext()) {
-      e.next().dispose();
+      e.next().color.dispose();
     }
+
+    colorTable.clear();
   }
 
-  public Color getColor(RGB rgb) {
-    Color color = colorTable.get(rgb);
-    if (color == null) {
-      color = new Color(Display.getCurrent(), rgb);
-      colorTable.put(rgb, color);
+  /** Return the color for an RGB value, creating it if needed. Must be released when done. */
+  public Color acquireColor(RGB rgb) {
+    Entry entry = colorTable.get(rgb);
+    if (entry == null) {
+      entry = new Entry(new Color(Display.getCurrent(), rgb));
+      colorTable.put(rgb, entry);
     }
 
-    return color;
+    ++entry.refs;
+    return entry.color;
+  }
+
+  /** Release a color returned by {@link #acquireColor}, disposing it if it is no longer used. */
+  public void releaseColor(RGB rgb) {
+    Entry entry = colorTable.get(rgb);
+    if (entry != null && --entry.refs <= 0) {
+      colorTable.remove(rgb);
+      entry.color.dispose();
+    }
   }
 }
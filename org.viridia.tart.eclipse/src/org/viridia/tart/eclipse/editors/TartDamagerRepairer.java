@@ -0,0 +1,235 @@
+package org.viridia.tart.eclipse.editors;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.ITextViewerExtension2;
+import org.eclipse.jface.text.ITextViewerExtension4;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.TextPresentation;
+import org.viridia.tart.eclipse.lexer.TokenKind;
+
+/**
+ * Damager and repairer for the code partitions of a Tart document. Rather than rescanning
+ * the damaged region after each edit, the repairer reads tokens from a {@link TartTokenCache},
+ * which relexes only the lines that have changed.
+ * <p>
+ * Only the visible part of a region larger than {@link #LAZY_THRESHOLD} is colored at once,
+ * so that the time taken to show the first screen of a document does not depend on its size.
+ * The rest is painted in the default style, and colored later by a
+ * {@link TartBackgroundHighlighter}.
+ * <p>
+ * In {@link TartLargeFileMode large-file mode}, code is painted in the default style only,
+ * and no tokens are cached.
+ * <p>
+ * When a style changes, the repairer repaints the viewer from the cached tokens, the visible
+ * lines first and the rest as they scroll into view or while the display is idle. Comments
+ * are repainted along with code, since they are presented by the same viewer. Once nothing is
+ * left to repaint, the repairer tells the style manager, so that it can release the colors of
+ * the old styles.
+ */
+public class TartDamagerRepairer extends NonRuleBasedDamagerRepairer
+    implements TartStyleManager.StyleListener {
+  /** Regions longer than this, in characters, are colored lazily, visible lines first. */
+  public static final int LAZY_THRESHOLD = 64 * 1024;
+
+  private final TartScanner scanner;
+  private final ITextViewer viewer;
+  private final TartBackgroundHighlighter highlighter;
+  private TartTokenCache cache;
+  private boolean tokenColoring;
+
+  /** The style manager whose last change has not been repainted everywhere yet, or null. */
+  private TartStyleManager restyling;
+
+  /**
+   * Constructor for TartDamagerRepairer.
+   *
+   * @param scanner The scanner which supplies the token, and thus the style, of each token kind.
+   */
+  public TartDamagerRepairer(TartScanner scanner) {
+    this(scanner, null);
+  }
+
+  /**
+   * Constructor for TartDamagerRepairer.
+   *
+   * @param scanner The scanner which supplies the token, and thus the style, of each token kind.
+   * @param viewer The viewer whose presentation is repaired, used for lazy highlighting;
+   *     or null to always highlight the whole region at once.
+   */
+  public TartDamagerRepairer(TartScanner scanner, ITextViewer viewer) {
+    super(new TextAttribute(null));
+    this.scanner = scanner;
+    this.viewer = viewer;
+    this.highlighter =
+        viewer instanceof ITextViewerExtension2 && viewer instanceof ITextViewerExtension4
+            ? new TartBackgroundHighlighter(viewer, this) : null;
+  }
+
+  /**
+   * @see org.eclipse.jface.text.presentation.IPresentationRepairer#setDocument(IDocument)
+   */
+  public void setDocument(IDocument document) {
+    if (document == fDocument) {
+      return;
+    }
+
+    if (cache != null) {
+      cache.dispose();
+      cache = null;
+    }
+
+    // The new document is painted with the current styles.
+    pendingColored();
+    super.setDocument(document);
+    tokenColoring =
+        TartLargeFileMode.getLevel(document) < TartLargeFileMode.NO_TOKEN_COLORING;
+    if (document != null && tokenColoring) {
+      cache = new TartTokenCache(document);
+    }
+  }
+
+  /**
+   * @see org.eclipse.jface.text.presentation.IPresentationRepairer#createPresentation(TextPresentation, ITypedRegion)
+   */
+  public void createPresentation(TextPresentation presentation, ITypedRegion region) {
+    int start = region.getOffset();
+    int end = start + region.getLength();
+    if (!tokenColoring) {
+      addRange(presentation, start, end - start, fDefaultTextAttribute);
+      return;
+    }
+
+    if (highlighter == null || region.getLength() <= LAZY_THRESHOLD) {
+      addTokenRanges(presentation, start, end);
+      return;
+    }
+
+    if (highlighter.isCurrent(fDocument)) {
+      // The background highlighter merges its tokens into the presentation.
+      addRange(presentation, start, end - start, fDefaultTextAttribute);
+      return;
+    }
+
+    // Color the lines on screen, and leave the rest to the highlighter.
+    IRegion visible = highlighter.getVisibleRegion(fDocument);
+    int visibleStart = Math.min(end, Math.max(start, visible.getOffset()));
+    int visibleEnd = Math.max(visibleStart,
+        Math.min(end, visible.getOffset() + visible.getLength()));
+    addRange(presentation, start, visibleStart - start, fDefaultTextAttribute);
+    addTokenRanges(presentation, visibleStart, visibleEnd);
+    addRange(presentation, visibleEnd, end - visibleEnd, fDefaultTextAttribute);
+    highlighter.defer(fDocument, start, visibleStart);
+    highlighter.defer(fDocument, visibleEnd, end);
+  }
+
+  public void stylesChanged(TartStyleManager styles, int kinds) {
+    if (viewer == null || fDocument == null || viewer.getDocument() != fDocument) {
+      styles.repainted(this);
+      return;
+    }
+
+    if (!tokenColoring && (kinds & TokenKind.COMMENT_MASK) == 0) {
+      // Code is painted in the default style only.
+      styles.repainted(this);
+      return;
+    }
+
+    if (highlighter != null) {
+      restyling = styles;
+      highlighter.restyle(fDocument);
+      if (!highlighter.hasPending()) {
+        pendingColored();
+      }
+    } else {
+      viewer.invalidateTextPresentation();
+      styles.repainted(this);
+    }
+  }
+
+  /**
+   * Called by the background highlighter when none of the document is waiting to be
+   * repainted, so no part of it is shown in a style older than the current one.
+   */
+  void pendingColored() {
+    if (restyling != null) {
+      TartStyleManager styles = restyling;
+      restyling = null;
+      styles.repainted(this);
+    }
+  }
+
+  /** Add the styles of the cached tokens in a range of the document to a presentation. */
+  private void addTokenRanges(TextPresentation presentation, int start, int end) {
+    if (start >= end) {
+      return;
+    }
+
+    TextAttribute lastAttribute = fDefaultTextAttribute;
+    int lastStart = start;
+    int lastLength = 0;
+    try {
+      int lastLine = fDocument.getLineOfOffset(end);
+      for (int line = fDocument.getLineOfOffset(start); line <= lastLine; ++line) {
+        int lineOffset = fDocument.getLineOffset(line);
+        int[] tokens = cache.getLineTokens(line);
+        for (int i = 0, count = TartTokenCache.tokenCount(tokens); i < count; ++i) {
+          int tokenStart = Math.max(start, lineOffset + TartTokenCache.tokenStart(tokens, i));
+          int tokenEnd = Math.min(end,
+              lineOffset + TartTokenCache.tokenStart(tokens, i)
+                  + TartTokenCache.tokenLength(tokens, i));
+          if (tokenStart >= tokenEnd) {
+            continue;
+          }
+
+          TextAttribute attribute = getTextAttribute(TartTokenCache.tokenKind(tokens, i));
+          if (attribute.equals(lastAttribute) && lastStart + lastLength == tokenStart) {
+            lastLength += tokenEnd - tokenStart;
+          } else {
+            addRange(presentation, lastStart, lastLength, lastAttribute);
+            lastAttribute = attribute;
+            lastStart = tokenStart;
+            lastLength = tokenEnd - tokenStart;
+          }
+        }
+      }
+    } catch (BadLocationException e) {
+    }
+
+    addRange(presentation, lastStart, lastLength, lastAttribute);
+  }
+
+  /** Stop the background highlighter of the viewer. Called when the editor is disposed. */
+  public void dispose() {
+    restyling = null;
+    if (highlighter != null) {
+      highlighter.dispose();
+    }
+  }
+
+  /** Return the background highlighter of the viewer, or null if the viewer has none. */
+  TartBackgroundHighlighter getBackgroundHighlighter() {
+    return highlighter;
+  }
+
+  /** Return the text attribute for a {@link org.viridia.tart.eclipse.lexer.TokenKind}. */
+  TextAttribute getTextAttribute(int kind) {
+    Object data = scanner.getToken(kind).getData();
+    if (data instanceof TextAttribute) {
+      return (TextAttribute) data;
+    }
+
+    return fDefaultTextAttribute;
+  }
+
+  @Override
+  protected void addRange(TextPresentation presentation, int offset, int length,
+      TextAttribute attr) {
+    if (length > 0) {
+      super.addRange(presentation, offset, length, attr);
+    }
+  }
+}
@@ -9,7 +9,10 @@ import org.eclipse.ui.editors.text.FileDocumentProvider;
 public class TartDocumentProvider extends FileDocumentProvider {
   protected IDocument createDocument(Object element) throws CoreException {
     IDocument document = super.createDocument(element);
-    if (document != null) {
+    // Very large documents are left unpartitioned, which saves a position for every
+    // comment and a rescan of the document after each edit.
+    if (document != null
+        && TartLargeFileMode.getLevel(document) < TartLargeFileMode.NO_PARTITIONING) {
       IDocumentPartitioner partitioner = new FastPartitioner(
           new TartPartitionScanner(), new String[] {
               IDocument.DEFAULT_CONTENT_TYPE,
@@ -5,6 +5,12 @@ import org.eclipse.jface.text.*;
 public class TartDoubleClickStrategy implements ITextDoubleClickStrategy {
   protected ITextViewer fText;
 
+  /** Buffered view of the document, reset for each double click. */
+  private final DocumentCharSequence fChars = new DocumentCharSequence();
+
+  /** Finds the identifier, or other single character, around the caret. */
+  private final TartWordIterator fWords = new TartWordIterator(false);
+
   public void doubleClicked(ITextViewer part) {
     int pos = part.getSelectedRange().x;
 
@@ -19,45 +25,19 @@ public class TartDoubleClickStrategy implements ITextDoubleClickStrategy {
   protected boolean selectWord(int caretPos) {
 
     IDocument doc = fText.getDocument();
-    int startPos, endPos;
-
-    try {
-
-      int pos = caretPos;
-      char c;
-
-      while (pos >= 0) {
-        c = doc.getChar(pos);
-        if (!Character.isJavaIdentifierPart(c))
-          break;
-        --pos;
-      }
-
-      startPos = pos;
-
-      pos = caretPos;
-      int length = doc.getLength();
-
-      while (pos < length) {
-        c = doc.getChar(pos);
-        if (!Character.isJavaIdentifierPart(c))
-          break;
-        ++pos;
-      }
-
-      endPos = pos;
-      selectRange(startPos, endPos);
-      return true;
-
-    } catch (BadLocationException x) {
-    }
-
-    return false;
+    int length = doc.getLength();
+    if (caretPos >= length)
+      return false;
+
+    fChars.reset(doc);
+    fWords.setText(fChars);
+    int endPos = fWords.following(caretPos);
+    int startPos = fWords.previous();
+    selectRange(startPos, endPos);
+    return true;
   }
 
   private void selectRange(int startPos, int stopPos) {
-    int offset = startPos + 1;
-    int length = stopPos - offset;
-    fText.setSelectedRange(offset, length);
+    fText.setSelectedRange(startPos, stopPos - startPos);
   }
 }
@@ -0,0 +1,114 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.text.IDocument;
+import org.viridia.tart.eclipse.Activator;
+import org.viridia.tart.eclipse.preferences.TartPrefs;
+
+/**
+ * Decides how much of the editor's machinery to switch off for a very large document.
+ * <p>
+ * A document is large if it reaches either the size or the line count threshold set in the
+ * preferences. Each further factor of {@link #STEP} over a threshold switches off one more
+ * feature: first token coloring and bracket matching, then partitioning (and with it the
+ * coloring of comments) and parsing (and with it the outline), then bracket-aware
+ * auto-indent.
+ * <p>
+ * The level of a document is decided once, the first time it is asked for, which for the
+ * document of an editor is when the document provider creates it. It then stays the same
+ * however the document grows or shrinks, and however the preferences change, so that every
+ * part of the editor agrees on what is switched off until the file is opened again.
+ */
+public final class TartLargeFileMode {
+  /** Everything is enabled. */
+  public static final int NONE = 0;
+
+  /** Code is not colored by token kind, and matching brackets are not highlighted. */
+  public static final int NO_TOKEN_COLORING = 1;
+
+  /**
+   * The document is not partitioned, so comments are not colored either, and it is not
+   * parsed, so it has no outline.
+   */
+  public static final int NO_PARTITIONING = 2;
+
+  /** Auto-indent only copies the indentation of the previous line. */
+  public static final int NO_AUTO_INDENT = 3;
+
+  /** The ratio between the sizes at which successive levels take effect. */
+  public static final int STEP = 4;
+
+  /** The level of each document whose level has been asked for. */
+  private static final Map<IDocument, Integer> levels =
+      Collections.synchronizedMap(new WeakHashMap<IDocument, Integer>());
+
+  private TartLargeFileMode() {}
+
+  /**
+   * Return the level of degradation for a document, deciding it from the size of the
+   * document and the current preferences if it has not been decided yet. May be called from
+   * any thread.
+   */
+  public static int getLevel(IDocument document) {
+    if (document == null) {
+      return NONE;
+    }
+
+    synchronized (levels) {
+      Integer level = levels.get(document);
+      if (level == null) {
+        level = getLevel(document.getLength(), document.getNumberOfLines());
+        levels.put(document, level);
+      }
+
+      return level;
+    }
+  }
+
+  /**
+   * Return the level of degradation for a document of a given size, given the current
+   * preferences.
+   *
+   * @param length The length of the document, in characters.
+   * @param lines The number of lines in the document.
+   */
+  public static int getLevel(long length, long lines) {
+    if (Activator.getDefault() == null) {
+      // Running outside the workbench, as the benchmarks do.
+      return NONE;
+    }
+
+    IPreferenceStore store = Activator.getDefault().getPreferenceStore();
+    long maxLength = Math.max(1, store.getInt(TartPrefs.LARGE_FILE_SIZE)) * 1024L;
+    long maxLines = Math.max(1, store.getInt(TartPrefs.LARGE_FILE_LINES));
+    int level = NONE;
+    while (level < NO_AUTO_INDENT && (length >= maxLength || lines >= maxLines)) {
+      ++level;
+      maxLength *= STEP;
+      maxLines *= STEP;
+    }
+
+    return level;
+  }
+
+  /** Return a description of what has been switched off at a level, for the editor banner. */
+  public static String getDescription(int level) {
+    switch (level) {
+      case NO_TOKEN_COLORING:
+        return "This file is large, so syntax coloring of code and bracket matching have been "
+            + "turned off.";
+      case NO_PARTITIONING:
+        return "This file is very large, so syntax coloring, bracket matching and the outline "
+            + "have been turned off.";
+      case NO_AUTO_INDENT:
+        return "This file is very large, so syntax coloring, bracket matching, the outline and "
+            + "smart indentation have been turned off.";
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,390 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.ITextSelection;
+import org.eclipse.jface.viewers.IPostSelectionProvider;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.ISelectionChangedListener;
+import org.eclipse.jface.viewers.ISelectionProvider;
+import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.jface.viewers.ITreeContentProvider;
+import org.eclipse.jface.viewers.LabelProvider;
+import org.eclipse.jface.viewers.SelectionChangedEvent;
+import org.eclipse.jface.viewers.StructuredSelection;
+import org.eclipse.jface.viewers.TreeViewer;
+import org.eclipse.jface.viewers.Viewer;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.ui.views.contentoutline.ContentOutlinePage;
+import org.viridia.tart.eclipse.parser.TartNode;
+
+/**
+ * Outline of the declarations of a Tart document, built from the syntax tree which
+ * {@link TartReconcilingStrategy} keeps up to date.
+ * <p>
+ * The elements of the outline live from one syntax tree to the next, and are patched rather
+ * than rebuilt, so that the tree viewer is only told about the declarations which were
+ * inserted, removed or renamed, and keeps its expansion and selection. Since the parser
+ * reuses the nodes of unchanged declarations, most children of an element are matched by
+ * identity at either end of the list; the rest are matched in order by kind and name.
+ * <p>
+ * The declaration at the caret is selected in the outline as the caret moves. It is found by
+ * a binary search among the children of each level of the tree, so that the cost does not
+ * depend on the number of declarations.
+ * <p>
+ * Documents which are too large to be parsed get an empty outline, which does not follow the
+ * caret.
+ */
+class TartOutlinePage extends ContentOutlinePage
+    implements TartReconcilingStrategy.SyntaxTreeListener {
+  /** How far ahead to look for an old element with the same name as a new declaration. */
+  private static final int MATCH_LOOKAHEAD = 16;
+
+  /**
+   * A declaration in the outline. Its children correspond one to one with those of its
+   * node, in the same order.
+   */
+  static final class Element {
+    final Element parent;
+    TartNode node;
+
+    /** The offset of the declaration relative to the start of its parent. */
+    int offset;
+
+    final List<Element> children;
+
+    Element(Element parent, TartNode node, int offset) {
+      this.parent = parent;
+      this.node = node;
+      this.offset = offset;
+      this.children = new ArrayList<Element>(node.getChildCount());
+      for (int i = 0; i < node.getChildCount(); ++i) {
+        children.add(new Element(this, node.getChild(i), node.getChildOffset(i)));
+      }
+    }
+
+    /** Return the offset of the declaration in the document. */
+    int getStart() {
+      int start = 0;
+      for (Element element = this; element != null; element = element.parent) {
+        start += element.offset;
+      }
+
+      return start;
+    }
+  }
+
+  private static final class ContentProvider implements ITreeContentProvider {
+    public Object[] getElements(Object input) {
+      return getChildren(input);
+    }
+
+    public Object[] getChildren(Object parent) {
+      return ((Element) parent).children.toArray();
+    }
+
+    public Object getParent(Object element) {
+      return ((Element) element).parent;
+    }
+
+    public boolean hasChildren(Object element) {
+      return !((Element) element).children.isEmpty();
+    }
+
+    public void dispose() {
+    }
+
+    public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
+    }
+  }
+
+  private static final class OutlineLabelProvider extends LabelProvider {
+    @Override
+    public String getText(Object element) {
+      TartNode node = ((Element) element).node;
+      String name = node.getName();
+      return TartNode.getKeyword(node.getKind()) + " " + (name != null ? name : "?");
+    }
+  }
+
+  private final TartSourceEditor editor;
+  private final TartReconcilingStrategy strategy;
+
+  /** The element of the root of the syntax tree, which is the input of the viewer. */
+  private Element root;
+
+  /** The latest syntax tree handed over by the reconciler thread, if not yet shown. */
+  private final AtomicReference<TartNode> pendingTree = new AtomicReference<TartNode>();
+
+  /** True while the selection of the outline or the editor is being made to follow the other. */
+  private boolean synchronizing;
+
+  private final ISelectionChangedListener caretListener = new ISelectionChangedListener() {
+    public void selectionChanged(SelectionChangedEvent event) {
+      revealCaret(event.getSelection());
+    }
+  };
+
+  TartOutlinePage(TartSourceEditor editor, TartReconcilingStrategy strategy) {
+    this.editor = editor;
+    this.strategy = strategy;
+  }
+
+  @Override
+  public void createControl(Composite parent) {
+    super.createControl(parent);
+    TreeViewer viewer = getTreeViewer();
+    viewer.setUseHashlookup(true);
+    viewer.setContentProvider(new ContentProvider());
+    viewer.setLabelProvider(new OutlineLabelProvider());
+    IDocument document = editor.getDocumentProvider().getDocument(editor.getEditorInput());
+    if (TartLargeFileMode.getLevel(document) >= TartLargeFileMode.NO_PARTITIONING) {
+      return;
+    }
+
+    ISelectionProvider provider = editor.getSelectionProvider();
+    if (provider instanceof IPostSelectionProvider) {
+      ((IPostSelectionProvider) provider).addPostSelectionChangedListener(caretListener);
+    }
+
+    strategy.addSyntaxTreeListener(this);
+    TartNode tree = strategy.getSyntaxTree();
+    if (tree != null) {
+      update(tree);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    strategy.removeSyntaxTreeListener(this);
+    ISelectionProvider provider = editor.getSelectionProvider();
+    if (provider instanceof IPostSelectionProvider) {
+      ((IPostSelectionProvider) provider).removePostSelectionChangedListener(caretListener);
+    }
+
+    editor.outlinePageClosed(this);
+    root = null;
+    super.dispose();
+  }
+
+  public void syntaxTreeChanged(IDocument document, TartNode tree) {
+    final Control control = getControl();
+    if (control == null || control.isDisposed()) {
+      return;
+    }
+
+    // Trees which arrive faster than the display thread takes them are skipped.
+    pendingTree.set(tree);
+    control.getDisplay().asyncExec(new Runnable() {
+      public void run() {
+        TartNode latest = pendingTree.getAndSet(null);
+        if (latest != null && !control.isDisposed()) {
+          update(latest);
+        }
+      }
+    });
+  }
+
+  /** Show a new syntax tree. Runs on the display thread. */
+  private void update(TartNode tree) {
+    if (root == null) {
+      root = new Element(null, tree, 0);
+      getTreeViewer().setInput(root);
+    } else if (root.node != tree) {
+      patch(root, tree);
+    }
+  }
+
+  /**
+   * Make an element, which is shown in the viewer, and its descendants correspond to a new
+   * node, telling the viewer about each element inserted, removed or renamed.
+   */
+  private void patch(Element element, TartNode node) {
+    TreeViewer viewer = getTreeViewer();
+    element.node = node;
+    List<Element> children = element.children;
+    int oldEnd = children.size();
+    int newEnd = node.getChildCount();
+
+    // The unchanged children at either end keep their nodes, and only need their offsets.
+    int prefix = 0;
+    while (prefix < oldEnd && prefix < newEnd
+        && children.get(prefix).node == node.getChild(prefix)) {
+      children.get(prefix).offset = node.getChildOffset(prefix);
+      ++prefix;
+    }
+
+    while (oldEnd > prefix && newEnd > prefix
+        && children.get(oldEnd - 1).node == node.getChild(newEnd - 1)) {
+      --oldEnd;
+      --newEnd;
+      children.get(oldEnd).offset = node.getChildOffset(newEnd);
+    }
+
+    if (prefix == oldEnd && prefix == newEnd) {
+      return;
+    }
+
+    List<Element> oldMiddle = new ArrayList<Element>(children.subList(prefix, oldEnd));
+    List<Element> newMiddle = new ArrayList<Element>(newEnd - prefix);
+    List<Element> removed = new ArrayList<Element>();
+    List<Element> added = new ArrayList<Element>();
+    List<Integer> addedIndices = new ArrayList<Integer>();
+    int next = 0;
+    for (int i = prefix; i < newEnd; ++i) {
+      TartNode child = node.getChild(i);
+      int match = findMatch(oldMiddle, next, node, i, newEnd);
+      Element childElement;
+      if (match < 0) {
+        childElement = new Element(element, child, 0);
+        added.add(childElement);
+        addedIndices.add(i);
+      } else {
+        removed.addAll(oldMiddle.subList(next, match));
+        next = match + 1;
+        childElement = oldMiddle.get(match);
+        boolean renamed = !sameName(childElement.node, child);
+        if (childElement.node != child) {
+          patch(childElement, child);
+        }
+        if (renamed) {
+          viewer.update(childElement, null);
+        }
+      }
+
+      childElement.offset = node.getChildOffset(i);
+      newMiddle.add(childElement);
+    }
+
+    removed.addAll(oldMiddle.subList(next, oldMiddle.size()));
+    children.subList(prefix, oldEnd).clear();
+    children.addAll(prefix, newMiddle);
+
+    // Once the removed elements are gone, every element before an added one is in place,
+    // so inserting them in order puts each at its final index.
+    if (!removed.isEmpty()) {
+      viewer.remove(removed.toArray());
+    }
+    for (int i = 0; i < added.size(); ++i) {
+      viewer.insert(element, added.get(i), addedIndices.get(i));
+    }
+  }
+
+  /**
+   * Return the index of the old element which a new child node takes the place of, or -1 if
+   * it is a new declaration. An element of the same kind and name is looked for first; failing
+   * that, the next old element is taken as renamed if it is of the same kind, and its name
+   * does not come up among the next new nodes.
+   *
+   * @param oldElements The old elements.
+   * @param next The index of the first old element which has not been matched yet.
+   * @param parent The new parent node.
+   * @param index The index of the child node in the parent.
+   * @param end The index past the last child node which may be matched.
+   */
+  private static int findMatch(List<Element> oldElements, int next, TartNode parent, int index,
+      int end) {
+    TartNode node = parent.getChild(index);
+    int limit = Math.min(oldElements.size(), next + MATCH_LOOKAHEAD);
+    for (int i = next; i < limit; ++i) {
+      TartNode old = oldElements.get(i).node;
+      if (old.getKind() == node.getKind() && sameName(old, node)) {
+        return i;
+      }
+    }
+
+    if (next >= oldElements.size() || oldElements.get(next).node.getKind() != node.getKind()) {
+      return -1;
+    }
+
+    TartNode old = oldElements.get(next).node;
+    for (int i = index + 1; i < Math.min(end, index + MATCH_LOOKAHEAD); ++i) {
+      TartNode later = parent.getChild(i);
+      if (later.getKind() == old.getKind() && sameName(later, old)) {
+        return -1;
+      }
+    }
+
+    return next;
+  }
+
+  private static boolean sameName(TartNode a, TartNode b) {
+    return a.getName() == null ? b.getName() == null : a.getName().equals(b.getName());
+  }
+
+  /** Select the innermost declaration which contains the caret. */
+  private void revealCaret(ISelection selection) {
+    if (synchronizing || root == null || !(selection instanceof ITextSelection)) {
+      return;
+    }
+
+    int offset = ((ITextSelection) selection).getOffset();
+    Element element = root;
+    int start = 0;
+    for (;;) {
+      int index = element.node.indexOfChild(offset - start);
+      if (index < 0) {
+        break;
+      }
+
+      element = element.children.get(index);
+      start += element.offset;
+    }
+
+    TreeViewer viewer = getTreeViewer();
+    ISelection current = viewer.getSelection();
+    Object selected = current instanceof IStructuredSelection
+        ? ((IStructuredSelection) current).getFirstElement() : null;
+    if (selected == element || (selected == null && element == root)) {
+      return;
+    }
+
+    synchronizing = true;
+    try {
+      viewer.setSelection(
+          element == root ? StructuredSelection.EMPTY : new StructuredSelection(element), true);
+    } finally {
+      synchronizing = false;
+    }
+  }
+
+  /** Select the name of the declaration chosen in the outline, in the editor. */
+  @Override
+  public void selectionChanged(SelectionChangedEvent event) {
+    super.selectionChanged(event);
+    ISelection selection = event.getSelection();
+    if (synchronizing || selection.isEmpty() || !(selection instanceof IStructuredSelection)) {
+      return;
+    }
+
+    IDocument document = editor.getDocumentProvider().getDocument(editor.getEditorInput());
+    if (document == null) {
+      return;
+    }
+
+    // The outline may lag behind the last edits, so the offsets may be past the end.
+    Element element = (Element) ((IStructuredSelection) selection).getFirstElement();
+    TartNode node = element.node;
+    int length = document.getLength();
+    int start = Math.min(length, element.getStart());
+    int end = Math.min(length, start + node.getLength());
+    int nameStart = start;
+    int nameEnd = start;
+    if (node.getNameOffset() >= 0) {
+      nameStart = Math.min(length, start + node.getNameOffset());
+      nameEnd = Math.min(length, nameStart + node.getName().length());
+    }
+
+    synchronizing = true;
+    try {
+      editor.setHighlightRange(start, end - start, false);
+      editor.selectAndReveal(nameStart, nameEnd - nameStart);
+    } finally {
+      synchronizing = false;
+    }
+  }
+}
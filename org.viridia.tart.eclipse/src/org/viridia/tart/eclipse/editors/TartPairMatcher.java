@@ -0,0 +1,266 @@
+package org.viridia.tart.eclipse.editors;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.source.ICharacterPairMatcher;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Character pair matcher for the round, square and curly brackets in the code of a Tart
+ * document. Brackets in comments and in string and character literals are ignored, and each
+ * kind of bracket is counted on its own.
+ * <p>
+ * Rather than scanning the text between a bracket and its peer, the matcher finds the line of
+ * the peer in the document's {@link TartBracketIndex}, and scans only that line and the line
+ * of the bracket. The index is built from the start of the document as far as a match needs
+ * it, but never more than a batch of lines at a time on a match; when a match needs more than
+ * that, it fails, and the rest of the index is built a batch at a time while the display is
+ * idle. Once it is built, the {@link #setRematchAction rematch action} is run to match
+ * again.
+ * <p>
+ * Matching is turned off in large-file mode, from the level at which tokens are no longer
+ * colored.
+ */
+class TartPairMatcher implements ICharacterPairMatcher {
+  /** The number of lines indexed at a time. */
+  private static final int BATCH_LINES = 2000;
+
+  /** How long to wait between batches indexed while the display is idle, in milliseconds. */
+  private static final int BATCH_DELAY = 50;
+
+  private IDocument document;
+
+  /** The bracket index of the document, or null if matching is off for it. */
+  private TartBracketIndex index;
+
+  /** True if a batch of lines is waiting to be indexed. */
+  private boolean batchScheduled;
+
+  /** Run when the lines a failed match needed have all been indexed, or null. */
+  private Runnable rematchAction;
+
+  private int anchor;
+
+  /** The offset of the bracket at which the last count reached zero. */
+  private int peerOffset;
+
+  public IRegion match(IDocument doc, int offset) {
+    if (doc != document) {
+      setDocument(doc);
+    }
+
+    if (index == null || offset < 1 || offset > doc.getLength()) {
+      return null;
+    }
+
+    try {
+      return match(offset - 1);
+    } catch (BadLocationException e) {
+      return null;
+    }
+  }
+
+  public int getAnchor() {
+    return anchor;
+  }
+
+  public void clear() {
+    // Nothing to clear: the index stays valid until the document changes.
+  }
+
+  public void dispose() {
+    setDocument(null);
+  }
+
+  /**
+   * Set what to run when the index has been completed while the display was idle, after a
+   * match failed because the lines it needed were not indexed yet. The action should match
+   * the bracket at the caret again, as the highlight would otherwise only appear once the
+   * caret moves.
+   */
+  void setRematchAction(Runnable action) {
+    rematchAction = action;
+  }
+
+  /** Stop matching in the current document, and start matching in a new one. */
+  private void setDocument(IDocument doc) {
+    if (index != null) {
+      index.disconnect();
+      index = null;
+    }
+
+    document = doc;
+    if (doc != null
+        && TartLargeFileMode.getLevel(doc) < TartLargeFileMode.NO_TOKEN_COLORING) {
+      index = TartBracketIndex.connect(doc);
+    }
+  }
+
+  /** Return the region from the bracket at an offset to its peer, or null if it has none. */
+  private IRegion match(int offset) throws BadLocationException {
+    int line = document.getLineOfOffset(offset);
+    int count = index.scanBrackets(line);
+    int i = count - 1;
+    while (i >= 0 && index.getBracketOffset(i) > offset) {
+      --i;
+    }
+
+    if (i < 0 || index.getBracketOffset(i) != offset) {
+      return null;
+    }
+
+    char bracket = index.getBracket(i);
+    int kind = TartBracketIndex.getKind(bracket);
+    if (TartBracketIndex.isOpening(bracket)) {
+      anchor = LEFT;
+      int depth = countForward(kind, i + 1, count, 1);
+      if (depth == 0) {
+        return new Region(offset, peerOffset - offset + 1);
+      }
+
+      int peerLine = findClosingLine(kind, line + 1, depth);
+      if (peerLine < 0) {
+        return null;
+      }
+
+      depth += index.getDepthChange();
+      countForward(kind, 0, index.scanBrackets(peerLine), depth);
+      return new Region(offset, peerOffset - offset + 1);
+    } else {
+      anchor = RIGHT;
+      int depth = countBack(kind, i - 1, 1);
+      if (depth == 0) {
+        return new Region(peerOffset, offset - peerOffset + 1);
+      }
+
+      int peerLine = findOpeningLine(kind, line, depth);
+      if (peerLine < 0) {
+        return null;
+      }
+
+      depth -= index.getDepthChange();
+      countBack(kind, index.scanBrackets(peerLine) - 1, depth);
+      return new Region(peerOffset, offset - peerOffset + 1);
+    }
+  }
+
+  /**
+   * Count the brackets of a kind found by the last scan forwards from a given index, until
+   * the depth falls to zero, and return the depth reached. If it is zero, the offset of the
+   * bracket which closed the count is left in {@link #peerOffset}.
+   */
+  private int countForward(int kind, int from, int to, int depth) {
+    for (int i = from; i < to; ++i) {
+      char ch = index.getBracket(i);
+      if (TartBracketIndex.getKind(ch) == kind) {
+        depth += TartBracketIndex.isOpening(ch) ? 1 : -1;
+        if (depth == 0) {
+          peerOffset = index.getBracketOffset(i);
+          break;
+        }
+      }
+    }
+
+    return depth;
+  }
+
+  /** Count the brackets of a kind found by the last scan backwards from a given index. */
+  private int countBack(int kind, int from, int depth) {
+    for (int i = from; i >= 0; --i) {
+      char ch = index.getBracket(i);
+      if (TartBracketIndex.getKind(ch) == kind) {
+        depth += TartBracketIndex.isOpening(ch) ? -1 : 1;
+        if (depth == 0) {
+          peerOffset = index.getBracketOffset(i);
+          break;
+        }
+      }
+    }
+
+    return depth;
+  }
+
+  /**
+   * Find the line of the bracket which opens a bracket still open at the start of a line, or
+   * return -1 if there is none, or if the lines before the line are not indexed yet.
+   */
+  private int findOpeningLine(int kind, int line, int depth) throws BadLocationException {
+    if (!indexTo(line)) {
+      return -1;
+    }
+
+    return index.findOpeningLine(kind, line, depth);
+  }
+
+  /**
+   * Find the line of the bracket which closes a bracket open at the start of a line, or
+   * return -1 if there is none, or if the lines which would contain it are not indexed yet.
+   */
+  private int findClosingLine(int kind, int line, int depth) throws BadLocationException {
+    if (!indexTo(line)) {
+      return -1;
+    }
+
+    int found = index.findClosingLine(kind, line, depth);
+    if (found < 0 && !index.isComplete()) {
+      // Index one more batch now, which is enough for most blocks; without a display, index
+      // the rest of the document.
+      index.scanTo(Display.getCurrent() != null
+          ? index.getScannedLines() + BATCH_LINES : Integer.MAX_VALUE);
+      found = index.findClosingLine(kind, line, depth);
+      if (found < 0 && !index.isComplete()) {
+        scheduleBatch();
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Index the lines before a given line, if that can be done in one batch, and return true
+   * if they have been indexed. If not, index them while the display is idle. Without a
+   * display, as in the benchmarks, the lines are always indexed at once.
+   */
+  private boolean indexTo(int line) throws BadLocationException {
+    if (line - index.getScannedLines() > BATCH_LINES && Display.getCurrent() != null) {
+      scheduleBatch();
+      return false;
+    }
+
+    index.scanTo(line);
+    return true;
+  }
+
+  /** Index the next batch of lines when the display is next idle. */
+  private void scheduleBatch() {
+    Display display = Display.getCurrent();
+    if (batchScheduled || display == null) {
+      return;
+    }
+
+    batchScheduled = true;
+    final TartBracketIndex batchIndex = index;
+    display.timerExec(BATCH_DELAY, new Runnable() {
+      public void run() {
+        batchScheduled = false;
+        if (index != batchIndex || index.isComplete()) {
+          return;
+        }
+
+        try {
+          index.scanTo(index.getScannedLines() + BATCH_LINES);
+        } catch (BadLocationException e) {
+          return;
+        }
+
+        if (!index.isComplete()) {
+          scheduleBatch();
+        } else if (rematchAction != null) {
+          rematchAction.run();
+        }
+      }
+    });
+  }
+}
@@ -1,8 +1,25 @@
 package org.viridia.tart.eclipse.editors;
 
-import org.eclipse.jface.text.rules.*;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.rules.IPartitionTokenScanner;
+import org.eclipse.jface.text.rules.IToken;
+import org.eclipse.jface.text.rules.Token;
+import org.viridia.tart.eclipse.lexer.TartPartitionLexer;
+import org.viridia.tart.eclipse.lexer.TokenKind;
 
-public class TartPartitionScanner extends RuleBasedPartitionScanner {
+/**
+ * Partition scanner which adapts {@link TartPartitionLexer} to the document partitioner.
+ * <p>
+ * After an edit, the partitioner resumes scanning near the edit and stops as soon as the
+ * partitions it finds match the old ones again, so the cost of repartitioning depends on
+ * how far the edit's effect reaches rather than on the size of the document. To make that
+ * safe, a scan which resumes in code is moved back to the start of the line, since a comment
+ * or literal which starts earlier on the line may change how the edited text is read. It is
+ * moved further back, to the nearest unclosed block comment opener, if there is one in the
+ * same run of code: the edit may have closed it.
+ */
+public class TartPartitionScanner implements IPartitionTokenScanner {
   public final static String TART_MULTI_LINE_COMMENT = "__tart_single_line_comment";
   public final static String TART_SINGLE_LINE_COMMENT = "__tart_multi_line_comment";
   public final static String TART_DOC_COMMENT = "__tart_doc_comment";
@@ -10,13 +27,103 @@ public class TartPartitionScanner extends RuleBasedPartitionScanner {
   private static IToken multiLineComment = new Token(TART_MULTI_LINE_COMMENT);
   private static IToken singleLineComment = new Token(TART_SINGLE_LINE_COMMENT);
   private static IToken docComment = new Token(TART_DOC_COMMENT);
+  private static IToken code = new Token(null);
 
-  public TartPartitionScanner() {
-    setPredicateRules(new IPredicateRule[] {
-        new MultiLineRule("/**", "*/", docComment),
-        new MultiLineRule("/*", "*/", multiLineComment),
-        new EndOfLineRule("///", docComment),
-        new EndOfLineRule("//", singleLineComment),
-    });
+  private final TartPartitionLexer lexer = new TartPartitionLexer();
+  private final DocumentCharSequence text = new DocumentCharSequence();
+
+  /**
+   * The start of a block comment opener which has no closing delimiter after it, or -1;
+   * and the document it was found in, and that document's length at the time.
+   */
+  private int unclosedStart = -1;
+  private IDocument unclosedDocument;
+  private int unclosedDocumentLength;
+
+  public void setRange(IDocument document, int offset, int length) {
+    if (document != unclosedDocument || offset <= unclosedStart) {
+      unclosedStart = -1;
+    }
+
+    scan(document, offset, length);
+  }
+
+  public void setPartialRange(IDocument document, int offset, int length, String contentType,
+      int partitionOffset) {
+    int end = offset + length;
+    if (contentType != null && !IDocument.DEFAULT_CONTENT_TYPE.equals(contentType)) {
+      if (partitionOffset >= 0 && partitionOffset < offset) {
+        // Resuming inside a comment: rescan it from the beginning.
+        offset = partitionOffset;
+      }
+    } else {
+      updateUnclosedStart(document, offset);
+      try {
+        offset = Math.max(partitionOffset,
+            Math.min(offset, document.getLineInformationOfOffset(offset).getOffset()));
+      } catch (BadLocationException e) {
+      }
+
+      if (unclosedStart >= Math.max(0, partitionOffset) && unclosedStart < offset) {
+        offset = unclosedStart;
+      }
+    }
+
+    scan(document, offset, end - offset);
+  }
+
+  private void scan(IDocument document, int offset, int length) {
+    text.reset(document);
+    lexer.reset(text, offset, offset + length);
+    unclosedDocument = document;
+    unclosedDocumentLength = document.getLength();
+  }
+
+  /**
+   * Move the known unclosed block comment opener to account for an edit at the given
+   * offset, and forget it if it is no longer there.
+   */
+  private void updateUnclosedStart(IDocument document, int offset) {
+    if (document != unclosedDocument || unclosedStart < 0) {
+      unclosedStart = -1;
+      return;
+    }
+
+    if (offset <= unclosedStart) {
+      unclosedStart += document.getLength() - unclosedDocumentLength;
+    }
+
+    try {
+      if (unclosedStart < 0 || document.getChar(unclosedStart) != '/'
+          || document.getChar(unclosedStart + 1) != '*') {
+        unclosedStart = -1;
+      }
+    } catch (BadLocationException e) {
+      unclosedStart = -1;
+    }
+  }
+
+  public IToken nextToken() {
+    int kind = lexer.next();
+    int unclosed = lexer.getFirstUnclosed();
+    if (unclosed >= 0 && (unclosedStart < 0 || unclosed < unclosedStart)) {
+      unclosedStart = unclosed;
+    }
+
+    switch (kind) {
+      case TokenKind.EOF: return Token.EOF;
+      case TokenKind.SINGLE_LINE_COMMENT: return singleLineComment;
+      case TokenKind.MULTI_LINE_COMMENT: return multiLineComment;
+      case TokenKind.DOC_COMMENT: return docComment;
+      default: return code;
+    }
+  }
+
+  public int getTokenOffset() {
+    return lexer.getTokenStart();
+  }
+
+  public int getTokenLength() {
+    return lexer.getTokenEnd() - lexer.getTokenStart();
   }
 }
@@ -0,0 +1,194 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.reconciler.DirtyRegion;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategyExtension;
+import org.viridia.tart.eclipse.parser.TartNode;
+import org.viridia.tart.eclipse.parser.TartParser;
+
+/**
+ * Keeps the syntax tree of a Tart document up to date. It runs on the reconciler's
+ * background thread, after the user has stopped typing for a moment.
+ * <p>
+ * The edits made since the last parse are merged into a single changed range as they happen,
+ * and the next reconcile reparses the document incrementally over that range, so its cost
+ * follows the size of the edits rather than the size of the document. The document is read in
+ * place rather than copied. Since it may be modified while the parser reads it, every edit
+ * bumps a version number, and a tree parsed while the version changed is thrown away; the
+ * changed range is kept, and the next reconcile tries again.
+ * <p>
+ * Documents from {@link TartLargeFileMode#NO_PARTITIONING} up are not parsed at all.
+ */
+public class TartReconcilingStrategy implements IReconcilingStrategy,
+    IReconcilingStrategyExtension, IDocumentListener {
+  /** Notified when the syntax tree of the document has been rebuilt. */
+  public interface SyntaxTreeListener {
+    /**
+     * Called on the reconciler thread after the document has been parsed.
+     *
+     * @param document The document.
+     * @param root The root of its new syntax tree.
+     */
+    void syntaxTreeChanged(IDocument document, TartNode root);
+  }
+
+  private final TartParser parser = new TartParser();
+  private final List<SyntaxTreeListener> listeners =
+      new CopyOnWriteArrayList<SyntaxTreeListener>();
+
+  // The fields below are guarded by the lock on this.
+
+  private IDocument document;
+
+  /** The latest syntax tree, or null if the document has not been parsed yet. */
+  private TartNode root;
+
+  /**
+   * The range which has changed since the tree was parsed, as the start offset and the end
+   * offsets before and after the edits, or -1 if nothing has changed.
+   */
+  private int editStart = -1;
+  private int editOldEnd;
+  private int editNewEnd;
+
+  /** Incremented before and after every edit, so it is odd while an edit is in progress. */
+  private long version;
+
+  public synchronized void setDocument(IDocument document) {
+    if (this.document != null) {
+      this.document.removeDocumentListener(this);
+    }
+
+    this.document = document;
+    root = null;
+    editStart = -1;
+    if (document != null) {
+      document.addDocumentListener(this);
+    }
+  }
+
+  /** Stop listening to the document. */
+  public synchronized void dispose() {
+    setDocument(null);
+    listeners.clear();
+  }
+
+  public void setProgressMonitor(IProgressMonitor monitor) {
+  }
+
+  public void initialReconcile() {
+    reparse();
+  }
+
+  public void reconcile(DirtyRegion dirtyRegion, IRegion subRegion) {
+    // The dirty regions of the reconciler are merged too coarsely to reparse from; the
+    // changed range is tracked by the document listener instead.
+    reparse();
+  }
+
+  public void reconcile(IRegion partition) {
+    reparse();
+  }
+
+  /** Return the latest syntax tree, or null if the document has not been parsed yet. */
+  public synchronized TartNode getSyntaxTree() {
+    return root;
+  }
+
+  /**
+   * Return true if a tree is the latest syntax tree, and the document has not been modified
+   * since it was parsed, not even by an edit which is still in progress. A listener which
+   * reads the document can call this afterwards to know that what it read matches the tree.
+   */
+  public synchronized boolean isCurrent(TartNode tree) {
+    return tree != null && tree == root && editStart < 0 && (version & 1) == 0;
+  }
+
+  public void addSyntaxTreeListener(SyntaxTreeListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeSyntaxTreeListener(SyntaxTreeListener listener) {
+    listeners.remove(listener);
+  }
+
+  public synchronized void documentAboutToBeChanged(DocumentEvent event) {
+    ++version;
+  }
+
+  public synchronized void documentChanged(DocumentEvent event) {
+    ++version;
+    if (root == null) {
+      return;
+    }
+
+    int start = event.getOffset();
+    int oldEnd = start + event.getLength();
+    int newEnd = start + (event.getText() == null ? 0 : event.getText().length());
+    if (editStart < 0) {
+      editStart = start;
+      editOldEnd = oldEnd;
+      editNewEnd = newEnd;
+    } else {
+      // Map the ends of the two edits through each other, so that the merged range covers
+      // both, in the coordinates before the first and after the second.
+      int mergedOldEnd = oldEnd <= editNewEnd ? editOldEnd : oldEnd - (editNewEnd - editOldEnd);
+      int mergedNewEnd = editNewEnd >= oldEnd ? editNewEnd + (newEnd - oldEnd) : newEnd;
+      editStart = Math.min(editStart, start);
+      editOldEnd = mergedOldEnd;
+      editNewEnd = mergedNewEnd;
+    }
+  }
+
+  /** Parse the document again, if it has changed since it was last parsed. */
+  private void reparse() {
+    IDocument doc;
+    TartNode oldRoot;
+    int start;
+    int oldEnd;
+    int newEnd;
+    long startVersion;
+    synchronized (this) {
+      if (document == null || (version & 1) != 0 || (root != null && editStart < 0)
+          || TartLargeFileMode.getLevel(document) >= TartLargeFileMode.NO_PARTITIONING) {
+        return;
+      }
+
+      doc = document;
+      oldRoot = root;
+      start = editStart;
+      oldEnd = editOldEnd;
+      newEnd = editNewEnd;
+      startVersion = version;
+    }
+
+    TartNode newRoot;
+    try {
+      newRoot = parser.parse(new DocumentCharSequence(doc), oldRoot, start, oldEnd, newEnd);
+    } catch (IndexOutOfBoundsException e) {
+      // The document was shortened under the parser.
+      return;
+    }
+
+    synchronized (this) {
+      if (version != startVersion || document != doc) {
+        return;
+      }
+
+      root = newRoot;
+      editStart = -1;
+    }
+
+    for (SyntaxTreeListener listener : listeners) {
+      listener.syntaxTreeChanged(doc, newRoot);
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.text.edits.DeleteEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+
+/**
+ * The pipeline of {@link SaveParticipant}s run when a Tart document is saved. However many
+ * participants there are, the document is read in a single pass, and their edits are merged
+ * into a single {@link MultiTextEdit}, to be applied as one change.
+ * <p>
+ * Participants are run in the order they were added. A participant which removes text from
+ * the end of a line should come before the others, so that they don't edit the text it
+ * removes.
+ */
+public class TartSaveActions {
+  private final List<SaveParticipant> participants = new ArrayList<SaveParticipant>();
+
+  /** Add a participant to the end of the pipeline. */
+  public void add(SaveParticipant participant) {
+    participants.add(participant);
+  }
+
+  /** Return true if there are no participants. */
+  public boolean isEmpty() {
+    return participants.isEmpty();
+  }
+
+  /**
+   * Compute the edits of all the participants for a document. The document is not modified.
+   *
+   * @return The merged edits, which may have no children.
+   */
+  public MultiTextEdit computeEdit(IDocument document) {
+    MultiTextEdit edit = new MultiTextEdit();
+    DocumentCharSequence text = new DocumentCharSequence(document);
+    List<SaveParticipant> active = new ArrayList<SaveParticipant>(participants.size());
+    List<SaveParticipant> lineVisitors = new ArrayList<SaveParticipant>(participants.size());
+    for (SaveParticipant participant : participants) {
+      if (participant.begin(document, text)) {
+        active.add(participant);
+        if (participant.visitsLines()) {
+          lineVisitors.add(participant);
+        }
+      }
+    }
+
+    if (active.isEmpty()) {
+      return edit;
+    }
+
+    int length = text.length();
+    int lineStart = 0;
+    int lineEnd = length;
+    if (lineVisitors.isEmpty()) {
+      // Nobody needs the lines: just find the start of the last one.
+      while (lineStart < length && !isDelimiter(text.charAt(length - 1 - lineStart))) {
+        ++lineStart;
+      }
+
+      lineStart = length - lineStart;
+    } else {
+      int pos = 0;
+      for (;;) {
+        lineStart = pos;
+        while (pos < length && !isDelimiter(text.charAt(pos))) {
+          ++pos;
+        }
+
+        lineEnd = pos;
+        for (SaveParticipant participant : lineVisitors) {
+          lineEnd = participant.line(text, lineStart, lineEnd, edit);
+        }
+
+        if (pos == length) {
+          break;
+        }
+
+        if (text.charAt(pos++) == '\r' && pos < length && text.charAt(pos) == '\n') {
+          ++pos;
+        }
+      }
+    }
+
+    for (SaveParticipant participant : active) {
+      participant.end(text, lineStart, lineEnd, edit);
+    }
+
+    return edit;
+  }
+
+  private static boolean isDelimiter(char ch) {
+    return ch == '\n' || ch == '\r';
+  }
+
+  /** Removes the spaces and tabs at the end of each line. */
+  public static class TrailingWhitespace extends SaveParticipant {
+    @Override
+    public int line(CharSequence text, int start, int end, MultiTextEdit edit) {
+      int contentEnd = end;
+      while (contentEnd > start) {
+        char ch = text.charAt(contentEnd - 1);
+        if (ch != ' ' && ch != '\t') {
+          break;
+        }
+
+        --contentEnd;
+      }
+
+      if (contentEnd < end) {
+        edit.addChild(new DeleteEdit(contentEnd, end - contentEnd));
+      }
+
+      return contentEnd;
+    }
+  }
+
+  /** Replaces the tabs in the indentation of each line with spaces. */
+  public static class TabsToSpaces extends SaveParticipant {
+    private final int tabWidth;
+
+    /**
+     * Construct a TabsToSpaces participant.
+     *
+     * @param tabWidth The number of columns between tab stops.
+     */
+    public TabsToSpaces(int tabWidth) {
+      this.tabWidth = Math.max(1, tabWidth);
+    }
+
+    @Override
+    public int line(CharSequence text, int start, int end, MultiTextEdit edit) {
+      int column = 0;
+      boolean hasTab = false;
+      int pos = start;
+      for (; pos < end; ++pos) {
+        char ch = text.charAt(pos);
+        if (ch == '\t') {
+          column += tabWidth - column % tabWidth;
+          hasTab = true;
+        } else if (ch == ' ') {
+          ++column;
+        } else {
+          break;
+        }
+      }
+
+      if (hasTab) {
+        StringBuilder spaces = new StringBuilder(column);
+        for (int i = 0; i < column; ++i) {
+          spaces.append(' ');
+        }
+
+        edit.addChild(new ReplaceEdit(start, pos - start, spaces.toString()));
+      }
+
+      return end;
+    }
+  }
+
+  /** Adds a line delimiter to the end of the document, if its last line isn't empty. */
+  public static class FinalNewline extends SaveParticipant {
+    private String delimiter;
+
+    @Override
+    public boolean begin(IDocument document, CharSequence text) {
+      int length = text.length();
+      if (length == 0 || isDelimiter(text.charAt(length - 1))) {
+        return false;
+      }
+
+      delimiter = TextUtilities.getDefaultLineDelimiter(document);
+      return true;
+    }
+
+    @Override
+    public boolean visitsLines() {
+      return false;
+    }
+
+    @Override
+    public void end(CharSequence text, int start, int end, MultiTextEdit edit) {
+      if (end > start) {
+        edit.addChild(new InsertEdit(text.length(), delimiter));
+      }
+    }
+  }
+}
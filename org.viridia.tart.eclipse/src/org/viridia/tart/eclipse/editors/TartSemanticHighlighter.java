@@ -0,0 +1,365 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextPresentationListener;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.ITextViewerExtension2;
+import org.eclipse.jface.text.ITextViewerExtension4;
+import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.TextPresentation;
+import org.eclipse.swt.custom.StyleRange;
+import org.eclipse.swt.custom.StyledText;
+import org.viridia.tart.eclipse.parser.TartNode;
+import org.viridia.tart.eclipse.parser.TartSemanticAnalyzer;
+
+/**
+ * Highlights the declared names of a document in the styles of their semantic kinds, on top
+ * of the styles of their tokens.
+ * <p>
+ * The names are found by a {@link TartSemanticAnalyzer} on the reconciler thread, whenever
+ * the syntax tree has been rebuilt, and handed to the display thread only if the document has
+ * not been modified since it was parsed. There the new ranges are compared with the old ones,
+ * and only the parts of the document where the kind of a range changed are repainted: those
+ * on screen at once, and the rest as they scroll into view. The ranges are merged into every
+ * presentation the viewer applies.
+ * <p>
+ * Between two analyses, the edits made to the document are merged into a single changed
+ * range, and the ranges past it are shifted as they are read, so that an edit costs no more
+ * than updating three offsets. Ranges which touch the edits are dropped until the next
+ * analysis. In {@link TartLargeFileMode large-file mode}, where code is not colored by token
+ * kind, the analysis is skipped and no names are highlighted.
+ */
+class TartSemanticHighlighter implements ITextPresentationListener, IDocumentListener,
+    TartReconcilingStrategy.SyntaxTreeListener {
+  /** Changed ranges closer together than this, in characters, are repainted as one. */
+  private static final int MERGE_GAP = 128;
+
+  private final ITextViewer viewer;
+  private final TartStyleManager styleManager;
+  private final TartBackgroundHighlighter background;
+  private final TartReconcilingStrategy strategy;
+
+  // The fields below are only accessed from the reconciler thread.
+
+  private final TartSemanticAnalyzer analyzer = new TartSemanticAnalyzer();
+
+  /** The document last analyzed, and whether it is small enough to be highlighted. */
+  private IDocument analyzedDocument;
+  private boolean enabled;
+
+  // The fields below are only accessed from the display thread.
+
+  /** The document which the ranges belong to, and the ranges of its last analysis. */
+  private IDocument document;
+  private TartSemanticAnalyzer.Ranges ranges;
+
+  /**
+   * The range which has changed since the ranges were found, as the start offset and the
+   * end offsets before and after the edits, or -1 if nothing has changed.
+   */
+  private int editStart = -1;
+  private int editOldEnd;
+  private int editNewEnd;
+
+  /** The style ranges being built by applyTextPresentation(), reused between calls. */
+  private final List<StyleRange> styleRanges = new ArrayList<StyleRange>();
+
+  /**
+   * Construct a highlighter for a viewer, which must implement both
+   * {@link ITextViewerExtension2} and {@link ITextViewerExtension4}. It must be constructed
+   * after the background highlighter, so that its styles are merged after the tokens.
+   */
+  TartSemanticHighlighter(ITextViewer viewer, TartStyleManager styleManager,
+      TartBackgroundHighlighter background, TartReconcilingStrategy strategy) {
+    this.viewer = viewer;
+    this.styleManager = styleManager;
+    this.background = background;
+    this.strategy = strategy;
+    ((ITextViewerExtension4) viewer).addTextPresentationListener(this);
+    strategy.addSyntaxTreeListener(this);
+  }
+
+  /** Stop listening to the viewer, the document and the reconciling strategy. */
+  void dispose() {
+    strategy.removeSyntaxTreeListener(this);
+    ((ITextViewerExtension4) viewer).removeTextPresentationListener(this);
+    setDocument(null);
+  }
+
+  public void syntaxTreeChanged(final IDocument doc, final TartNode root) {
+    if (doc != analyzedDocument) {
+      analyzedDocument = doc;
+      enabled = TartLargeFileMode.getLevel(doc) < TartLargeFileMode.NO_TOKEN_COLORING;
+    }
+
+    if (!enabled) {
+      return;
+    }
+
+    final TartSemanticAnalyzer.Ranges result;
+    try {
+      result = analyzer.analyze(new DocumentCharSequence(doc), root);
+    } catch (IndexOutOfBoundsException e) {
+      // The document was shortened under the analyzer.
+      return;
+    }
+
+    if (!strategy.isCurrent(root)) {
+      // The document was modified while it was read, so what was found in the nodes which
+      // were analyzed for the first time may be wrong.
+      return;
+    }
+
+    analyzer.commit();
+    StyledText widget = viewer.getTextWidget();
+    if (widget == null || widget.isDisposed()) {
+      return;
+    }
+
+    widget.getDisplay().asyncExec(new Runnable() {
+      public void run() {
+        install(doc, root, result);
+      }
+    });
+  }
+
+  /** Replace the ranges by those of a finished analysis. Runs on the display thread. */
+  private void install(IDocument doc, TartNode root, TartSemanticAnalyzer.Ranges result) {
+    StyledText widget = viewer.getTextWidget();
+    if (widget == null || widget.isDisposed() || viewer.getDocument() != doc
+        || !strategy.isCurrent(root)) {
+      // The document has been modified since; the next analysis will be installed instead.
+      return;
+    }
+
+    if (doc != document) {
+      setDocument(doc);
+    }
+
+    // The changes are found before the ranges are replaced, since they depend on the edits
+    // made since the old ranges were found, and repainted after, so that the new ranges are
+    // merged into the new presentation.
+    int[] changes = findChanges(ranges, result);
+    ranges = result;
+    editStart = -1;
+    repaint(changes);
+  }
+
+  /** Start listening to the edits of another document, dropping the ranges of the old one. */
+  private void setDocument(IDocument doc) {
+    if (document != null) {
+      document.removeDocumentListener(this);
+    }
+
+    document = doc;
+    ranges = null;
+    editStart = -1;
+    if (doc != null) {
+      doc.addDocumentListener(this);
+    }
+  }
+
+  /**
+   * Compare the old ranges, as shifted by the edits, with the new ones, and return the parts
+   * of the document where they differ, as pairs of start and end offsets in ascending order.
+   */
+  private int[] findChanges(TartSemanticAnalyzer.Ranges oldRanges,
+      TartSemanticAnalyzer.Ranges newRanges) {
+    int[] changes = new int[16];
+    int count = 0;
+    int changeStart = -1;
+    int changeEnd = -1;
+    int oldSize = oldRanges != null ? oldRanges.size() : 0;
+    int newSize = newRanges.size();
+    int i = 0;
+    int j = 0;
+    while (i < oldSize || j < newSize) {
+      int oldStart = Integer.MAX_VALUE;
+      if (i < oldSize) {
+        oldStart = mapOffset(oldRanges, i);
+        if (oldStart < 0) {
+          // Dropped by an edit, and so not painted.
+          ++i;
+          continue;
+        }
+      }
+
+      int newStart = j < newSize ? newRanges.getOffset(j) : Integer.MAX_VALUE;
+      if (oldStart == newStart && oldRanges.getLength(i) == newRanges.getLength(j)
+          && oldRanges.getKind(i) == newRanges.getKind(j)) {
+        ++i;
+        ++j;
+        continue;
+      }
+
+      int start;
+      int end;
+      if (oldStart <= newStart) {
+        start = oldStart;
+        end = oldStart + oldRanges.getLength(i++);
+      } else {
+        start = newStart;
+        end = newStart + newRanges.getLength(j++);
+      }
+
+      if (changeStart >= 0 && start <= changeEnd + MERGE_GAP) {
+        changeEnd = Math.max(changeEnd, end);
+        continue;
+      }
+
+      if (changeStart >= 0) {
+        changes = append(changes, count, changeStart, changeEnd);
+        count += 2;
+      }
+      changeStart = start;
+      changeEnd = end;
+    }
+
+    if (changeStart >= 0) {
+      changes = append(changes, count, changeStart, changeEnd);
+      count += 2;
+    }
+
+    return Arrays.copyOf(changes, count);
+  }
+
+  /** Store a pair of offsets after the first count entries of an array, growing it if full. */
+  private static int[] append(int[] array, int count, int start, int end) {
+    if (count + 2 > array.length) {
+      array = Arrays.copyOf(array, array.length * 2);
+    }
+
+    array[count] = start;
+    array[count + 1] = end;
+    return array;
+  }
+
+  /**
+   * Repaint the changed parts of the document which are on screen at once, and mark the rest
+   * to be repainted as they scroll into view.
+   */
+  private void repaint(int[] changes) {
+    if (changes.length == 0) {
+      return;
+    }
+
+    IRegion visible = background.getVisibleRegion(document);
+    int visibleStart = visible.getOffset();
+    int visibleEnd = visibleStart + visible.getLength();
+    for (int i = 0; i < changes.length; i += 2) {
+      int start = Math.max(changes[i], visibleStart);
+      int end = Math.min(changes[i + 1], visibleEnd);
+      if (start < end) {
+        ((ITextViewerExtension2) viewer).invalidateTextPresentation(start, end - start);
+      }
+    }
+
+    // The changes off screen are marked as one region above the screen and one below it.
+    int first = changes[0];
+    int last = changes[changes.length - 1];
+    background.repaintLater(document, first, Math.min(last, visibleStart));
+    background.repaintLater(document, Math.max(first, visibleEnd), last);
+  }
+
+  /**
+   * Return the offset of a range in the document as it is now, or -1 if the range has been
+   * dropped because it touches the edits made since it was found.
+   */
+  private int mapOffset(TartSemanticAnalyzer.Ranges rangesToMap, int index) {
+    int start = rangesToMap.getOffset(index);
+    if (editStart < 0 || start + rangesToMap.getLength(index) < editStart) {
+      return start;
+    } else if (start > editOldEnd) {
+      return start + editNewEnd - editOldEnd;
+    }
+
+    return -1;
+  }
+
+  /** Return the offset in the analyzed text which an offset in the document comes from. */
+  private int unmapOffset(int offset) {
+    if (editStart < 0 || offset <= editStart) {
+      return offset;
+    } else if (offset >= editNewEnd) {
+      return offset - editNewEnd + editOldEnd;
+    }
+
+    return editStart;
+  }
+
+  public void applyTextPresentation(TextPresentation presentation) {
+    if (ranges == null || document != viewer.getDocument()) {
+      return;
+    }
+
+    IRegion extent = presentation.getExtent();
+    int start = extent.getOffset();
+    int end = start + extent.getLength();
+    if (end - start > TartDamagerRepairer.LAZY_THRESHOLD) {
+      // Merge the names on screen only, so that repainting a large region costs no more than
+      // repainting the screen, and merge the rest as it scrolls into view.
+      IRegion visible = background.getVisibleRegion(document);
+      int visibleStart = Math.min(end, Math.max(start, visible.getOffset()));
+      int visibleEnd = Math.max(visibleStart,
+          Math.min(end, visible.getOffset() + visible.getLength()));
+      background.repaintLater(document, start, visibleStart);
+      background.repaintLater(document, visibleEnd, end);
+      start = visibleStart;
+      end = visibleEnd;
+    }
+
+    styleRanges.clear();
+    for (int i = ranges.indexOf(unmapOffset(start)); i < ranges.size(); ++i) {
+      int rangeStart = mapOffset(ranges, i);
+      if (rangeStart < 0) {
+        continue;
+      } else if (rangeStart >= end) {
+        break;
+      }
+
+      int styleStart = Math.max(start, rangeStart);
+      int styleEnd = Math.min(end, rangeStart + ranges.getLength(i));
+      if (styleStart < styleEnd) {
+        TextAttribute attr = styleManager.getSemanticAttribute(ranges.getKind(i));
+        styleRanges.add(new StyleRange(styleStart, styleEnd - styleStart,
+            attr.getForeground(), attr.getBackground(), attr.getStyle()));
+      }
+    }
+
+    if (!styleRanges.isEmpty()) {
+      presentation.replaceStyleRanges(styleRanges.toArray(new StyleRange[styleRanges.size()]));
+    }
+  }
+
+  public void documentAboutToBeChanged(DocumentEvent event) {
+  }
+
+  public void documentChanged(DocumentEvent event) {
+    if (ranges == null) {
+      return;
+    }
+
+    int start = event.getOffset();
+    int oldEnd = start + event.getLength();
+    int newEnd = start + (event.getText() == null ? 0 : event.getText().length());
+    if (editStart < 0) {
+      editStart = start;
+      editOldEnd = oldEnd;
+      editNewEnd = newEnd;
+    } else {
+      // Merged the same way as by the reconciling strategy.
+      int mergedOldEnd = oldEnd <= editNewEnd ? editOldEnd : oldEnd - (editNewEnd - editOldEnd);
+      int mergedNewEnd = editNewEnd >= oldEnd ? editNewEnd + (newEnd - oldEnd) : newEnd;
+      editStart = Math.min(editStart, start);
+      editOldEnd = mergedOldEnd;
+      editNewEnd = mergedNewEnd;
+    }
+  }
+}
@@ -2,13 +2,19 @@ package org.viridia.tart.eclipse.editors;
 
 import java.text.BreakIterator;
 
+import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentRewriteSession;
+import org.eclipse.jface.text.DocumentRewriteSessionType;
 import org.eclipse.jface.text.IDocument;
-import org.eclipse.jface.text.IFindReplaceTarget;
-import org.eclipse.jface.text.IFindReplaceTargetExtension;
-import org.eclipse.jface.text.IFindReplaceTargetExtension3;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.IRewriteTarget;
+import org.eclipse.jface.text.source.ICharacterPairMatcher;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.text.source.ISourceViewerExtension;
 import org.eclipse.jface.text.source.IVerticalRuler;
@@ -18,7 +24,15 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.ST;
 import org.eclipse.swt.custom.StyledText;
 import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.layout.FillLayout;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Label;
+import org.eclipse.text.edits.MalformedTreeException;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.editors.text.TextEditor;
 import org.eclipse.ui.texteditor.AbstractDecoratedTextEditorPreferenceConstants;
 import org.eclipse.ui.texteditor.DefaultRangeIndicator;
@@ -26,13 +40,36 @@ import org.eclipse.ui.texteditor.ITextEditorActionDefinitionIds;
 import org.eclipse.ui.texteditor.IUpdate;
 import org.eclipse.ui.texteditor.SourceViewerDecorationSupport;
 import org.eclipse.ui.texteditor.TextNavigationAction;
+import org.eclipse.ui.views.contentoutline.IContentOutlinePage;
 import org.viridia.tart.eclipse.Activator;
+import org.viridia.tart.eclipse.preferences.PreferenceBatch;
 import org.viridia.tart.eclipse.preferences.TartPrefs;
 
 public class TartSourceEditor extends TextEditor {
-  private final TartColorManager colorManager;
   private final TartStyleManager styleManager;
 
+  /** Banner shown above the text when the document is opened in large-file mode. */
+  private Label largeFileBanner;
+
+  /** Matches brackets for highlighting and for the go-to-matching-bracket action. */
+  private final TartPairMatcher pairMatcher = new TartPairMatcher();
+
+  /** Buffered view of the document, reset for each sub-word search. */
+  private final DocumentCharSequence documentChars = new DocumentCharSequence();
+
+  /** Finds the sub-word boundaries for word navigation. */
+  private final TartWordIterator wordIterator = new TartWordIterator(true);
+
+  /** The outline of the declarations, created when the outline view first asks for it. */
+  private TartOutlinePage outlinePage;
+
+  /** Command and action ID of the go-to-matching-bracket action. */
+  public static final String GOTO_MATCHING_BRACKET =
+      Activator.PLUGIN_ID + ".gotoMatchingBracket";
+
+  /** The context in which the editor's key bindings are active. */
+  public static final String EDITOR_CONTEXT = Activator.PLUGIN_ID + ".tartEditorScope";
+
   /**
    * Preference key for print margin ruler color.
    */
@@ -41,12 +78,80 @@ public class TartSourceEditor extends TextEditor {
 
   public TartSourceEditor() {
     super();
-    colorManager = new TartColorManager();
-    styleManager = new TartStyleManager(colorManager);
+    styleManager = Activator.getDefault().acquireStyleManager();
     setPreferenceStore(Activator.getDefault().getPreferenceStore());
     setSourceViewerConfiguration(new TartSourceViewerConfiguration(styleManager));
     setDocumentProvider(new TartDocumentProvider());
     setRangeIndicator(new DefaultRangeIndicator()); // enables standard
+    // Start indexing the workspace, so that the index is ready by the time it is needed.
+    Activator.getDefault().getWorkspaceIndex();
+  }
+
+  @Override
+  public void createPartControl(Composite parent) {
+    Composite composite = new Composite(parent, SWT.NONE);
+    GridLayout layout = new GridLayout(1, false);
+    layout.marginWidth = 0;
+    layout.marginHeight = 0;
+    layout.verticalSpacing = 0;
+    composite.setLayout(layout);
+
+    largeFileBanner = new Label(composite, SWT.WRAP);
+    largeFileBanner.setBackground(
+        parent.getDisplay().getSystemColor(SWT.COLOR_INFO_BACKGROUND));
+    largeFileBanner.setForeground(
+        parent.getDisplay().getSystemColor(SWT.COLOR_INFO_FOREGROUND));
+    largeFileBanner.setLayoutData(new GridData(SWT.FILL, SWT.BEGINNING, true, false));
+
+    Composite editorArea = new Composite(composite, SWT.NONE);
+    editorArea.setLayout(new FillLayout());
+    editorArea.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
+    super.createPartControl(editorArea);
+    updateLargeFileBanner();
+  }
+
+  @Override
+  protected void doSetInput(IEditorInput input) throws CoreException {
+    super.doSetInput(input);
+    updateLargeFileBanner();
+  }
+
+  /** Show or hide the large-file banner, according to the size of the current document. */
+  private void updateLargeFileBanner() {
+    if (largeFileBanner == null || largeFileBanner.isDisposed()) {
+      return;
+    }
+
+    IDocument document = getDocumentProvider().getDocument(getEditorInput());
+    String message = TartLargeFileMode.getDescription(TartLargeFileMode.getLevel(document));
+    largeFileBanner.setText(message != null ? message : "");
+    largeFileBanner.setVisible(message != null);
+    ((GridData) largeFileBanner.getLayoutData()).exclude = message == null;
+    largeFileBanner.getParent().layout();
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Object getAdapter(Class adapter) {
+    if (IContentOutlinePage.class.equals(adapter)) {
+      SourceViewerConfiguration configuration = getSourceViewerConfiguration();
+      if (outlinePage == null && configuration instanceof TartSourceViewerConfiguration) {
+        outlinePage = new TartOutlinePage(this,
+            ((TartSourceViewerConfiguration) configuration).getReconcilingStrategy());
+      }
+      if (outlinePage != null) {
+        return outlinePage;
+      }
+    }
+
+    return super.getAdapter(adapter);
+  }
+
+  /** Forget the outline page once the outline view has disposed of it. */
+  void outlinePageClosed(TartOutlinePage page) {
+    if (outlinePage == page) {
+      outlinePage = null;
+    }
   }
 
   @Override
@@ -59,6 +164,11 @@ public class TartSourceEditor extends TextEditor {
     return viewer;
   }
 
+  @Override
+  protected void initializeKeyBindingScopes() {
+    setKeyBindingScopes(new String[] { EDITOR_CONTEXT });
+  }
+
   @Override
   protected void configureSourceViewerDecorationSupport(SourceViewerDecorationSupport support) {
     super.configureSourceViewerDecorationSupport(support);
@@ -66,12 +176,77 @@ public class TartSourceEditor extends TextEditor {
 	    TartPrefs.TART_PRINT_MARGIN,
 	    TartPrefs.TART_PRINT_MARGIN_COLOR,
 		TartPrefs.TART_PRINT_MARGIN_COLUMN);
+    support.setCharacterPairMatcher(pairMatcher);
+    support.setMatchingCharacterPainterPreferenceKeys(
+        TartPrefs.MATCHING_BRACKETS, TartPrefs.MATCHING_BRACKETS_COLOR);
+    pairMatcher.setRematchAction(new Runnable() {
+      public void run() {
+        rematchBrackets();
+      }
+    });
+  }
+
+  /**
+   * Highlight the brackets matching the one at the caret again, by installing the painter
+   * afresh. Called when the bracket index has been completed after a match needed more of
+   * it than was indexed.
+   */
+  private void rematchBrackets() {
+    ISourceViewer viewer = getSourceViewer();
+    if (viewer == null || !getPreferenceStore().getBoolean(TartPrefs.MATCHING_BRACKETS)) {
+      return;
+    }
+
+    SourceViewerDecorationSupport support = getSourceViewerDecorationSupport(viewer);
+    support.hideMatchingCharacters();
+    support.showMatchingCharacters();
+  }
+
+  @Override
+  protected void createActions() {
+    super.createActions();
+
+    IAction action = new Action("Go to Matching Bracket") {
+      @Override
+      public void run() {
+        gotoMatchingBracket();
+      }
+    };
+    action.setActionDefinitionId(GOTO_MATCHING_BRACKET);
+    setAction(GOTO_MATCHING_BRACKET, action);
+  }
+
+  /**
+   * Move the caret to the bracket which matches the one just before it, or beep if there is
+   * none.
+   */
+  public void gotoMatchingBracket() {
+    ISourceViewer viewer = getSourceViewer();
+    if (viewer == null) {
+      return;
+    }
+
+    IRegion match = pairMatcher.match(viewer.getDocument(), viewer.getSelectedRange().x);
+    if (match == null) {
+      viewer.getTextWidget().getDisplay().beep();
+      return;
+    }
+
+    // Put the caret just inside the matching bracket, as a match from there leads back.
+    int target = pairMatcher.getAnchor() == ICharacterPairMatcher.RIGHT
+        ? match.getOffset() + 1 : match.getOffset() + match.getLength() - 1;
+    selectAndReveal(target, 0);
   }
 
   @Override
   protected void handlePreferenceStoreChanged(PropertyChangeEvent event) {
     String property = event.getProperty();
-    if (property.startsWith("TART_")) {
+    if (property.startsWith("TART_") && PreferenceBatch.isOpen()) {
+      // Handled all at once when the batch ends.
+      return;
+    }
+
+    if (property.startsWith("TART_") || property.equals(PreferenceBatch.BATCH_CHANGED)) {
       SourceViewerConfiguration configuration = getSourceViewerConfiguration();
       if (configuration instanceof TartSourceViewerConfiguration) {
         ((TartSourceViewerConfiguration) configuration).handlePropertyChangedEvent(event);
@@ -85,7 +260,8 @@ public class TartSourceEditor extends TextEditor {
   protected boolean affectsTextPresentation(PropertyChangeEvent event) {
     String property = event.getProperty();
     if (property.startsWith("TART_")) {
-      return true;
+      // Style changes are repainted by the repairer, visible lines first.
+      return false;
     }
 
     return super.affectsTextPresentation(event);
@@ -133,7 +309,12 @@ public class TartSourceEditor extends TextEditor {
   @Override
   public void dispose() {
     //Activator.getDefault().getPreferenceStore().removePropertyChangeListener(this);
-    colorManager.dispose();
+    SourceViewerConfiguration configuration = getSourceViewerConfiguration();
+    if (configuration instanceof TartSourceViewerConfiguration) {
+      ((TartSourceViewerConfiguration) configuration).dispose();
+    }
+    Activator.getDefault().releaseStyleManager();
+    pairMatcher.dispose();
     super.dispose();
   }
 
@@ -144,78 +325,83 @@ public class TartSourceEditor extends TextEditor {
 
   @Override
   public void doSave(IProgressMonitor progressMonitor) {
-    if (getPreferenceStore().getBoolean(TartPrefs.REMOVE_TRAILING_WHITESPACE)) {
-      removeTrailingWhitespace();
+    IPreferenceStore store = getPreferenceStore();
+    TartSaveActions saveActions = new TartSaveActions();
+    if (store.getBoolean(TartPrefs.REMOVE_TRAILING_WHITESPACE)) {
+      saveActions.add(new TartSaveActions.TrailingWhitespace());
+    }
+    if (store.getBoolean(TartPrefs.CONVERT_TABS_TO_SPACES)) {
+      saveActions.add(new TartSaveActions.TabsToSpaces(
+          getSourceViewerConfiguration().getTabWidth(getSourceViewer())));
     }
-    if (getPreferenceStore().getBoolean(TartPrefs.ENSURE_NEWLINE_AT_EOF)) {
-      // TODO: Implement
+    if (store.getBoolean(TartPrefs.ENSURE_NEWLINE_AT_EOF)) {
+      saveActions.add(new TartSaveActions.FinalNewline());
     }
+    applySaveActions(saveActions);
     super.doSave(progressMonitor);
   }
 
+  /** Remove the spaces and tabs at the ends of lines, as a single undoable change. */
   public void removeTrailingWhitespace() {
-    if (isEditable()) {
-      IFindReplaceTarget findReplaceTarget =
-          (IFindReplaceTarget) getAdapter(IFindReplaceTarget.class);
-      if (findReplaceTarget instanceof IFindReplaceTargetExtension3) {
-        IFindReplaceTargetExtension3 findReplaceTargetExtension3 =
-            (IFindReplaceTargetExtension3) findReplaceTarget;
-        try {
-          IFindReplaceTargetExtension findReplaceTargetExtension =
-              (IFindReplaceTargetExtension) findReplaceTarget;
-          rememberSelection();
-          findReplaceTargetExtension.beginSession();
-          int offset = 0;
-          while (offset != -1) {
-            offset = findReplaceTargetExtension3.findAndSelect(
-                offset, "[\\t ]+$", true, false, false, true);
-            if (offset == -1) {
-              break;
-            }
-            findReplaceTargetExtension3.replaceSelection("", false);
-          }
-        } finally {
-          IFindReplaceTargetExtension findReplaceTargetExtension =
-              (IFindReplaceTargetExtension) findReplaceTarget;
-          findReplaceTargetExtension.endSession();
-          restoreSelection();
-        }
-      }
+    TartSaveActions saveActions = new TartSaveActions();
+    saveActions.add(new TartSaveActions.TrailingWhitespace());
+    applySaveActions(saveActions);
+  }
+
+  /** Compute the edits of a pipeline of save actions, and apply them to the document. */
+  private void applySaveActions(TartSaveActions saveActions) {
+    if (saveActions.isEmpty() || !isEditable()) {
+      return;
+    }
+
+    IDocument document = getDocumentProvider().getDocument(getEditorInput());
+    if (document != null) {
+      applyEdit(document, saveActions.computeEdit(document));
     }
   }
 
-  //public void propertyChange(PropertyChangeEvent event) {
-  //  setSourceViewerConfiguration(new TartSourceViewerConfiguration(styleManager));
-  //}
+  /**
+   * Apply an edit to the document as one compound change, so that it is undone in one step.
+   * The edit is applied within a rewrite session, which spares the document's listeners from
+   * reacting to each of its parts separately.
+   */
+  private void applyEdit(IDocument document, MultiTextEdit edit) {
+    if (!edit.hasChildren()) {
+      return;
+    }
 
-  private static boolean isTartWordBreak(char prevCh, char nextCh) {
-    if (nextCh == '\n') {
-      // Always a word break before a LF unless it's a CRLF.
-      return prevCh != '\r';
-    } else if (prevCh == '\n' || nextCh == '\r') {
-      // Always a word break after an LF or before a CR.
-      return true;
-    } else if (Character.isJavaIdentifierPart(prevCh)) {
-      if (Character.isJavaIdentifierPart(nextCh)) {
-        // CamelCase word break.
-        return Character.isLowerCase(prevCh) && Character.isUpperCase(nextCh);
-      } else if (Character.isWhitespace(nextCh)) {
-        // WS after ident is not a word break.
-        return false;
-      } else {
-        // Anything else after ident is a word break.
-        return true;
+    IRewriteTarget target = (IRewriteTarget) getAdapter(IRewriteTarget.class);
+    if (target != null) {
+      target.beginCompoundChange();
+    }
+
+    DocumentRewriteSession session = null;
+    if (document instanceof IDocumentExtension4) {
+      session = ((IDocumentExtension4) document).startRewriteSession(
+          DocumentRewriteSessionType.SEQUENTIAL);
+    }
+
+    try {
+      edit.apply(document, TextEdit.NONE);
+    } catch (MalformedTreeException e) {
+      // Should not happen: the edits are in order and do not overlap.
+    } catch (BadLocationException e) {
+      // Should not happen
+    } finally {
+      if (session != null) {
+        ((IDocumentExtension4) document).stopRewriteSession(session);
+      }
+
+      if (target != null) {
+        target.endCompoundChange();
       }
-    } else if (Character.isWhitespace(prevCh)) {
-      // WS followed by non-WS is a word break.
-      return !Character.isWhitespace(nextCh);
-    } else {
-      // Punctuation followed by punctuation or WS is not a word break,
-      // followed by anything else is.
-      return Character.isJavaIdentifierPart(nextCh);
     }
   }
 
+  //public void propertyChange(PropertyChangeEvent event) {
+  //  setSourceViewerConfiguration(new TartSourceViewerConfiguration(styleManager));
+  //}
+
   /**
    * Text navigation action to navigate to the next sub-word.
    */
@@ -268,22 +454,9 @@ public class TartSourceEditor extends TextEditor {
         return length;
       }
 
-      try {
-        char ch = document.getChar(position);
-        while (++position < length) {
-          char nextCh = document.getChar(position);
-          if (isTartWordBreak(ch, nextCh)) {
-            break;
-          }
-
-          ch = nextCh;
-        }
-
-      } catch (BadLocationException e) {
-        return length;
-      }
-
-      return position;
+      documentChars.reset(document);
+      wordIterator.setText(documentChars);
+      return wordIterator.following(position);
     }
 
     /**
@@ -426,27 +599,13 @@ public class TartSourceEditor extends TextEditor {
     protected int findPreviousPosition(int position) {
       ISourceViewer viewer = getSourceViewer();
       final IDocument document = viewer.getDocument();
-      --position;
       if (position <= 1) {
         return 0;
       }
 
-      try {
-        char ch = document.getChar(position);
-        while (position > 1) {
-          char prevCh = document.getChar(position - 1);
-          if (isTartWordBreak(prevCh, ch)) {
-            break;
-          }
-
-          ch = prevCh;
-          --position;
-        }
-      } catch (BadLocationException e) {
-        return 0;
-      }
-
-      return position;
+      documentChars.reset(document);
+      wordIterator.setText(documentChars);
+      return wordIterator.preceding(Math.min(position, document.getLength()));
     }
 
     /**
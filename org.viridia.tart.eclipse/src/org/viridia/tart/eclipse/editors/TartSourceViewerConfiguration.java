@@ -1,25 +1,37 @@
 package org.viridia.tart.eclipse.editors;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.eclipse.jface.text.DefaultIndentLineAutoEditStrategy;
 import org.eclipse.jface.text.IAutoEditStrategy;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.ITextDoubleClickStrategy;
-import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.presentation.IPresentationReconciler;
 import org.eclipse.jface.text.presentation.PresentationReconciler;
-import org.eclipse.jface.text.rules.DefaultDamagerRepairer;
-import org.eclipse.jface.text.rules.ITokenScanner;
-import org.eclipse.jface.text.rules.Token;
+import org.eclipse.jface.text.reconciler.IReconciler;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
+import org.eclipse.jface.text.reconciler.MonoReconciler;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.ui.editors.text.TextSourceViewerConfiguration;
 import org.viridia.tart.eclipse.Activator;
-import org.viridia.tart.eclipse.preferences.TartPrefs;
+import org.viridia.tart.eclipse.lexer.TokenKind;
 
 public class TartSourceViewerConfiguration extends TextSourceViewerConfiguration {
+  /** How long to wait after the last keystroke before parsing the document, in ms. */
+  private static final int RECONCILE_DELAY = 500;
+
   private TartDoubleClickStrategy doubleClickStrategy;
   private TartScanner tartScanner;
   private TartStyleManager styleManager;
+  private TartReconcilingStrategy reconcilingStrategy;
+  private TartSemanticHighlighter semanticHighlighter;
+  private TartAutoEditStrategy autoEditStrategy;
+
+  /** The repairers which have been registered for style changes. */
+  private final List<TartDamagerRepairer> styleListeners = new ArrayList<TartDamagerRepairer>();
 
   public TartSourceViewerConfiguration(TartStyleManager styleManager) {
     super(Activator.getDefault().getPreferenceStore());
@@ -44,36 +56,87 @@ public class TartSourceViewerConfiguration extends TextSourceViewerConfiguration
   protected TartScanner getTartScanner() {
     if (tartScanner == null) {
       tartScanner = new TartScanner(styleManager);
-      tartScanner.setDefaultReturnToken(
-          new Token(styleManager.getTextStyle(TartPrefs.TART_DEFAULT)));
     }
-    
+
     return tartScanner;
   }
 
   public IPresentationReconciler getPresentationReconciler(ISourceViewer sourceViewer) {
     PresentationReconciler reconciler = new PresentationReconciler();
-    registerScannerForContentType(reconciler, TartPrefs.TART_MULTI_LINE_COMMENT,
+    registerScannerForContentType(reconciler, TokenKind.MULTI_LINE_COMMENT,
         TartPartitionScanner.TART_MULTI_LINE_COMMENT);
-    registerScannerForContentType(reconciler, TartPrefs.TART_DOC_COMMENT,
+    registerScannerForContentType(reconciler, TokenKind.DOC_COMMENT,
         TartPartitionScanner.TART_DOC_COMMENT);
-    registerScannerForContentType(reconciler, TartPrefs.TART_SINGLE_LINE_COMMENT,
+    registerScannerForContentType(reconciler, TokenKind.SINGLE_LINE_COMMENT,
         TartPartitionScanner.TART_SINGLE_LINE_COMMENT);
-    registerScannerForContentType(reconciler, getTartScanner(), IDocument.DEFAULT_CONTENT_TYPE);
+    TartDamagerRepairer damagerRepairer = new TartDamagerRepairer(getTartScanner(),
+        sourceViewer);
+    reconciler.setDamager(damagerRepairer, IDocument.DEFAULT_CONTENT_TYPE);
+    reconciler.setRepairer(damagerRepairer, IDocument.DEFAULT_CONTENT_TYPE);
+    styleManager.addStyleListener(damagerRepairer);
+    styleListeners.add(damagerRepairer);
+    TartBackgroundHighlighter highlighter = damagerRepairer.getBackgroundHighlighter();
+    if (highlighter != null && semanticHighlighter == null) {
+      semanticHighlighter = new TartSemanticHighlighter(sourceViewer, styleManager, highlighter,
+          getReconcilingStrategy());
+    }
     return reconciler;
   }
 
-  private void registerScannerForContentType(PresentationReconciler reconciler,
-      ITokenScanner scanner, String contentType) {
-    DefaultDamagerRepairer damagerRepairer = new DefaultDamagerRepairer(scanner);
-    reconciler.setDamager(damagerRepairer, contentType);
-    reconciler.setRepairer(damagerRepairer, contentType);
+  /** Return the strategy which keeps the syntax tree of the document up to date. */
+  public TartReconcilingStrategy getReconcilingStrategy() {
+    if (reconcilingStrategy == null) {
+      reconcilingStrategy = new TartReconcilingStrategy();
+    }
+
+    return reconcilingStrategy;
+  }
+
+  @Override
+  public IReconciler getReconciler(ISourceViewer sourceViewer) {
+    MonoReconciler reconciler = new MonoReconciler(getReconcilingStrategy(), true);
+    reconciler.setDelay(RECONCILE_DELAY);
+
+    // Keep the spelling reconciler of the base configuration, if spelling is enabled, and
+    // run it next to the parser.
+    IReconciler spellingReconciler = super.getReconciler(sourceViewer);
+    if (spellingReconciler == null) {
+      return reconciler;
+    }
+
+    return new CompositeReconciler(reconciler, spellingReconciler);
+  }
+
+  /**
+   * Stop listening for style changes, to the document and to its syntax tree, stop the
+   * background highlighters, and release the bracket index. Called when the editor is
+   * disposed.
+   */
+  public void dispose() {
+    for (TartDamagerRepairer damagerRepairer : styleListeners) {
+      styleManager.removeStyleListener(damagerRepairer);
+    }
+
+    if (semanticHighlighter != null) {
+      semanticHighlighter.dispose();
+      semanticHighlighter = null;
+    }
+    for (TartDamagerRepairer damagerRepairer : styleListeners) {
+      damagerRepairer.dispose();
+    }
+    styleListeners.clear();
+    if (reconcilingStrategy != null) {
+      reconcilingStrategy.dispose();
+    }
+    if (autoEditStrategy != null) {
+      autoEditStrategy.dispose();
+    }
   }
   
   private void registerScannerForContentType(PresentationReconciler reconciler,
-      String styleName, String contentType) {
-    TextAttribute textAttribute = styleManager.getTextStyle(styleName);
-    NonRuleBasedDamagerRepairer damagerRepairer = new NonRuleBasedDamagerRepairer(textAttribute);
+      int kind, String contentType) {
+    NonRuleBasedDamagerRepairer damagerRepairer =
+        new NonRuleBasedDamagerRepairer(styleManager.getToken(kind));
     reconciler.setDamager(damagerRepairer, contentType);
     reconciler.setRepairer(damagerRepairer, contentType);
   }
@@ -81,7 +144,10 @@ public class TartSourceViewerConfiguration extends TextSourceViewerConfiguration
   @Override
   public IAutoEditStrategy[] getAutoEditStrategies(ISourceViewer sourceViewer, String contentType) {
     if (IDocument.DEFAULT_CONTENT_TYPE.equals(contentType)) {
-      return new IAutoEditStrategy[] { new TartAutoEditStrategy() };
+      if (autoEditStrategy == null) {
+        autoEditStrategy = new TartAutoEditStrategy();
+      }
+      return new IAutoEditStrategy[] { autoEditStrategy };
     } else {
       return new IAutoEditStrategy[] { new DefaultIndentLineAutoEditStrategy() };
     }
@@ -99,4 +165,39 @@ public class TartSourceViewerConfiguration extends TextSourceViewerConfiguration
   public String[] getIndentPrefixes(ISourceViewer sourceViewer, String contentType) {
     return new String[] { "  ", "\t" };
   }
+
+  /**
+   * Installs several reconcilers on the same viewer, each with its own strategies and delay.
+   * Strategies are looked up in the reconcilers in order.
+   */
+  private static class CompositeReconciler implements IReconciler {
+    private final IReconciler[] reconcilers;
+
+    CompositeReconciler(IReconciler... reconcilers) {
+      this.reconcilers = reconcilers;
+    }
+
+    public void install(ITextViewer textViewer) {
+      for (IReconciler reconciler : reconcilers) {
+        reconciler.install(textViewer);
+      }
+    }
+
+    public void uninstall() {
+      for (IReconciler reconciler : reconcilers) {
+        reconciler.uninstall();
+      }
+    }
+
+    public IReconcilingStrategy getReconcilingStrategy(String contentType) {
+      for (IReconciler reconciler : reconcilers) {
+        IReconcilingStrategy strategy = reconciler.getReconcilingStrategy(contentType);
+        if (strategy != null) {
+          return strategy;
+        }
+      }
+
+      return null;
+    }
+  }
 }
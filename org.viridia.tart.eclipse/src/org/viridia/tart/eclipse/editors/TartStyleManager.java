@@ -1,6 +1,9 @@
 package org.viridia.tart.eclipse.editors;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.jface.preference.IPreferenceStore;
@@ -11,39 +14,265 @@ import org.eclipse.jface.text.rules.Token;
 import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.RGB;
 import org.viridia.tart.eclipse.Activator;
+import org.viridia.tart.eclipse.lexer.TokenKind;
+import org.viridia.tart.eclipse.parser.TartSemanticAnalyzer;
+import org.viridia.tart.eclipse.preferences.PreferenceBatch;
+import org.viridia.tart.eclipse.preferences.TartPrefs;
 
+/**
+ * Resolves the style preferences of each {@link TokenKind} into a text attribute, and keeps
+ * the results in a table indexed by kind, so that looking up a style is an array read. The
+ * styles of the semantic kinds of {@link TartSemanticAnalyzer} follow those of the token
+ * kinds in the table. When a style preference changes, only the entry for the kind it belongs
+ * to is resolved again, and the listeners are told which kind changed.
+ * <p>
+ * One style manager is shared by all Tart editors; see
+ * {@link org.viridia.tart.eclipse.Activator#acquireStyleManager()}. Its text attributes and
+ * tokens must not be modified. Since every editor passes each preference change on to it,
+ * a change which leaves a style as it was is ignored, and the changes of a
+ * {@link PreferenceBatch} are reported to the listeners together.
+ * <p>
+ * The color of a replaced style is kept until every listener has told the style manager that
+ * it has repainted its text since the change, as text which has not been repainted may still
+ * use it; the colors still kept when the style manager is disposed are released then.
+ */
 public class TartStyleManager {
+  /** Notified when the styles of token kinds change. */
+  public interface StyleListener {
+    /**
+     * Called after the styles of one or more token kinds have changed. The listener must call
+     * {@link TartStyleManager#repainted} once it no longer shows the old styles, either before
+     * returning or later.
+     *
+     * @param styles The style manager.
+     * @param kinds The set of changed kinds, as a mask with bit (1 << kind) set for each
+     *     {@link TokenKind}, and bit (1 << (TokenKind.COUNT + kind)) for each semantic kind.
+     */
+    void stylesChanged(TartStyleManager styles, int kinds);
+  }
+
+  /** The number of styles: those of the token kinds, then those of the semantic kinds. */
+  private static final int STYLE_COUNT = TokenKind.COUNT + TartSemanticAnalyzer.COUNT;
+
+  /** The mask of the semantic kinds, in the form passed to {@link StyleListener}s. */
+  public static final int SEMANTIC_MASK =
+      ((1 << TartSemanticAnalyzer.COUNT) - 1) << TokenKind.COUNT;
+
+  /** The name of the style preferences of each style, or null if it has none. */
+  private static final String[] STYLE_NAMES = new String[STYLE_COUNT];
+
+  static {
+    STYLE_NAMES[TokenKind.DEFAULT] = TartPrefs.TART_DEFAULT;
+    STYLE_NAMES[TokenKind.NUMBER] = TartPrefs.TART_NUMBER;
+    STYLE_NAMES[TokenKind.STRING] = TartPrefs.TART_STRING;
+    STYLE_NAMES[TokenKind.OPERATOR] = TartPrefs.TART_OPERATOR;
+    STYLE_NAMES[TokenKind.ATTRIBUTE] = TartPrefs.TART_ATTRIBUTE;
+    STYLE_NAMES[TokenKind.IDENT] = TartPrefs.TART_IDENT;
+    STYLE_NAMES[TokenKind.STMT_KEYWORD] = TartPrefs.TART_STMT_KEYWORD;
+    STYLE_NAMES[TokenKind.DECL_KEYWORD] = TartPrefs.TART_DECL_KEYWORD;
+    STYLE_NAMES[TokenKind.OPERATOR_KEYWORD] = TartPrefs.TART_OPERATOR_KEYWORD;
+    STYLE_NAMES[TokenKind.VISIBILITY] = TartPrefs.TART_DECL_VISIBILITY;
+    STYLE_NAMES[TokenKind.MODIFIER] = TartPrefs.TART_DECL_MODIFIER;
+    STYLE_NAMES[TokenKind.BUILTIN_TYPE] = TartPrefs.TART_BUILTIN_TYPENAME;
+    STYLE_NAMES[TokenKind.BUILTIN_SYMBOL] = TartPrefs.TART_BUILTIN_SYMBOL;
+    STYLE_NAMES[TokenKind.SINGLE_LINE_COMMENT] = TartPrefs.TART_SINGLE_LINE_COMMENT;
+    STYLE_NAMES[TokenKind.MULTI_LINE_COMMENT] = TartPrefs.TART_MULTI_LINE_COMMENT;
+    STYLE_NAMES[TokenKind.DOC_COMMENT] = TartPrefs.TART_DOC_COMMENT;
+    STYLE_NAMES[TokenKind.COUNT + TartSemanticAnalyzer.DECLARED_TYPE] =
+        TartPrefs.TART_DECLARED_TYPE;
+    STYLE_NAMES[TokenKind.COUNT + TartSemanticAnalyzer.FUNCTION] = TartPrefs.TART_FUNCTION;
+    STYLE_NAMES[TokenKind.COUNT + TartSemanticAnalyzer.FIELD] = TartPrefs.TART_FIELD;
+    STYLE_NAMES[TokenKind.COUNT + TartSemanticAnalyzer.PARAMETER] = TartPrefs.TART_PARAMETER;
+    STYLE_NAMES[TokenKind.COUNT + TartSemanticAnalyzer.ATTRIBUTE_TARGET] =
+        TartPrefs.TART_ATTRIBUTE_TARGET;
+  }
+
+  /** The suffixes of the preference keys of a style. */
+  private static final String[] SUFFIXES = { "_COLOR", "_BOLD", "_ITALIC" };
+
   private final TartColorManager colorManager;
   private final IPreferenceStore store;
-  private final Map<String, Token> tokens = new HashMap<String, Token>();
-  
-  TartStyleManager(TartColorManager colorManager) {
+
+  /** The style of each style preference key. */
+  private final Map<String, Integer> kindsByKey = new HashMap<String, Integer>();
+
+  /** The text attribute of each style, and a token whose data is that attribute. */
+  private final TextAttribute[] attributes = new TextAttribute[STYLE_COUNT];
+  private final Token[] tokens = new Token[STYLE_COUNT];
+
+  /** The number of times the styles have changed. */
+  private int generation;
+
+  /** The listeners, mapped to the last generation of the styles they have repainted with. */
+  private final Map<StyleListener, Integer> listeners =
+      new LinkedHashMap<StyleListener, Integer>();
+
+  /**
+   * The colors of styles which have since changed, and the generation in which each was
+   * replaced. Editors repaint only what is on screen when a style changes, so the rest of
+   * their text may still use these colors until it scrolls into view.
+   */
+  private final List<RGB> retiredColors = new ArrayList<RGB>();
+  private final List<Integer> retiredGenerations = new ArrayList<Integer>();
+
+  public TartStyleManager(TartColorManager colorManager) {
     this.colorManager = colorManager;
     this.store = Activator.getDefault().getPreferenceStore();
+    for (int kind = 0; kind < STYLE_COUNT; ++kind) {
+      String name = STYLE_NAMES[kind];
+      if (name != null) {
+        attributes[kind] = resolveStyle(name);
+        tokens[kind] = new Token(attributes[kind]);
+        for (String suffix : SUFFIXES) {
+          kindsByKey.put(name + suffix, kind);
+        }
+      }
+    }
+  }
+
+  /** Release the colors of all the styles. */
+  public void dispose() {
+    for (TextAttribute attribute : attributes) {
+      if (attribute != null) {
+        colorManager.releaseColor(attribute.getForeground().getRGB());
+      }
+    }
+
+    for (RGB rgb : retiredColors) {
+      colorManager.releaseColor(rgb);
+    }
+
+    retiredColors.clear();
+    retiredGenerations.clear();
+    listeners.clear();
   }
-  
-  public TextAttribute getTextStyle(String name) {
-    Color color = colorManager.getColor(PreferenceConverter.getColor(store, name + "_COLOR"));
+
+  /**
+   * Resolve the style preferences with the given name into a text attribute, whose color has
+   * been acquired from the color manager.
+   */
+  private TextAttribute resolveStyle(String name) {
+    Color color = colorManager.acquireColor(PreferenceConverter.getColor(store, name + "_COLOR"));
     int style = 0;
     if (store.getBoolean(name + "_BOLD")) { style |= SWT.BOLD; }
     if (store.getBoolean(name + "_ITALIC")) { style |= SWT.ITALIC; }
-    
+
     return new TextAttribute(color, null, style);
   }
-  
-  public IToken getToken(String styleName) {
-    TextAttribute textStyle = getTextStyle(styleName);
-    Token token = new Token(textStyle);
-    tokens.put(styleName, token);
-    return token;
+
+  /** Return the text attribute for a {@link TokenKind}, or null if the kind has no style. */
+  public TextAttribute getTextAttribute(int kind) {
+    return attributes[kind];
+  }
+
+  /** Return the text attribute for a semantic kind of {@link TartSemanticAnalyzer}. */
+  public TextAttribute getSemanticAttribute(int kind) {
+    return attributes[TokenKind.COUNT + kind];
   }
-  
-  public void adaptToColorChange(PropertyChangeEvent event) {
-    for (Map.Entry<String, Token> entry : tokens.entrySet()) {
-      TextAttribute textStyle = getTextStyle(entry.getKey());
-      Token token = entry.getValue();
-      token.setData(textStyle);
+
+  /**
+   * Return the token for a {@link TokenKind}. The token's data is the kind's text attribute,
+   * and is updated in place when the style changes. Whitespace has no style of its own.
+   */
+  public IToken getToken(int kind) {
+    Token token = tokens[kind];
+    return token != null ? token : Token.WHITESPACE;
+  }
+
+  public void addStyleListener(StyleListener listener) {
+    if (!listeners.containsKey(listener)) {
+      listeners.put(listener, generation);
+    }
+  }
+
+  public void removeStyleListener(StyleListener listener) {
+    if (listeners.remove(listener) != null) {
+      releaseRetiredColors();
+    }
+  }
+
+  /**
+   * Tell the style manager that a listener has repainted all of its text since the last
+   * style change it was told about, and release the colors no listener uses any more.
+   */
+  public void repainted(StyleListener listener) {
+    if (listeners.containsKey(listener)) {
+      listeners.put(listener, generation);
+      releaseRetiredColors();
+    }
+  }
+
+  /** Release the retired colors of the generations every listener has repainted. */
+  private void releaseRetiredColors() {
+    int repainted = generation;
+    for (int listenerGeneration : listeners.values()) {
+      repainted = Math.min(repainted, listenerGeneration);
+    }
+
+    int i = 0;
+    while (i < retiredColors.size() && retiredGenerations.get(i) <= repainted) {
+      colorManager.releaseColor(retiredColors.get(i));
+      ++i;
     }
+
+    retiredColors.subList(0, i).clear();
+    retiredGenerations.subList(0, i).clear();
+  }
+
+  /**
+   * Update the styles affected by a preference change, or by all the changes of a
+   * {@link PreferenceBatch}, and notify the listeners once if any style changed.
+   *
+   * @return The mask of the kinds whose style changed, or 0 if none did.
+   */
+  public int adaptToColorChange(PropertyChangeEvent event) {
+    // The colors replaced by this change are retired in the next generation.
+    ++generation;
+    int kinds = 0;
+    if (PreferenceBatch.BATCH_CHANGED.equals(event.getProperty())) {
+      for (String key : PreferenceBatch.getChangedKeys(event)) {
+        kinds |= updateStyle(key);
+      }
+    } else {
+      kinds = updateStyle(event.getProperty());
+    }
+
+    if (kinds == 0) {
+      --generation;
+    } else {
+      for (StyleListener listener : listeners.keySet().toArray(
+          new StyleListener[listeners.size()])) {
+        listener.stylesChanged(this, kinds);
+      }
+    }
+
+    return kinds;
+  }
+
+  /**
+   * Resolve the style of the kind a preference key belongs to again.
+   *
+   * @return The mask bit of the kind if its style changed, otherwise 0.
+   */
+  private int updateStyle(String key) {
+    Integer kind = kindsByKey.get(key);
+    if (kind == null) {
+      return 0;
+    }
+
+    TextAttribute oldAttribute = attributes[kind];
+    TextAttribute newAttribute = resolveStyle(STYLE_NAMES[kind]);
+    if (newAttribute.equals(oldAttribute)) {
+      colorManager.releaseColor(newAttribute.getForeground().getRGB());
+      return 0;
+    }
+
+    attributes[kind] = newAttribute;
+    tokens[kind].setData(newAttribute);
+    retiredColors.add(oldAttribute.getForeground().getRGB());
+    retiredGenerations.add(generation);
+    return 1 << kind;
   }
 }
@@ -0,0 +1,240 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.util.Arrays;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.DocumentPartitioningChangedEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IDocumentPartitioningListener;
+import org.eclipse.jface.text.IDocumentPartitioningListenerExtension2;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.viridia.tart.eclipse.lexer.TartLexer;
+import org.viridia.tart.eclipse.lexer.TokenKind;
+import org.viridia.tart.eclipse.lexer.TokenStream;
+
+/**
+ * Cache of the tokens of every line of a document. Only the parts of a line that lie in the
+ * default (code) partition are lexed; comment partitions are styled as a whole elsewhere.
+ * <p>
+ * Each line's tokens are stored with offsets relative to the start of the line, so an edit
+ * invalidates only the lines it touches: the entries for the lines that were replaced are
+ * spliced out, and the lines after the edit stay valid even though they have moved. Lines
+ * are lexed again lazily, when their tokens are next asked for. A change in partitioning
+ * also invalidates the lines it covers.
+ * <p>
+ * In code partitions no token continues past the end of a line: string and character
+ * literals end at the line delimiter, even one escaped with a backslash, and comments are
+ * separate partitions. So the lexer state at the start of every line is the initial state,
+ * and relexing the changed lines is enough.
+ * <p>
+ * Lines are lexed through a {@link DocumentCharSequence} and into a reused
+ * {@link TokenStream}, so the only allocation when a line is lexed is the array which holds
+ * its tokens.
+ */
+class TartTokenCache implements IDocumentListener, IDocumentPartitioningListener,
+    IDocumentPartitioningListenerExtension2 {
+  private static final int[] NO_TOKENS = new int[0];
+
+  private final IDocument document;
+  private final DocumentCharSequence text;
+  private final TartLexer lexer = new TartLexer();
+  private final TokenStream stream = new TokenStream();
+
+  /**
+   * The tokens of each line, except for whitespace, two ints per token: the start of the
+   * token relative to the line, and the token length shifted left by 8 bits, ORed with the
+   * token kind. A null entry means the line must be lexed again.
+   */
+  private int[][] lines;
+  private int lineCount;
+
+  /** The range of lines being replaced by the current document change, or -1. */
+  private int changeFirstLine = -1;
+  private int changeLastLine;
+
+  /** A partitioning change reported while a document change was in progress. */
+  private IRegion pendingCoverage;
+
+  TartTokenCache(IDocument document) {
+    this.document = document;
+    this.text = new DocumentCharSequence(document);
+    clear();
+    // Pre-notified, so that the cache is up to date before the viewer repairs the
+    // presentation in response to the change.
+    document.addPrenotifiedDocumentListener(this);
+    document.addDocumentPartitioningListener(this);
+  }
+
+  /** Stop listening to the document. */
+  void dispose() {
+    document.removePrenotifiedDocumentListener(this);
+    document.removeDocumentPartitioningListener(this);
+  }
+
+  /**
+   * Return the cached tokens of a line, lexing the line if needed. The returned array is
+   * owned by the cache and must not be modified.
+   */
+  int[] getLineTokens(int line) throws BadLocationException {
+    int[] tokens = lines[line];
+    if (tokens == null) {
+      tokens = lexLine(line);
+      lines[line] = tokens;
+    }
+
+    return tokens;
+  }
+
+  /** Return the start of a packed token, relative to the start of its line. */
+  static int tokenStart(int[] tokens, int index) {
+    return tokens[index * 2];
+  }
+
+  /** Return the length of a packed token. */
+  static int tokenLength(int[] tokens, int index) {
+    return tokens[index * 2 + 1] >>> 8;
+  }
+
+  /** Return the {@link TokenKind} of a packed token. */
+  static int tokenKind(int[] tokens, int index) {
+    return tokens[index * 2 + 1] & 0xff;
+  }
+
+  /** Return the number of tokens in a packed token array. */
+  static int tokenCount(int[] tokens) {
+    return tokens.length / 2;
+  }
+
+  public void documentAboutToBeChanged(DocumentEvent event) {
+    try {
+      changeFirstLine = document.getLineOfOffset(event.getOffset());
+      changeLastLine = document.getLineOfOffset(event.getOffset() + event.getLength());
+    } catch (BadLocationException e) {
+      changeFirstLine = -1;
+    }
+  }
+
+  public void documentChanged(DocumentEvent event) {
+    text.reset(document);
+    int firstLine = changeFirstLine;
+    changeFirstLine = -1;
+    String text = event.getText();
+    try {
+      if (firstLine < 0) {
+        throw new BadLocationException();
+      }
+
+      int end = event.getOffset() + (text != null ? text.length() : 0);
+      int newLastLine = document.getLineOfOffset(end);
+      splice(firstLine, changeLastLine - firstLine + 1, newLastLine - firstLine + 1);
+      if (pendingCoverage != null) {
+        invalidate(pendingCoverage);
+      }
+    } catch (BadLocationException e) {
+      clear();
+    }
+
+    pendingCoverage = null;
+  }
+
+  public void documentPartitioningChanged(IDocument document) {
+    // Only called if the extension interface is not supported; assume everything changed.
+    clear();
+  }
+
+  public void documentPartitioningChanged(DocumentPartitioningChangedEvent event) {
+    IRegion coverage = event.getCoverage();
+    if (coverage == null) {
+      clear();
+    } else if (changeFirstLine >= 0) {
+      // The coverage is in terms of the new document, but the line table hasn't been
+      // updated yet. Wait for documentChanged().
+      pendingCoverage = coverage;
+    } else {
+      try {
+        invalidate(coverage);
+      } catch (BadLocationException e) {
+        clear();
+      }
+    }
+  }
+
+  /** Forget all cached tokens. */
+  private void clear() {
+    lineCount = document.getNumberOfLines();
+    lines = new int[Math.max(16, lineCount)][];
+  }
+
+  /** Invalidate the lines which overlap a region of the document. */
+  private void invalidate(IRegion region) throws BadLocationException {
+    int first = document.getLineOfOffset(region.getOffset());
+    int last = document.getLineOfOffset(region.getOffset() + region.getLength());
+    Arrays.fill(lines, first, last + 1, null);
+  }
+
+  /** Replace a run of line entries with a run of invalid entries of a different length. */
+  private void splice(int first, int oldCount, int newCount) {
+    int newLineCount = lineCount - oldCount + newCount;
+    int tail = lineCount - (first + oldCount);
+    if (newLineCount > lines.length) {
+      int[][] newLines = new int[Math.max(newLineCount, lines.length * 3 / 2)][];
+      System.arraycopy(lines, 0, newLines, 0, first);
+      System.arraycopy(lines, first + oldCount, newLines, first + newCount, tail);
+      lines = newLines;
+    } else {
+      System.arraycopy(lines, first + oldCount, lines, first + newCount, tail);
+      if (newLineCount < lineCount) {
+        Arrays.fill(lines, newLineCount, lineCount, null);
+      }
+    }
+
+    Arrays.fill(lines, first, first + newCount, null);
+    lineCount = newLineCount;
+  }
+
+  /** Lex the code partitions of a line, including the line delimiter. */
+  private int[] lexLine(int line) throws BadLocationException {
+    int lineOffset = document.getLineOffset(line);
+    int lineLength = document.getLineLength(line);
+    if (lineLength == 0) {
+      return NO_TOKENS;
+    }
+
+    stream.clear();
+    int lineEnd = lineOffset + lineLength;
+    ITypedRegion partition = document.getPartition(lineOffset);
+    if (partition.getOffset() + partition.getLength() >= lineEnd) {
+      // The whole line is in one partition, which is the usual case.
+      lexRegion(partition, lineOffset, lineEnd);
+    } else {
+      for (ITypedRegion region : document.computePartitioning(lineOffset, lineLength)) {
+        lexRegion(region, lineOffset, lineEnd);
+      }
+    }
+
+    int count = stream.size();
+    if (count == 0) {
+      return NO_TOKENS;
+    }
+
+    int[] tokens = new int[count * 2];
+    for (int i = 0; i < count; ++i) {
+      tokens[i * 2] = stream.getOffset(i) - lineOffset;
+      tokens[i * 2 + 1] = (stream.getLength(i) << 8) | stream.getKind(i);
+    }
+
+    return tokens;
+  }
+
+  /** Lex the part of a partition which lies within a range, if it is a code partition. */
+  private void lexRegion(ITypedRegion region, int start, int end) {
+    if (IDocument.DEFAULT_CONTENT_TYPE.equals(region.getType())) {
+      lexer.reset(text, Math.max(start, region.getOffset()),
+          Math.min(end, region.getOffset() + region.getLength()));
+      stream.lex(lexer, true);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package org.viridia.tart.eclipse.editors;
+
+import java.text.BreakIterator;
+import java.text.CharacterIterator;
+import java.text.StringCharacterIterator;
+
+/**
+ * Break iterator for words in Tart source text, which reads the text through a
+ * {@link CharSequence} and classifies ASCII characters with a table lookup.
+ * <p>
+ * In sub-word mode, the boundaries are those used for word navigation: identifiers are split
+ * at lower-to-upper case changes, whitespace is attached to the word before it, and runs of
+ * punctuation are words of their own. Otherwise, the words are identifiers, and every other
+ * character is a word by itself, as for double-click selection.
+ */
+public class TartWordIterator extends BreakIterator {
+  // Character classes.
+  private static final byte LF = 0;
+  private static final byte CR = 1;
+  private static final byte SPACE = 2;
+  private static final byte LOWER = 3;
+  private static final byte UPPER = 4;
+  private static final byte IDENT = 5;
+  private static final byte OTHER = 6;
+
+  private static final byte[] ASCII_CLASSES = new byte[128];
+
+  static {
+    for (char ch = 0; ch < ASCII_CLASSES.length; ++ch) {
+      ASCII_CLASSES[ch] = computeClass(ch);
+    }
+  }
+
+  private final boolean subWords;
+  private CharSequence text = "";
+  private int current;
+
+  /**
+   * Construct a word iterator.
+   *
+   * @param subWords If true, find the boundaries of sub-words, for word navigation; otherwise
+   *     find the boundaries of identifiers, for word selection.
+   */
+  public TartWordIterator(boolean subWords) {
+    this.subWords = subWords;
+  }
+
+  /** Set the text to iterate over, and move to its start. */
+  public void setText(CharSequence newText) {
+    text = newText;
+    current = 0;
+  }
+
+  @Override
+  public void setText(CharacterIterator newText) {
+    StringBuilder builder = new StringBuilder(newText.getEndIndex() - newText.getBeginIndex());
+    for (char ch = newText.first(); ch != CharacterIterator.DONE; ch = newText.next()) {
+      builder.append(ch);
+    }
+
+    setText(builder);
+  }
+
+  /** Return a copy of the text, as the interface requires a character iterator. */
+  @Override
+  public CharacterIterator getText() {
+    return new StringCharacterIterator(text.toString(), current);
+  }
+
+  @Override
+  public int first() {
+    current = 0;
+    return current;
+  }
+
+  @Override
+  public int last() {
+    current = text.length();
+    return current;
+  }
+
+  @Override
+  public int current() {
+    return current;
+  }
+
+  @Override
+  public int next() {
+    if (current >= text.length()) {
+      return DONE;
+    }
+
+    return following(current);
+  }
+
+  @Override
+  public int next(int n) {
+    int result = current;
+    for (; n > 0 && result != DONE; --n) {
+      result = next();
+    }
+    for (; n < 0 && result != DONE; ++n) {
+      result = previous();
+    }
+
+    return result;
+  }
+
+  @Override
+  public int previous() {
+    if (current <= 0) {
+      return DONE;
+    }
+
+    return preceding(current);
+  }
+
+  @Override
+  public int following(int offset) {
+    int length = text.length();
+    checkOffset(offset, length);
+    if (offset >= length) {
+      current = length;
+      return DONE;
+    }
+
+    int pos = offset + 1;
+    int prevClass = getClass(text.charAt(offset));
+    while (pos < length) {
+      int nextClass = getClass(text.charAt(pos));
+      if (isBreak(prevClass, nextClass)) {
+        break;
+      }
+
+      prevClass = nextClass;
+      ++pos;
+    }
+
+    current = pos;
+    return pos;
+  }
+
+  @Override
+  public int preceding(int offset) {
+    checkOffset(offset, text.length());
+    if (offset <= 0) {
+      current = 0;
+      return DONE;
+    }
+
+    int pos = offset - 1;
+    if (pos > 0) {
+      int nextClass = getClass(text.charAt(pos));
+      while (pos > 0) {
+        int prevClass = getClass(text.charAt(pos - 1));
+        if (isBreak(prevClass, nextClass)) {
+          break;
+        }
+
+        nextClass = prevClass;
+        --pos;
+      }
+    }
+
+    current = pos;
+    return pos;
+  }
+
+  @Override
+  public boolean isBoundary(int offset) {
+    int length = text.length();
+    checkOffset(offset, length);
+    return offset == 0 || offset == length
+        || isBreak(getClass(text.charAt(offset - 1)), getClass(text.charAt(offset)));
+  }
+
+  private static void checkOffset(int offset, int length) {
+    if (offset < 0 || offset > length) {
+      throw new IllegalArgumentException("offset out of bounds");
+    }
+  }
+
+  /** Return true if there is a word boundary between characters of the given classes. */
+  private boolean isBreak(int prevClass, int nextClass) {
+    if (!subWords) {
+      return !isIdent(prevClass) || !isIdent(nextClass);
+    }
+
+    if (nextClass == LF) {
+      // Always a word break before a LF unless it's a CRLF.
+      return prevClass != CR;
+    } else if (prevClass == LF || nextClass == CR) {
+      // Always a word break after an LF or before a CR.
+      return true;
+    } else if (isIdent(prevClass)) {
+      if (isIdent(nextClass)) {
+        // CamelCase word break.
+        return prevClass == LOWER && nextClass == UPPER;
+      } else {
+        // WS after ident is not a word break; anything else is.
+        return !isWhitespace(nextClass);
+      }
+    } else if (isWhitespace(prevClass)) {
+      // WS followed by non-WS is a word break.
+      return !isWhitespace(nextClass);
+    } else {
+      // Punctuation followed by punctuation or WS is not a word break,
+      // followed by anything else is.
+      return isIdent(nextClass);
+    }
+  }
+
+  private static boolean isIdent(int cls) {
+    return cls >= LOWER && cls <= IDENT;
+  }
+
+  private static boolean isWhitespace(int cls) {
+    return cls <= SPACE;
+  }
+
+  private static int getClass(char ch) {
+    return ch < ASCII_CLASSES.length ? ASCII_CLASSES[ch] : computeClass(ch);
+  }
+
+  private static byte computeClass(char ch) {
+    if (ch == '\n') {
+      return LF;
+    } else if (ch == '\r') {
+      return CR;
+    } else if (Character.isJavaIdentifierPart(ch)) {
+      if (Character.isLowerCase(ch)) {
+        return LOWER;
+      } else if (Character.isUpperCase(ch)) {
+        return UPPER;
+      } else {
+        return IDENT;
+      }
+    } else if (Character.isWhitespace(ch)) {
+      return SPACE;
+    } else {
+      return OTHER;
+    }
+  }
+}
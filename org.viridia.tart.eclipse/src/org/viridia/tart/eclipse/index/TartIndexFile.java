@@ -0,0 +1,447 @@
+package org.viridia.tart.eclipse.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A {@link TartSymbolIndex} saved to disk, and read back through a memory-mapped buffer
+ * without being deserialized: lookups binary search the mapped tables, and only the symbols
+ * they return are turned into objects.
+ * <p>
+ * The file is made of a header and five tables, all of big-endian ints except for the stamps
+ * and the generation, which are longs:
+ * <ul>
+ * <li>The header: the magic number, the format version, the generation, the length of the
+ * file, the number of entries of each table and the offset of each table.
+ * <li>The strings: each string once, as its length followed by its UTF-16 characters. Strings
+ * are referred to by their offset in the file.
+ * <li>The files, sorted by path: the path, the stamp, and the range of the
+ * file's symbols in the symbol table.
+ * <li>The symbols, sorted by file and then by offset: the index of the file, the name, the
+ * container or -1, the kind and the offset of the name.
+ * <li>The names, sorted: the name, and the range of its postings.
+ * <li>The postings: for each name, the indices of the symbols of that name.
+ * </ul>
+ * An index is saved to one of two slots, alternately, with a generation one higher than the
+ * one it was loaded from, so that the file which is mapped is never overwritten; the valid
+ * slot with the highest generation is loaded. A file of another version, or one which was not
+ * completely written, is ignored, and the workspace is indexed again from scratch.
+ */
+final class TartIndexFile {
+  /** "TIDX". */
+  private static final int MAGIC = 0x54494458;
+
+  /** The version of the format. Change it whenever the format or what is indexed changes. */
+  private static final int VERSION = 1;
+
+  private static final String[] SLOT_NAMES = { "symbols.0.idx", "symbols.1.idx" };
+
+  // The layout of the header.
+  private static final int MAGIC_OFFSET = 0;
+  private static final int VERSION_OFFSET = 4;
+  private static final int GENERATION_OFFSET = 8;
+  private static final int LENGTH_OFFSET = 16;
+  private static final int FILE_COUNT_OFFSET = 20;
+  private static final int SYMBOL_COUNT_OFFSET = 24;
+  private static final int NAME_COUNT_OFFSET = 28;
+  private static final int FILES_OFFSET = 32;
+  private static final int SYMBOLS_OFFSET = 36;
+  private static final int NAMES_OFFSET = 40;
+  private static final int POSTINGS_OFFSET = 44;
+  private static final int HEADER_SIZE = 48;
+
+  // The sizes of the records of each table.
+  private static final int FILE_SIZE = 20;
+  private static final int SYMBOL_SIZE = 20;
+  private static final int NAME_SIZE = 12;
+
+  private final ByteBuffer buffer;
+  private final int slot;
+  private final long generation;
+  private final int fileCount;
+  private final int symbolCount;
+  private final int nameCount;
+  private final int files;
+  private final int symbols;
+  private final int names;
+  private final int postings;
+
+  private TartIndexFile(ByteBuffer buffer, int slot) throws IOException {
+    this.buffer = buffer;
+    this.slot = slot;
+    checkHeader(buffer, buffer.capacity());
+    generation = buffer.getLong(GENERATION_OFFSET);
+    fileCount = buffer.getInt(FILE_COUNT_OFFSET);
+    symbolCount = buffer.getInt(SYMBOL_COUNT_OFFSET);
+    nameCount = buffer.getInt(NAME_COUNT_OFFSET);
+    files = buffer.getInt(FILES_OFFSET);
+    symbols = buffer.getInt(SYMBOLS_OFFSET);
+    names = buffer.getInt(NAMES_OFFSET);
+    postings = buffer.getInt(POSTINGS_OFFSET);
+  }
+
+  /**
+   * Check that a header describes a complete index of the current version, whose tables fit
+   * a file of the given length.
+   */
+  private static void checkHeader(ByteBuffer header, long length) throws IOException {
+    if (header.capacity() < HEADER_SIZE || header.getInt(MAGIC_OFFSET) != MAGIC
+        || header.getInt(VERSION_OFFSET) != VERSION
+        || header.getInt(LENGTH_OFFSET) != length) {
+      throw new IOException("Not a complete Tart index of version " + VERSION);
+    }
+
+    int files = header.getInt(FILES_OFFSET);
+    int symbols = header.getInt(SYMBOLS_OFFSET);
+    int names = header.getInt(NAMES_OFFSET);
+    int postings = header.getInt(POSTINGS_OFFSET);
+    int symbolCount = header.getInt(SYMBOL_COUNT_OFFSET);
+    if (files < HEADER_SIZE || symbols != files + header.getInt(FILE_COUNT_OFFSET) * FILE_SIZE
+        || names != symbols + symbolCount * SYMBOL_SIZE
+        || postings != names + header.getInt(NAME_COUNT_OFFSET) * NAME_SIZE
+        || length != postings + symbolCount * 4) {
+      throw new IOException("Corrupt Tart index");
+    }
+  }
+
+  /**
+   * Map the most recent index saved in a directory. The headers of both slots are read
+   * first, and only the slot which wins is mapped: a mapping cannot be released until it is
+   * garbage collected, and on some platforms a mapped file cannot be overwritten, so mapping
+   * the other slot would stop the next save.
+   *
+   * @return The index, or null if the directory holds no valid index.
+   */
+  static TartIndexFile load(File directory) {
+    int bestSlot = -1;
+    long bestGeneration = 0;
+    for (int slot = 0; slot < SLOT_NAMES.length; ++slot) {
+      try {
+        long generation = readGeneration(new File(directory, SLOT_NAMES[slot]));
+        if (bestSlot < 0 || generation > bestGeneration) {
+          bestSlot = slot;
+          bestGeneration = generation;
+        }
+      } catch (IOException e) {
+        // Ignore the slot; the files it held are indexed again.
+      }
+    }
+
+    if (bestSlot < 0) {
+      return null;
+    }
+
+    try {
+      File file = new File(directory, SLOT_NAMES[bestSlot]);
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        // The mapping stays valid after the file is closed.
+        return new TartIndexFile(
+            raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()), bestSlot);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** Read the header of a slot, and return its generation if it holds a valid index. */
+  private static long readGeneration(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < HEADER_SIZE) {
+        throw new IOException("Not a complete Tart index of version " + VERSION);
+      }
+
+      byte[] bytes = new byte[HEADER_SIZE];
+      raf.readFully(bytes);
+      ByteBuffer header = ByteBuffer.wrap(bytes);
+      checkHeader(header, raf.length());
+      return header.getLong(GENERATION_OFFSET);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Save an index to the slot of a directory which was not loaded from.
+   *
+   * @param directory The directory.
+   * @param loaded The index which was loaded from the directory, or null if none was.
+   * @param entries The files to save, by path.
+   */
+  static void save(File directory, TartIndexFile loaded,
+      SortedMap<String, TartSymbolIndex.FileEntry> entries) throws IOException {
+    // Lay out the strings and the symbols, and gather the postings of each name.
+    Map<String, Integer> strings = new HashMap<String, Integer>();
+    List<String> stringList = new ArrayList<String>();
+    int stringsSize = 0;
+    int symbolCount = 0;
+    Map<String, List<Integer>> postingsByName = new HashMap<String, List<Integer>>();
+    for (Map.Entry<String, TartSymbolIndex.FileEntry> entry : entries.entrySet()) {
+      stringsSize += addString(entry.getKey(), HEADER_SIZE + stringsSize, strings, stringList);
+      for (TartSymbol symbol : entry.getValue().symbols) {
+        stringsSize += addString(symbol.getName(), HEADER_SIZE + stringsSize, strings,
+            stringList);
+        if (symbol.getContainer() != null) {
+          stringsSize += addString(symbol.getContainer(), HEADER_SIZE + stringsSize, strings,
+              stringList);
+        }
+
+        List<Integer> list = postingsByName.get(symbol.getName());
+        if (list == null) {
+          list = new ArrayList<Integer>(1);
+          postingsByName.put(symbol.getName(), list);
+        }
+        list.add(symbolCount++);
+      }
+    }
+
+    List<String> sortedNames = new ArrayList<String>(postingsByName.keySet());
+    Collections.sort(sortedNames);
+
+    int files = HEADER_SIZE + stringsSize;
+    int symbols = files + entries.size() * FILE_SIZE;
+    int names = symbols + symbolCount * SYMBOL_SIZE;
+    int postings = names + sortedNames.size() * NAME_SIZE;
+    int length = postings + symbolCount * 4;
+
+    int slot = loaded != null ? 1 - loaded.slot : 0;
+    File file = new File(directory, SLOT_NAMES[slot]);
+    FileOutputStream stream = new FileOutputStream(file);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(loaded != null ? loaded.generation + 1 : 1);
+      out.writeInt(length);
+      out.writeInt(entries.size());
+      out.writeInt(symbolCount);
+      out.writeInt(sortedNames.size());
+      out.writeInt(files);
+      out.writeInt(symbols);
+      out.writeInt(names);
+      out.writeInt(postings);
+
+      for (String string : stringList) {
+        out.writeInt(string.length());
+        out.writeChars(string);
+      }
+
+      int firstSymbol = 0;
+      for (Map.Entry<String, TartSymbolIndex.FileEntry> entry : entries.entrySet()) {
+        out.writeInt(strings.get(entry.getKey()));
+        out.writeLong(entry.getValue().stamp);
+        out.writeInt(firstSymbol);
+        out.writeInt(entry.getValue().symbols.length);
+        firstSymbol += entry.getValue().symbols.length;
+      }
+
+      int fileIndex = 0;
+      for (TartSymbolIndex.FileEntry entry : entries.values()) {
+        for (TartSymbol symbol : entry.symbols) {
+          out.writeInt(fileIndex);
+          out.writeInt(strings.get(symbol.getName()));
+          out.writeInt(symbol.getContainer() != null ? strings.get(symbol.getContainer()) : -1);
+          out.writeInt(symbol.getKind());
+          out.writeInt(symbol.getOffset());
+        }
+        ++fileIndex;
+      }
+
+      int firstPosting = 0;
+      for (String name : sortedNames) {
+        int count = postingsByName.get(name).size();
+        out.writeInt(strings.get(name));
+        out.writeInt(firstPosting);
+        out.writeInt(count);
+        firstPosting += count;
+      }
+
+      for (String name : sortedNames) {
+        for (Integer symbol : postingsByName.get(name)) {
+          out.writeInt(symbol);
+        }
+      }
+
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+  }
+
+  /** Add a string to the string table if it is not there yet, and return its size. */
+  private static int addString(String string, int offset, Map<String, Integer> strings,
+      List<String> stringList) {
+    if (strings.containsKey(string)) {
+      return 0;
+    }
+
+    strings.put(string, offset);
+    stringList.add(string);
+    return 4 + string.length() * 2;
+  }
+
+  int getFileCount() {
+    return fileCount;
+  }
+
+  int getSymbolCount() {
+    return symbolCount;
+  }
+
+  /** Return the index of the file with a path, or -1 if there is none. */
+  int findFile(String path) {
+    int low = 0;
+    int high = fileCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareString(buffer.getInt(files + mid * FILE_SIZE), path);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+  String getPath(int file) {
+    return getString(buffer.getInt(files + file * FILE_SIZE));
+  }
+
+  long getStamp(int file) {
+    return buffer.getLong(files + file * FILE_SIZE + 4);
+  }
+
+  /** Return the number of symbols declared by a file. */
+  int getFileSymbolCount(int file) {
+    return buffer.getInt(files + file * FILE_SIZE + 16);
+  }
+
+  /** Return the symbols declared by a file, in offset order. */
+  List<TartSymbol> getFileSymbols(int file) {
+    int first = buffer.getInt(files + file * FILE_SIZE + 12);
+    int count = getFileSymbolCount(file);
+    String path = getPath(file);
+    List<TartSymbol> result = new ArrayList<TartSymbol>(count);
+    for (int i = first; i < first + count; ++i) {
+      result.add(getSymbol(i, path));
+    }
+    return result;
+  }
+
+  /**
+   * Add the symbols declared with a name to a list, except those of the files for which the
+   * mask is set.
+   */
+  void addSymbols(String name, FileMask excluded, List<TartSymbol> result) {
+    int low = 0;
+    int high = nameCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int record = names + mid * NAME_SIZE;
+      int cmp = compareString(buffer.getInt(record), name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        int first = buffer.getInt(record + 4);
+        int count = buffer.getInt(record + 8);
+        // The postings of a name are in file order, so each path is decoded once.
+        int lastFile = -1;
+        String path = null;
+        for (int i = first; i < first + count; ++i) {
+          int symbol = buffer.getInt(postings + i * 4);
+          int file = buffer.getInt(symbols + symbol * SYMBOL_SIZE);
+          if (excluded.isSet(file)) {
+            continue;
+          }
+          if (file != lastFile) {
+            path = getPath(file);
+            lastFile = file;
+          }
+          result.add(getSymbol(symbol, path));
+        }
+        return;
+      }
+    }
+  }
+
+  private TartSymbol getSymbol(int symbol, String path) {
+    int record = symbols + symbol * SYMBOL_SIZE;
+    int container = buffer.getInt(record + 8);
+    return new TartSymbol(getString(buffer.getInt(record + 4)), buffer.getInt(record + 12),
+        container >= 0 ? getString(container) : null, path, buffer.getInt(record + 16));
+  }
+
+  private String getString(int offset) {
+    int length = buffer.getInt(offset);
+    char[] chars = new char[length];
+    for (int i = 0; i < length; ++i) {
+      chars[i] = buffer.getChar(offset + 4 + i * 2);
+    }
+    return new String(chars);
+  }
+
+  /** Compare a string of the table with another, in the order of String.compareTo. */
+  private int compareString(int offset, String string) {
+    int length = buffer.getInt(offset);
+    int common = Math.min(length, string.length());
+    for (int i = 0; i < common; ++i) {
+      int cmp = buffer.getChar(offset + 4 + i * 2) - string.charAt(i);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+
+    return length - string.length();
+  }
+
+  /** A set of files of an index file, which can be added to from any thread. */
+  static final class FileMask {
+    private final AtomicIntegerArray bits;
+
+    FileMask(int fileCount) {
+      bits = new AtomicIntegerArray((fileCount + 31) >>> 5);
+    }
+
+    boolean isSet(int file) {
+      return (bits.get(file >>> 5) & (1 << file)) != 0;
+    }
+
+    /** Add a file to the set, and return true if it was not in it before. */
+    boolean set(int file) {
+      int word = file >>> 5;
+      int bit = 1 << file;
+      while (true) {
+        int value = bits.get(word);
+        if ((value & bit) != 0) {
+          return false;
+        }
+        if (bits.compareAndSet(word, value, value | bit)) {
+          return true;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package org.viridia.tart.eclipse.index;
+
+import org.viridia.tart.eclipse.parser.TartNode;
+
+/**
+ * A named declaration found by the {@link TartSymbolIndex}: where it is, and what kind of
+ * declaration it is. Symbols are immutable.
+ */
+public final class TartSymbol {
+  private final String name;
+  private final int kind;
+  private final String container;
+  private final String path;
+  private final int offset;
+
+  TartSymbol(String name, int kind, String container, String path, int offset) {
+    this.name = name;
+    this.kind = kind;
+    this.container = container;
+    this.path = path;
+    this.offset = offset;
+  }
+
+  /** Return the name of the declaration. */
+  public String getName() {
+    return name;
+  }
+
+  /** Return the kind of the declaration, one of the kinds of {@link TartNode}. */
+  public int getKind() {
+    return kind;
+  }
+
+  /**
+   * Return the dotted names of the declarations which enclose this one, or null if it is
+   * declared at the top level of its file.
+   */
+  public String getContainer() {
+    return container;
+  }
+
+  /** Return the path of the file which declares the symbol. */
+  public String getPath() {
+    return path;
+  }
+
+  /** Return the offset of the name in the file. */
+  public int getOffset() {
+    return offset;
+  }
+
+  @Override
+  public String toString() {
+    return (container != null ? container + "." + name : name) + " (" + path + ":" + offset
+        + ")";
+  }
+}
@@ -0,0 +1,436 @@
+package org.viridia.tart.eclipse.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.viridia.tart.eclipse.parser.TartNode;
+import org.viridia.tart.eclipse.parser.TartParser;
+
+/**
+ * An index of the declarations of many Tart source files, by name.
+ * <p>
+ * Files are indexed in parallel on a pool with a thread per processor. Each file is a task
+ * of its own, which reads, lexes and parses the file with a parser of its thread, and shares
+ * nothing with the other tasks until it adds its symbols to the index; the pool takes tasks
+ * from a single queue, so a thread which finishes early takes the next file rather than
+ * waiting for the others. The index is made of concurrent maps, from paths to the symbols of
+ * each file and from names to their symbols in each file, which the tasks update without
+ * locking each other out. Since the symbols of a name are kept by file, replacing the
+ * symbols of a file costs the same however many other files declare the same names.
+ * <p>
+ * An index can be {@link #save saved} to a directory and {@link #load loaded} from it again,
+ * which maps the saved {@link TartIndexFile} into memory rather than reading it. The files of
+ * the saved index are looked up in the mapped file until they are indexed again or removed,
+ * which hides their saved symbols; a file whose stamp has not changed since it was saved is
+ * not indexed again at all.
+ * <p>
+ * The index can be read at any time, from any thread. A file must not be indexed or removed
+ * by two callers at once.
+ */
+public final class TartSymbolIndex {
+  /** A file to be indexed. */
+  public interface Source {
+    /** Return the path of the file, which identifies it in the index. */
+    String getPath();
+
+    /**
+     * Return a stamp which changes whenever the contents of the file change, such as its
+     * modification time. A file is not indexed again while its stamp stays the same.
+     */
+    long getStamp();
+
+    /**
+     * Read the contents of the file. This is called on a thread of the index's pool.
+     *
+     * @throws IOException If the file cannot be read; it is then dropped from the index.
+     */
+    CharSequence getText() throws IOException;
+  }
+
+  /** The symbols of a file, along with the stamp of the file they were read from. */
+  static final class FileEntry {
+    final long stamp;
+    final TartSymbol[] symbols;
+
+    FileEntry(long stamp, TartSymbol[] symbols) {
+      this.stamp = stamp;
+      this.symbols = symbols;
+    }
+  }
+
+  private static final TartSymbol[] NO_SYMBOLS = new TartSymbol[0];
+
+  private final ConcurrentHashMap<String, FileEntry> files;
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, TartSymbol[]>>
+      symbolsByName;
+  private final AtomicInteger symbolCount = new AtomicInteger();
+  private final ThreadPoolExecutor executor;
+
+  /** True if the index has changed since it was loaded or saved. */
+  private final AtomicBoolean dirty = new AtomicBoolean();
+
+  /**
+   * The index loaded from disk, or null if none was, and the files of it which have been
+   * indexed again or removed since. The live files and symbols of the loaded index are
+   * counted apart from those indexed in memory.
+   */
+  private volatile TartIndexFile savedIndex;
+  private TartIndexFile.FileMask hiddenFiles;
+  private final AtomicInteger savedFileCount = new AtomicInteger();
+  private final AtomicInteger savedSymbolCount = new AtomicInteger();
+
+  /** The parser of each thread of the pool. */
+  private final ThreadLocal<TartParser> parsers = new ThreadLocal<TartParser>() {
+    @Override
+    protected TartParser initialValue() {
+      return new TartParser();
+    }
+  };
+
+  /** Create an index whose pool has a thread per available processor. */
+  public TartSymbolIndex() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create an index.
+   *
+   * @param threads The number of threads which index files at the same time.
+   */
+  public TartSymbolIndex(int threads) {
+    files = new ConcurrentHashMap<String, FileEntry>(256, 0.75f, threads);
+    symbolsByName = new ConcurrentHashMap<String, ConcurrentHashMap<String, TartSymbol[]>>(
+        4096, 0.75f, threads);
+    executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Tart indexer " + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Load the index saved in a directory, if there is a valid one. This must be called before
+   * any file is indexed.
+   *
+   * @return True if an index was loaded.
+   */
+  public boolean load(File directory) {
+    TartIndexFile index = TartIndexFile.load(directory);
+    if (index == null) {
+      return false;
+    }
+
+    hiddenFiles = new TartIndexFile.FileMask(index.getFileCount());
+    savedFileCount.set(index.getFileCount());
+    savedSymbolCount.set(index.getSymbolCount());
+    savedIndex = index;
+    return true;
+  }
+
+  /**
+   * Save the index to a directory, to be loaded from it again later. The index may be
+   * updated while it is saved, in which case some of the updates may not be saved.
+   */
+  public void save(File directory) throws IOException {
+    dirty.set(false);
+    SortedMap<String, FileEntry> entries = new TreeMap<String, FileEntry>(files);
+    TartIndexFile index = savedIndex;
+    if (index != null) {
+      for (int file = 0; file < index.getFileCount(); ++file) {
+        String path = index.getPath(file);
+        if (!hiddenFiles.isSet(file) && !entries.containsKey(path)) {
+          List<TartSymbol> symbols = index.getFileSymbols(file);
+          entries.put(path, new FileEntry(index.getStamp(file),
+              symbols.toArray(new TartSymbol[symbols.size()])));
+        }
+      }
+    }
+
+    try {
+      TartIndexFile.save(directory, index, entries);
+    } catch (IOException e) {
+      dirty.set(true);
+      throw e;
+    }
+  }
+
+  /** Return true if the index has changed since it was loaded or last saved. */
+  public boolean isDirty() {
+    return dirty.get();
+  }
+
+  /** Stop the threads of the pool. The index can still be read, but no longer updated. */
+  public void dispose() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Index a set of files in parallel, and wait until they have all been indexed. Files which
+   * are already in the index with the same stamp are skipped.
+   *
+   * @param sources The files to index.
+   * @param monitor A monitor which is told of each file indexed, and which cancels the
+   *     files not yet indexed when it is canceled.
+   * @return False if the monitor was canceled before all the files were indexed.
+   * @throws InterruptedException If the calling thread is interrupted while it waits.
+   */
+  public boolean index(Collection<? extends Source> sources, IProgressMonitor monitor)
+      throws InterruptedException {
+    List<Future<?>> futures = new ArrayList<Future<?>>(sources.size());
+    for (final Source source : sources) {
+      if (isCurrent(source.getPath(), source.getStamp())) {
+        continue;
+      }
+
+      futures.add(executor.submit(new Callable<Object>() {
+        public Object call() {
+          indexFile(source);
+          return null;
+        }
+      }));
+    }
+
+    monitor.beginTask("Indexing Tart files", futures.size());
+    try {
+      for (int i = 0; i < futures.size(); ++i) {
+        if (monitor.isCanceled()) {
+          for (int j = i; j < futures.size(); ++j) {
+            futures.get(j).cancel(false);
+          }
+          return false;
+        }
+
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw (Error) cause;
+        }
+        monitor.worked(1);
+      }
+    } finally {
+      monitor.done();
+    }
+
+    return true;
+  }
+
+  /** Remove a file from the index. */
+  public void remove(String path) {
+    FileEntry entry = files.remove(path);
+    if (entry != null) {
+      for (TartSymbol symbol : entry.symbols) {
+        removeSymbol(symbol.getName(), path);
+      }
+      symbolCount.addAndGet(-entry.symbols.length);
+      dirty.set(true);
+    }
+    hideSavedFile(path);
+  }
+
+  /** Remove every file which is not in a set of paths from the index. */
+  public void retainAll(Set<String> paths) {
+    for (String path : files.keySet()) {
+      if (!paths.contains(path)) {
+        remove(path);
+      }
+    }
+
+    TartIndexFile index = savedIndex;
+    if (index != null) {
+      for (int file = 0; file < index.getFileCount(); ++file) {
+        if (!hiddenFiles.isSet(file) && !paths.contains(index.getPath(file))) {
+          hideSavedFile(index, file);
+        }
+      }
+    }
+  }
+
+  /** Return true if a file is in the index with the given stamp. */
+  public boolean isCurrent(String path, long stamp) {
+    FileEntry entry = files.get(path);
+    if (entry != null) {
+      return entry.stamp == stamp;
+    }
+
+    TartIndexFile index = savedIndex;
+    int file = index != null ? index.findFile(path) : -1;
+    return file >= 0 && !hiddenFiles.isSet(file) && index.getStamp(file) == stamp;
+  }
+
+  /** Return the symbols declared with a name, in no particular order. */
+  public List<TartSymbol> getSymbols(String name) {
+    List<TartSymbol> symbols = new ArrayList<TartSymbol>();
+    Map<String, TartSymbol[]> symbolsByPath = symbolsByName.get(name);
+    if (symbolsByPath != null) {
+      for (TartSymbol[] fileSymbols : symbolsByPath.values()) {
+        Collections.addAll(symbols, fileSymbols);
+      }
+    }
+
+    TartIndexFile index = savedIndex;
+    if (index != null) {
+      index.addSymbols(name, hiddenFiles, symbols);
+    }
+    return symbols;
+  }
+
+  /** Return the symbols declared in a file, in the order of their offsets. */
+  public List<TartSymbol> getFileSymbols(String path) {
+    FileEntry entry = files.get(path);
+    if (entry == null) {
+      TartIndexFile index = savedIndex;
+      int file = index != null ? index.findFile(path) : -1;
+      if (file >= 0 && !hiddenFiles.isSet(file)) {
+        return index.getFileSymbols(file);
+      }
+      return Collections.emptyList();
+    }
+
+    List<TartSymbol> symbols = new ArrayList<TartSymbol>(entry.symbols.length);
+    Collections.addAll(symbols, entry.symbols);
+    return symbols;
+  }
+
+  /** Return the number of files in the index. */
+  public int getFileCount() {
+    return files.size() + savedFileCount.get();
+  }
+
+  /** Return the number of symbols in the index. */
+  public int getSymbolCount() {
+    return symbolCount.get() + savedSymbolCount.get();
+  }
+
+  /** Read and parse a file, and replace its symbols in the index. Runs on the pool. */
+  private void indexFile(Source source) {
+    String path = source.getPath();
+    long stamp = source.getStamp();
+    CharSequence text;
+    try {
+      text = source.getText();
+    } catch (IOException e) {
+      // The file was deleted or cannot be read; it has no symbols until it can.
+      remove(path);
+      return;
+    }
+
+    TartNode root = parsers.get().parse(text);
+    List<TartSymbol> symbols = new ArrayList<TartSymbol>();
+    addSymbols(root, 0, null, path, symbols);
+    FileEntry entry = new FileEntry(stamp,
+        symbols.isEmpty() ? NO_SYMBOLS : symbols.toArray(new TartSymbol[symbols.size()]));
+
+    // Group the symbols by name, replace the file's symbols of each name, and remove those
+    // of the names which the file no longer declares.
+    Map<String, List<TartSymbol>> byName = new HashMap<String, List<TartSymbol>>();
+    for (TartSymbol symbol : entry.symbols) {
+      List<TartSymbol> list = byName.get(symbol.getName());
+      if (list == null) {
+        list = new ArrayList<TartSymbol>(1);
+        byName.put(symbol.getName(), list);
+      }
+      list.add(symbol);
+    }
+
+    FileEntry oldEntry = files.put(path, entry);
+    for (Map.Entry<String, List<TartSymbol>> group : byName.entrySet()) {
+      String name = group.getKey();
+      ConcurrentHashMap<String, TartSymbol[]> symbolsByPath = symbolsByName.get(name);
+      if (symbolsByPath == null) {
+        ConcurrentHashMap<String, TartSymbol[]> newMap =
+            new ConcurrentHashMap<String, TartSymbol[]>(2, 0.75f, 1);
+        symbolsByPath = symbolsByName.putIfAbsent(name, newMap);
+        if (symbolsByPath == null) {
+          symbolsByPath = newMap;
+        }
+      }
+      List<TartSymbol> list = group.getValue();
+      symbolsByPath.put(path, list.toArray(new TartSymbol[list.size()]));
+    }
+    if (oldEntry != null) {
+      for (TartSymbol symbol : oldEntry.symbols) {
+        if (!byName.containsKey(symbol.getName())) {
+          removeSymbol(symbol.getName(), path);
+        }
+      }
+    }
+    symbolCount.addAndGet(
+        entry.symbols.length - (oldEntry != null ? oldEntry.symbols.length : 0));
+    hideSavedFile(path);
+    dirty.set(true);
+  }
+
+  /** Hide the saved symbols of a file, which has been indexed again or removed. */
+  private void hideSavedFile(String path) {
+    TartIndexFile index = savedIndex;
+    int file = index != null ? index.findFile(path) : -1;
+    if (file >= 0) {
+      hideSavedFile(index, file);
+    }
+  }
+
+  private void hideSavedFile(TartIndexFile index, int file) {
+    if (hiddenFiles.set(file)) {
+      savedFileCount.decrementAndGet();
+      savedSymbolCount.addAndGet(-index.getFileSymbolCount(file));
+      dirty.set(true);
+    }
+  }
+
+  /** Remove the symbols of a name declared by a file. */
+  private void removeSymbol(String name, String path) {
+    // An emptied map is left in place, since another thread may be adding to it.
+    Map<String, TartSymbol[]> symbolsByPath = symbolsByName.get(name);
+    if (symbolsByPath != null) {
+      symbolsByPath.remove(path);
+    }
+  }
+
+  /** Add the symbols of the named declarations in a subtree to a list, in offset order. */
+  private static void addSymbols(TartNode node, int nodeStart, String container, String path,
+      List<TartSymbol> symbols) {
+    String name = node.getName();
+    String childContainer = container;
+    if (node.getKind() != TartNode.FILE && name != null) {
+      symbols.add(new TartSymbol(name, node.getKind(), container, path,
+          nodeStart + node.getNameOffset()));
+      childContainer = container != null ? container + "." + name : name;
+    }
+
+    for (int i = 0; i < node.getChildCount(); ++i) {
+      addSymbols(node.getChild(i), nodeStart + node.getChildOffset(i), childContainer, path,
+          symbols);
+    }
+  }
+}
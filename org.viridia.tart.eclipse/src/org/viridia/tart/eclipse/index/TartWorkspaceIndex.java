@@ -0,0 +1,360 @@
+package org.viridia.tart.eclipse.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.viridia.tart.eclipse.Activator;
+
+/**
+ * Keeps a {@link TartSymbolIndex} of every Tart source file in the workspace.
+ * <p>
+ * When started, it finds the Tart files of the workspace with a resource proxy visitor, which
+ * does not create a resource for the files it skips, and indexes them all. After that it
+ * listens to resource changes, and reindexes only the files which were added or changed,
+ * unless a project was opened, closed or removed, in which case the workspace is scanned
+ * again; files whose modification stamp has not changed are not read again either way. The
+ * work is done by a background job, so only one update runs at a time.
+ * <p>
+ * The index is saved in a state directory after the first scan and when the workspace index
+ * is disposed, and the first update loads it from there, so that on startup only the files
+ * which have changed since the index was saved are read; the others are compared by stamp,
+ * which combines the modification stamp of the file with its time stamp on disk. Like the
+ * updates, saving is done by the job, so that disposing the index never blocks the caller for
+ * longer than {@link #SAVE_TIMEOUT}.
+ */
+public final class TartWorkspaceIndex implements IResourceChangeListener {
+  /** The extension of Tart source files. */
+  private static final String EXTENSION = "tart";
+
+  /** How long to wait after a resource change before reindexing, in milliseconds. */
+  private static final long UPDATE_DELAY = 500;
+
+  /** How long dispose() waits for the index to be saved, in milliseconds. */
+  private static final long SAVE_TIMEOUT = 2000;
+
+  private final IWorkspace workspace;
+  private final File stateDirectory;
+  private final TartSymbolIndex index = new TartSymbolIndex();
+
+  private final Job job = new Job("Indexing Tart files") {
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+      return update(monitor);
+    }
+  };
+
+  // The fields below are guarded by the lock on this.
+
+  /** True if the whole workspace is to be scanned again. */
+  private boolean fullScan = true;
+
+  /** The files changed since the last update, mapped to true if added or changed. */
+  private final Map<IFile, Boolean> changedFiles = new LinkedHashMap<IFile, Boolean>();
+
+  private boolean disposed;
+
+  /** True once the job has saved the index, if needed, after the index was disposed. */
+  private boolean closed;
+
+  /** True once the saved index has been loaded, or found not to exist. */
+  private boolean loaded;
+
+  /**
+   * Start indexing a workspace.
+   *
+   * @param workspace The workspace.
+   * @param stateDirectory The directory where the index is saved between sessions, or null
+   *     to index the workspace from scratch in each session.
+   */
+  public TartWorkspaceIndex(IWorkspace workspace, File stateDirectory) {
+    this.workspace = workspace;
+    this.stateDirectory = stateDirectory;
+    job.setPriority(Job.BUILD);
+    workspace.addResourceChangeListener(this, IResourceChangeEvent.POST_CHANGE);
+    job.schedule();
+  }
+
+  /**
+   * Stop following changes to the workspace, cancel any update in progress, and have the job
+   * save the index if it has changed. Waits for the save for at most {@link #SAVE_TIMEOUT}; if
+   * it takes longer, it goes on in the background.
+   */
+  public void dispose() {
+    synchronized (this) {
+      disposed = true;
+    }
+    workspace.removeResourceChangeListener(this);
+    job.cancel();
+    // Scheduling a job which is still running makes it run again once it has stopped.
+    job.schedule();
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + SAVE_TIMEOUT;
+      try {
+        for (long wait = SAVE_TIMEOUT; !closed && wait > 0;
+            wait = deadline - System.currentTimeMillis()) {
+          wait(wait);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Return the index. It may not be complete until the first scan has finished. */
+  public TartSymbolIndex getIndex() {
+    return index;
+  }
+
+  public void resourceChanged(IResourceChangeEvent event) {
+    IResourceDelta delta = event.getDelta();
+    if (delta == null) {
+      return;
+    }
+
+    final boolean[] rescan = { false };
+    final Map<IFile, Boolean> changes = new LinkedHashMap<IFile, Boolean>();
+    try {
+      delta.accept(new IResourceDeltaVisitor() {
+        public boolean visit(IResourceDelta delta) {
+          IResource resource = delta.getResource();
+          if (resource.getType() == IResource.PROJECT
+              && (delta.getKind() == IResourceDelta.REMOVED
+                  || (delta.getFlags() & IResourceDelta.OPEN) != 0)) {
+            rescan[0] = true;
+            return false;
+          }
+
+          if (resource.getType() != IResource.FILE) {
+            return true;
+          }
+
+          if (EXTENSION.equals(resource.getFileExtension())) {
+            if (delta.getKind() == IResourceDelta.REMOVED) {
+              changes.put((IFile) resource, Boolean.FALSE);
+            } else if (delta.getKind() == IResourceDelta.ADDED
+                || (delta.getFlags() & (IResourceDelta.CONTENT | IResourceDelta.REPLACED))
+                    != 0) {
+              changes.put((IFile) resource, Boolean.TRUE);
+            }
+          }
+          return false;
+        }
+      });
+    } catch (CoreException e) {
+      rescan[0] = true;
+    }
+
+    if (!rescan[0] && changes.isEmpty()) {
+      return;
+    }
+
+    synchronized (this) {
+      if (disposed) {
+        return;
+      }
+
+      fullScan |= rescan[0];
+      changedFiles.putAll(changes);
+    }
+    job.schedule(UPDATE_DELAY);
+  }
+
+  /** Bring the index up to date with the changes queued so far. Runs in the job. */
+  private IStatus update(IProgressMonitor monitor) {
+    boolean closing;
+    synchronized (this) {
+      closing = disposed && !closed;
+    }
+    if (closing) {
+      // Save without holding the lock, which dispose() needs to stop waiting.
+      return close();
+    }
+
+    boolean scan;
+    List<IFile> changed = new ArrayList<IFile>();
+    List<IFile> removed = new ArrayList<IFile>();
+    synchronized (this) {
+      if (disposed) {
+        // dispose() has scheduled the job again, which saves the index.
+        return Status.CANCEL_STATUS;
+      }
+
+      if (!loaded) {
+        loaded = true;
+        if (stateDirectory != null) {
+          index.load(stateDirectory);
+        }
+      }
+
+      scan = fullScan;
+      fullScan = false;
+      for (Map.Entry<IFile, Boolean> change : changedFiles.entrySet()) {
+        if (change.getValue()) {
+          changed.add(change.getKey());
+        } else {
+          removed.add(change.getKey());
+        }
+      }
+      changedFiles.clear();
+    }
+
+    List<FileSource> sources = new ArrayList<FileSource>();
+    try {
+      if (scan) {
+        sources = findSources();
+        Set<String> paths = new HashSet<String>();
+        for (FileSource source : sources) {
+          paths.add(source.getPath());
+        }
+        index.retainAll(paths);
+      } else {
+        for (IFile file : removed) {
+          index.remove(file.getFullPath().toString());
+        }
+        for (IFile file : changed) {
+          if (file.isAccessible()) {
+            sources.add(new FileSource(file, file.getModificationStamp()));
+          }
+        }
+      }
+
+      if (!index.index(sources, monitor)) {
+        requeue(scan, changed);
+        return Status.CANCEL_STATUS;
+      }
+
+      if (scan && stateDirectory != null && index.isDirty()) {
+        index.save(stateDirectory);
+      }
+    } catch (IOException e) {
+      return new Status(IStatus.WARNING, Activator.PLUGIN_ID,
+          "Could not save the Tart index", e);
+    } catch (CoreException e) {
+      requeue(scan, changed);
+      return e.getStatus();
+    } catch (InterruptedException e) {
+      requeue(scan, changed);
+      Thread.currentThread().interrupt();
+      return Status.CANCEL_STATUS;
+    }
+
+    return Status.OK_STATUS;
+  }
+
+  /** Save the index if it has changed, and release it. Runs in the job, once disposed. */
+  private IStatus close() {
+    IStatus status = Status.OK_STATUS;
+    try {
+      if (stateDirectory != null && index.isDirty()) {
+        index.save(stateDirectory);
+      }
+    } catch (IOException e) {
+      // The files which were not saved are indexed again in the next session.
+      status = new Status(IStatus.WARNING, Activator.PLUGIN_ID,
+          "Could not save the Tart index", e);
+    }
+
+    index.dispose();
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    return status;
+  }
+
+  /** Queue the work of an update which did not finish, for the next one. */
+  private synchronized void requeue(boolean scan, List<IFile> changed) {
+    fullScan |= scan;
+    for (IFile file : changed) {
+      if (!changedFiles.containsKey(file)) {
+        changedFiles.put(file, Boolean.TRUE);
+      }
+    }
+  }
+
+  /** Find every Tart source file in the workspace. */
+  private List<FileSource> findSources() throws CoreException {
+    final List<FileSource> sources = new ArrayList<FileSource>();
+    workspace.getRoot().accept(new IResourceProxyVisitor() {
+      public boolean visit(IResourceProxy proxy) {
+        if (proxy.getType() != IResource.FILE) {
+          return true;
+        }
+
+        String name = proxy.getName();
+        if (name.endsWith("." + EXTENSION)) {
+          sources.add(new FileSource((IFile) proxy.requestResource(),
+              proxy.getModificationStamp()));
+        }
+        return false;
+      }
+    }, IResource.NONE);
+    return sources;
+  }
+
+  /** A workspace file to be indexed, read in the charset the workspace gives it. */
+  private static final class FileSource implements TartSymbolIndex.Source {
+    private final IFile file;
+    private final String path;
+    private final long stamp;
+
+    FileSource(IFile file, long modificationStamp) {
+      this.file = file;
+      this.path = file.getFullPath().toString();
+      // The modification stamp changes on every change made through the workspace, and the
+      // time stamp on every change made on disk, as well as when the file is replaced.
+      this.stamp = modificationStamp * 31 + file.getLocalTimeStamp();
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getStamp() {
+      return stamp;
+    }
+
+    public CharSequence getText() throws IOException {
+      try {
+        InputStream in = file.getContents();
+        try {
+          Reader reader = new InputStreamReader(in, file.getCharset());
+          StringBuilder sb = new StringBuilder();
+          char[] buffer = new char[8192];
+          int count;
+          while ((count = reader.read(buffer)) > 0) {
+            sb.append(buffer, 0, count);
+          }
+          return sb;
+        } finally {
+          in.close();
+        }
+      } catch (CoreException e) {
+        throw new IOException(e.getStatus().getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package org.viridia.tart.eclipse.lexer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Recognizes Tart keywords using a minimal perfect hash that is built when the class is loaded.
+ * Every keyword maps to its own slot in a table exactly as large as the keyword set, so a
+ * lookup is one hash of the candidate characters followed by at most one comparison, without
+ * creating a String.
+ * <p>
+ * The hash uses two levels ("hash and displace"): a cheap first-level hash of the word's
+ * length and three of its characters selects a bucket, and the bucket's displacement seed is
+ * mixed into a full hash of the characters to select the slot.
+ */
+public final class TartKeywords {
+  // Statement keywords
+  static final public String[] STATEMENT_KEYWORDS = { "if", "else", "repeat",
+      "for", "while", "return", "yield", "throw", "break", "continue",
+      "where", "switch", "case", "match", "as", "try", "catch",
+      "finally", "using", "import", "with" };
+
+  // Declaration keywords
+  static final public String[] DECL_KEYWORDS = { "namespace", "class",
+      "struct", "interface", "protocol", "enum", "let", "var", "def", "undef",
+      "override", "fn", "get", "set", "macro", "typealias", "friend" };
+
+  // Operator keywords
+  static final public String[] OPERATOR_KEYWORDS = { "and", "or",
+      "not", "is", "in", "isa" };
+
+  // Built-in type names
+  static final public String[] BUILTIN_TYPES = { "bool", "char",
+      "byte", "int", "ubyte", "uint", "float",
+      "double", "void", "int8", "int16", "int32", "int64",
+      "uint8", "uint16", "uint32", "uint64" };
+
+  // Access
+  static final public String[] VISIBILITY = { "public", "private",
+      "protected", "internal" };
+
+  // Modifiers
+  static final public String[] DECL_MODIFIERS = { "const", "constable",
+      "mutable", "readonly", "static", "abstract", "final", "optional" };
+
+  // Special symbols
+  static final public String[] SPECIAL_KEYWORDS = { "self", "super", "true",
+      "false", "null", "typecast" };
+
+  private static final int MIN_LENGTH;
+  private static final int MAX_LENGTH;
+
+  /** Keyword text, indexed by slot. */
+  private static final char[][] WORDS;
+
+  /** Token kind of each keyword, indexed by slot. */
+  private static final byte[] KINDS;
+
+  /** Displacement seed for each first-level bucket. */
+  private static final int[] SEEDS;
+
+  static {
+    String[][] tables = {
+        STATEMENT_KEYWORDS, DECL_KEYWORDS, OPERATOR_KEYWORDS, VISIBILITY, DECL_MODIFIERS,
+        BUILTIN_TYPES, SPECIAL_KEYWORDS };
+    int[] tableKinds = {
+        TokenKind.STMT_KEYWORD, TokenKind.DECL_KEYWORD, TokenKind.OPERATOR_KEYWORD,
+        TokenKind.VISIBILITY, TokenKind.MODIFIER, TokenKind.BUILTIN_TYPE,
+        TokenKind.BUILTIN_SYMBOL };
+
+    int count = 0;
+    for (String[] table : tables) {
+      count += table.length;
+    }
+
+    char[][] words = new char[count][];
+    byte[] kinds = new byte[count];
+    int minLength = Integer.MAX_VALUE;
+    int maxLength = 0;
+    int n = 0;
+    for (int t = 0; t < tables.length; ++t) {
+      for (String word : tables[t]) {
+        words[n] = word.toCharArray();
+        kinds[n] = (byte) tableKinds[t];
+        minLength = Math.min(minLength, word.length());
+        maxLength = Math.max(maxLength, word.length());
+        ++n;
+      }
+    }
+
+    MIN_LENGTH = minLength;
+    MAX_LENGTH = maxLength;
+    WORDS = new char[count][];
+    KINDS = new byte[count];
+    SEEDS = new int[count / 2 + 1];
+    build(words, kinds);
+  }
+
+  private TartKeywords() {}
+
+  /**
+   * Return the token kind of the keyword spelled by the given characters, or
+   * {@link TokenKind#IDENT} if the characters do not spell a keyword.
+   *
+   * @param buffer The character buffer.
+   * @param start The index of the first character of the word.
+   * @param length The number of characters in the word.
+   * @return The token kind.
+   */
+  public static int lookup(char[] buffer, int start, int length) {
+    if (length < MIN_LENGTH || length > MAX_LENGTH) {
+      return TokenKind.IDENT;
+    }
+
+    int bucket = bucketHash(buffer, start, length) % SEEDS.length;
+    int slot = slotHash(SEEDS[bucket], buffer, start, length) % WORDS.length;
+    char[] word = WORDS[slot];
+    if (word.length != length) {
+      return TokenKind.IDENT;
+    }
+
+    for (int i = 0; i < length; ++i) {
+      if (word[i] != buffer[start + i]) {
+        return TokenKind.IDENT;
+      }
+    }
+
+    return KINDS[slot];
+  }
+
+  /**
+   * Assign every keyword a slot. Buckets are placed largest first; for each bucket, seeds are
+   * tried in turn until all of its words land on distinct free slots.
+   */
+  private static void build(char[][] words, byte[] kinds) {
+    int numBuckets = SEEDS.length;
+    int[] bucketSizes = new int[numBuckets];
+    int[] wordBuckets = new int[words.length];
+    for (int i = 0; i < words.length; ++i) {
+      wordBuckets[i] = bucketHash(words[i], 0, words[i].length) % numBuckets;
+      ++bucketSizes[wordBuckets[i]];
+    }
+
+    Integer[] order = new Integer[numBuckets];
+    for (int b = 0; b < numBuckets; ++b) {
+      order[b] = b;
+    }
+
+    final int[] sizes = bucketSizes;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return sizes[b] - sizes[a];
+      }
+    });
+
+    boolean[] taken = new boolean[words.length];
+    int[] slots = new int[words.length];
+    for (int b : order) {
+      if (bucketSizes[b] == 0) {
+        break;
+      }
+
+      for (int seed = 1;; ++seed) {
+        int placed = 0;
+        for (int i = 0; i < words.length; ++i) {
+          if (wordBuckets[i] == b) {
+            int slot = slotHash(seed, words[i], 0, words[i].length) % words.length;
+            if (taken[slot]) {
+              break;
+            }
+            taken[slot] = true;
+            slots[placed++] = slot;
+          }
+        }
+
+        if (placed == bucketSizes[b]) {
+          SEEDS[b] = seed;
+          break;
+        }
+
+        // Undo the partial placement and try the next seed.
+        for (int i = 0; i < placed; ++i) {
+          taken[slots[i]] = false;
+        }
+      }
+    }
+
+    for (int i = 0; i < words.length; ++i) {
+      int slot = slotHash(SEEDS[wordBuckets[i]], words[i], 0, words[i].length) % words.length;
+      WORDS[slot] = words[i];
+      KINDS[slot] = kinds[i];
+    }
+  }
+
+  private static int bucketHash(char[] buffer, int start, int length) {
+    int h = length * 31 + buffer[start];
+    h = h * 31 + buffer[start + length - 1];
+    h = h * 31 + buffer[start + (length >> 1)];
+    return h & 0x7fffffff;
+  }
+
+  private static int slotHash(int seed, char[] buffer, int start, int length) {
+    // FNV-1a, with the seed folded into the offset basis.
+    int h = 0x811c9dc5 ^ (seed * 0x9e3779b9);
+    for (int i = start, end = start + length; i < end; ++i) {
+      h = (h ^ buffer[i]) * 0x01000193;
+    }
+    h ^= h >>> 16;
+    return h & 0x7fffffff;
+  }
+}
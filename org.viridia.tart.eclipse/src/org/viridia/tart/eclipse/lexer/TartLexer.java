@@ -0,0 +1,462 @@
+package org.viridia.tart.eclipse.lexer;
+
+import java.util.Arrays;
+
+/**
+ * Lexical analyzer for Tart source code. The lexer runs a single table-driven DFA: every
+ * character is mapped to a character class, and the (state, class) pair selects the next state.
+ * The longest accepted prefix wins.
+ * <p>
+ * The lexer has no dependencies outside of the JDK, so it can be used by the editor, by command
+ * line tools and by benchmarks alike. Tokens are reported as a {@link TokenKind} plus the start
+ * and end offsets of the token; no objects are allocated per token.
+ */
+public final class TartLexer {
+  // Character classes.
+  private static final int C_OTHER = 0;
+  private static final int C_WS = 1;
+  private static final int C_CR = 2;
+  private static final int C_LF = 3;
+  private static final int C_ZERO = 4;
+  private static final int C_DIGIT = 5;
+  private static final int C_X = 6;
+  private static final int C_HEX = 7;
+  private static final int C_LETTER = 8;
+  private static final int C_IDPART = 9;
+  private static final int C_UNDERSCORE = 10;
+  private static final int C_DOLLAR = 11;
+  private static final int C_DOT = 12;
+  private static final int C_SQUOTE = 13;
+  private static final int C_DQUOTE = 14;
+  private static final int C_BACKSLASH = 15;
+  private static final int C_AT = 16;
+  private static final int C_COLON = 17;
+  private static final int C_PLUS = 18;
+  private static final int C_MINUS = 19;
+  private static final int C_EQ = 20;
+  private static final int C_LT = 21;
+  private static final int C_GT = 22;
+  private static final int C_BAR = 23;
+  private static final int C_AMP = 24;
+  private static final int C_QUESTION = 25;
+  private static final int C_OP_ASSIGN = 26;  // % ^ ~ !
+  private static final int C_PUNCT = 27;      // { } [ ] ( ) ; ,
+  private static final int C_STAR = 28;
+  private static final int C_SLASH = 29;
+  private static final int NUM_CLASSES = 30;
+
+  // DFA states.
+  private static final int S_START = 0;
+  private static final int S_START_COMMENTS = 1;
+  private static final int S_WS = 2;
+  private static final int S_ZERO = 3;
+  private static final int S_NUM = 4;
+  private static final int S_NUM_FRAC = 5;
+  private static final int S_HEX_PREFIX = 6;
+  private static final int S_HEX = 7;
+  private static final int S_SQ = 8;
+  private static final int S_SQ_ESC = 9;
+  private static final int S_DQ = 10;
+  private static final int S_DQ_ESC = 11;
+  private static final int S_STR_CR = 12;
+  private static final int S_STR_END = 13;
+  private static final int S_ATTR = 14;
+  private static final int S_IDENT = 15;
+  private static final int S_OTHER = 16;
+  private static final int S_SLASH = 17;
+  private static final int S_LINE_START = 18;
+  private static final int S_LINE = 19;
+  private static final int S_LINE_CR = 20;
+  private static final int S_LINE_END = 21;
+  private static final int S_DOC_LINE = 22;
+  private static final int S_DOC_LINE_CR = 23;
+  private static final int S_DOC_LINE_END = 24;
+  private static final int S_BLOCK_START = 25;
+  private static final int S_BLOCK_START_STAR = 26;
+  private static final int S_BLOCK = 27;
+  private static final int S_BLOCK_STAR = 28;
+  private static final int S_BLOCK_END = 29;
+  private static final int S_DOC = 30;
+  private static final int S_DOC_STAR = 31;
+  private static final int S_DOC_END = 32;
+  private static final int S_OP_END = 33;
+  private static final int S_COLON = 34;
+  private static final int S_PLUS = 35;
+  private static final int S_MINUS = 36;
+  private static final int S_OP_ASSIGN = 37;
+  private static final int S_BAR = 38;
+  private static final int S_AMP = 39;
+  private static final int S_LT = 40;
+  private static final int S_GT = 41;
+  private static final int S_CMP_EQ = 42;
+  private static final int S_SHIFT_LEFT = 43;
+  private static final int S_SHIFT_RIGHT = 44;
+  private static final int NUM_STATES = 45;
+
+  /** Character class of each ASCII character. */
+  private static final byte[] ASCII_CLASSES = new byte[128];
+
+  /** Next state, indexed by state * NUM_CLASSES + class; -1 means the token ends. */
+  private static final byte[] TRANSITIONS = new byte[NUM_STATES * NUM_CLASSES];
+
+  /** Token kind accepted in each state, or -1 if the state is not accepting. */
+  private static final byte[] ACCEPTS = new byte[NUM_STATES];
+
+  static {
+    for (int c = 0; c < 128; ++c) {
+      ASCII_CLASSES[c] = (byte) classify((char) c);
+    }
+
+    Arrays.fill(TRANSITIONS, (byte) -1);
+    Arrays.fill(ACCEPTS, (byte) -1);
+
+    // Whitespace
+    on(S_START, S_WS, C_WS, C_CR, C_LF);
+    on(S_WS, S_WS, C_WS, C_CR, C_LF);
+    accept(S_WS, TokenKind.WHITESPACE);
+
+    // Numbers: digits with optional '_' separators and fraction, or a hex constant.
+    on(S_START, S_ZERO, C_ZERO);
+    on(S_START, S_NUM, C_DIGIT);
+    on(S_ZERO, S_NUM, C_ZERO, C_DIGIT, C_UNDERSCORE);
+    on(S_ZERO, S_HEX_PREFIX, C_X);
+    on(S_ZERO, S_NUM_FRAC, C_DOT);
+    on(S_NUM, S_NUM, C_ZERO, C_DIGIT, C_UNDERSCORE);
+    on(S_NUM, S_NUM_FRAC, C_DOT);
+    on(S_NUM_FRAC, S_NUM_FRAC, C_ZERO, C_DIGIT, C_UNDERSCORE);
+    on(S_HEX_PREFIX, S_HEX, C_ZERO, C_DIGIT, C_HEX);
+    on(S_HEX, S_HEX, C_ZERO, C_DIGIT, C_HEX, C_UNDERSCORE);
+    accept(S_ZERO, TokenKind.NUMBER);
+    accept(S_NUM, TokenKind.NUMBER);
+    accept(S_NUM_FRAC, TokenKind.NUMBER);
+    accept(S_HEX, TokenKind.NUMBER);
+
+    // Character and string literals. A literal ends at the closing quote or at the end
+    // of the line, even if a backslash precedes the line delimiter, so that no token
+    // continues onto the next line; a literal that is still open at the end of the range
+    // is not a literal.
+    on(S_START, S_SQ, C_SQUOTE);
+    onAllExcept(S_SQ, S_SQ, C_SQUOTE, C_BACKSLASH, C_CR, C_LF);
+    on(S_SQ, S_STR_END, C_SQUOTE, C_LF);
+    on(S_SQ, S_SQ_ESC, C_BACKSLASH);
+    on(S_SQ, S_STR_CR, C_CR);
+    onAllExcept(S_SQ_ESC, S_SQ, C_CR, C_LF);
+    on(S_SQ_ESC, S_STR_END, C_LF);
+    on(S_SQ_ESC, S_STR_CR, C_CR);
+    on(S_START, S_DQ, C_DQUOTE);
+    onAllExcept(S_DQ, S_DQ, C_DQUOTE, C_BACKSLASH, C_CR, C_LF);
+    on(S_DQ, S_STR_END, C_DQUOTE, C_LF);
+    on(S_DQ, S_DQ_ESC, C_BACKSLASH);
+    on(S_DQ, S_STR_CR, C_CR);
+    onAllExcept(S_DQ_ESC, S_DQ, C_CR, C_LF);
+    on(S_DQ_ESC, S_STR_END, C_LF);
+    on(S_DQ_ESC, S_STR_CR, C_CR);
+    on(S_STR_CR, S_STR_END, C_LF);
+    accept(S_STR_CR, TokenKind.STRING);
+    accept(S_STR_END, TokenKind.STRING);
+
+    // Attributes: '@' followed by a dotted name.
+    on(S_START, S_ATTR, C_AT);
+    on(S_ATTR, S_ATTR, C_ZERO, C_DIGIT, C_X, C_HEX, C_LETTER, C_IDPART, C_UNDERSCORE,
+        C_DOLLAR, C_DOT);
+    accept(S_ATTR, TokenKind.ATTRIBUTE);
+
+    // Identifiers and keywords.
+    on(S_START, S_IDENT, C_X, C_HEX, C_LETTER, C_UNDERSCORE);
+    on(S_IDENT, S_IDENT, C_ZERO, C_DIGIT, C_X, C_HEX, C_LETTER, C_IDPART, C_UNDERSCORE,
+        C_DOLLAR);
+    accept(S_IDENT, TokenKind.IDENT);
+
+    // Operators, longest match first.
+    on(S_START, S_OP_END, C_PUNCT, C_QUESTION, C_DOLLAR);
+    on(S_START, S_COLON, C_COLON);
+    on(S_COLON, S_OP_END, C_COLON);
+    on(S_START, S_PLUS, C_PLUS);
+    on(S_PLUS, S_OP_END, C_PLUS, C_EQ);
+    on(S_START, S_MINUS, C_MINUS);
+    on(S_MINUS, S_OP_END, C_MINUS, C_EQ, C_GT);
+    on(S_START, S_OP_ASSIGN, C_OP_ASSIGN, C_STAR, C_EQ);
+    on(S_OP_ASSIGN, S_OP_END, C_EQ);
+    on(S_START, S_BAR, C_BAR);
+    on(S_BAR, S_OP_END, C_BAR, C_EQ);
+    on(S_START, S_AMP, C_AMP);
+    on(S_AMP, S_OP_END, C_AMP, C_EQ);
+    on(S_START, S_LT, C_LT);
+    on(S_LT, S_CMP_EQ, C_EQ);
+    on(S_LT, S_OP_END, C_QUESTION);
+    on(S_LT, S_SHIFT_LEFT, C_LT);
+    on(S_SHIFT_LEFT, S_OP_END, C_EQ);
+    on(S_START, S_GT, C_GT);
+    on(S_GT, S_CMP_EQ, C_EQ);
+    on(S_GT, S_OP_END, C_QUESTION);
+    on(S_GT, S_SHIFT_RIGHT, C_GT);
+    on(S_SHIFT_RIGHT, S_OP_END, C_EQ);
+    on(S_CMP_EQ, S_OP_END, C_QUESTION);
+    for (int state = S_OP_END; state < NUM_STATES; ++state) {
+      accept(state, TokenKind.OPERATOR);
+    }
+
+    // Anything else is a single character in the default style.
+    on(S_START, S_OTHER, C_OTHER, C_IDPART, C_DOT, C_BACKSLASH, C_SLASH);
+    accept(S_OTHER, TokenKind.DEFAULT);
+
+    // When comments are recognized, the start state is the same except for '/'.
+    System.arraycopy(TRANSITIONS, S_START * NUM_CLASSES,
+        TRANSITIONS, S_START_COMMENTS * NUM_CLASSES, NUM_CLASSES);
+    on(S_START_COMMENTS, S_SLASH, C_SLASH);
+    on(S_SLASH, S_LINE_START, C_SLASH);
+    on(S_SLASH, S_BLOCK_START, C_STAR);
+    accept(S_SLASH, TokenKind.DEFAULT);
+
+    // Line comments include the line delimiter; "///" starts a doc comment.
+    onAllExcept(S_LINE_START, S_LINE, C_SLASH, C_CR, C_LF);
+    on(S_LINE_START, S_DOC_LINE, C_SLASH);
+    on(S_LINE_START, S_LINE_CR, C_CR);
+    on(S_LINE_START, S_LINE_END, C_LF);
+    onAllExcept(S_LINE, S_LINE, C_CR, C_LF);
+    on(S_LINE, S_LINE_CR, C_CR);
+    on(S_LINE, S_LINE_END, C_LF);
+    on(S_LINE_CR, S_LINE_END, C_LF);
+    accept(S_LINE_START, TokenKind.SINGLE_LINE_COMMENT);
+    accept(S_LINE, TokenKind.SINGLE_LINE_COMMENT);
+    accept(S_LINE_CR, TokenKind.SINGLE_LINE_COMMENT);
+    accept(S_LINE_END, TokenKind.SINGLE_LINE_COMMENT);
+    onAllExcept(S_DOC_LINE, S_DOC_LINE, C_CR, C_LF);
+    on(S_DOC_LINE, S_DOC_LINE_CR, C_CR);
+    on(S_DOC_LINE, S_DOC_LINE_END, C_LF);
+    on(S_DOC_LINE_CR, S_DOC_LINE_END, C_LF);
+    accept(S_DOC_LINE, TokenKind.DOC_COMMENT);
+    accept(S_DOC_LINE_CR, TokenKind.DOC_COMMENT);
+    accept(S_DOC_LINE_END, TokenKind.DOC_COMMENT);
+
+    // Block comments; "/**" starts a doc comment, but "/**/" is an empty block comment.
+    // A block comment that is not closed before the end of the range is not a comment.
+    onAllExcept(S_BLOCK_START, S_BLOCK, C_STAR);
+    on(S_BLOCK_START, S_BLOCK_START_STAR, C_STAR);
+    onAllExcept(S_BLOCK_START_STAR, S_DOC, C_STAR, C_SLASH);
+    on(S_BLOCK_START_STAR, S_DOC_STAR, C_STAR);
+    on(S_BLOCK_START_STAR, S_BLOCK_END, C_SLASH);
+    onAllExcept(S_BLOCK, S_BLOCK, C_STAR);
+    on(S_BLOCK, S_BLOCK_STAR, C_STAR);
+    onAllExcept(S_BLOCK_STAR, S_BLOCK, C_STAR, C_SLASH);
+    on(S_BLOCK_STAR, S_BLOCK_STAR, C_STAR);
+    on(S_BLOCK_STAR, S_BLOCK_END, C_SLASH);
+    accept(S_BLOCK_END, TokenKind.MULTI_LINE_COMMENT);
+    onAllExcept(S_DOC, S_DOC, C_STAR);
+    on(S_DOC, S_DOC_STAR, C_STAR);
+    onAllExcept(S_DOC_STAR, S_DOC, C_STAR, C_SLASH);
+    on(S_DOC_STAR, S_DOC_STAR, C_STAR);
+    on(S_DOC_STAR, S_DOC_END, C_SLASH);
+    accept(S_DOC_END, TokenKind.DOC_COMMENT);
+  }
+
+  private static int classify(char c) {
+    switch (c) {
+      case '\r': return C_CR;
+      case '\n': return C_LF;
+      case '0': return C_ZERO;
+      case 'x': case 'X': return C_X;
+      case '_': return C_UNDERSCORE;
+      case '$': return C_DOLLAR;
+      case '.': return C_DOT;
+      case '\'': return C_SQUOTE;
+      case '"': return C_DQUOTE;
+      case '\\': return C_BACKSLASH;
+      case '@': return C_AT;
+      case ':': return C_COLON;
+      case '+': return C_PLUS;
+      case '-': return C_MINUS;
+      case '=': return C_EQ;
+      case '<': return C_LT;
+      case '>': return C_GT;
+      case '|': return C_BAR;
+      case '&': return C_AMP;
+      case '?': return C_QUESTION;
+      case '*': return C_STAR;
+      case '/': return C_SLASH;
+      case '%': case '^': case '~': case '!': return C_OP_ASSIGN;
+      case '{': case '}': case '[': case ']': case '(': case ')': case ';': case ',':
+        return C_PUNCT;
+    }
+
+    if (Character.isWhitespace(c)) {
+      return C_WS;
+    } else if (Character.isDigit(c)) {
+      return C_DIGIT;
+    } else if ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+      return C_HEX;
+    } else if (Character.isJavaIdentifierStart(c)) {
+      return C_LETTER;
+    } else if (Character.isJavaIdentifierPart(c)) {
+      return C_IDPART;
+    }
+
+    return C_OTHER;
+  }
+
+  private static void on(int state, int next, int... classes) {
+    for (int cls : classes) {
+      TRANSITIONS[state * NUM_CLASSES + cls] = (byte) next;
+    }
+  }
+
+  private static void onAllExcept(int state, int next, int... excluded) {
+    for (int cls = 0; cls < NUM_CLASSES; ++cls) {
+      TRANSITIONS[state * NUM_CLASSES + cls] = (byte) next;
+    }
+    for (int cls : excluded) {
+      TRANSITIONS[state * NUM_CLASSES + cls] = -1;
+    }
+  }
+
+  private static void accept(int state, int kind) {
+    ACCEPTS[state] = (byte) kind;
+  }
+
+  /**
+   * The largest buffer kept for lexing character sequences. A larger range is copied into a
+   * buffer of its own, which is let go once the range has been lexed.
+   */
+  private static final int MAX_KEPT_BUFFER = 16 * 1024;
+
+  private final int startState;
+
+  /** Buffer used when lexing a CharSequence. */
+  private char[] ownBuffer = new char[256];
+
+  /** The characters being lexed. */
+  private char[] buffer = ownBuffer;
+
+  /** Offset added to buffer indices to get token offsets. */
+  private int base;
+  private int end;
+  private int tokenStart;
+  private int pos;
+
+  /**
+   * Construct a lexer which does not recognize comments. This is what the editor uses for
+   * the code partitions of a document, which never contain comments.
+   */
+  public TartLexer() {
+    this(false);
+  }
+
+  /**
+   * Construct a lexer.
+   *
+   * @param comments If true, comments are reported as comment tokens; otherwise comment
+   *     delimiters are lexed as ordinary characters.
+   */
+  public TartLexer(boolean comments) {
+    startState = comments ? S_START_COMMENTS : S_START;
+  }
+
+  /**
+   * Prepare to lex a range of a character array. The array is used directly, and must not
+   * be modified while lexing. Token offsets are indices into the array.
+   */
+  public void reset(char[] text, int start, int end) {
+    this.buffer = text;
+    this.base = 0;
+    this.pos = start;
+    this.tokenStart = start;
+    this.end = end;
+  }
+
+  /**
+   * Prepare to lex a range of a character sequence. The characters of the range are copied,
+   * so the sequence may be modified afterwards. Token offsets are indices into the sequence.
+   * <p>
+   * The buffer the characters are copied into is reused from one range to the next, up to
+   * {@link #MAX_KEPT_BUFFER} characters, so that lexing one large range does not leave the
+   * lexer holding a copy of it.
+   */
+  public void reset(CharSequence text, int start, int end) {
+    int length = end - start;
+    char[] chars = ownBuffer;
+    if (chars.length < length) {
+      if (length > MAX_KEPT_BUFFER) {
+        chars = new char[length];
+      } else {
+        chars = new char[Math.min(MAX_KEPT_BUFFER, Math.max(length, chars.length * 2))];
+        ownBuffer = chars;
+      }
+    }
+
+    if (text instanceof String) {
+      ((String) text).getChars(start, end, chars, 0);
+    } else {
+      for (int i = 0; i < length; ++i) {
+        chars[i] = text.charAt(start + i);
+      }
+    }
+
+    this.buffer = chars;
+    this.base = start;
+    this.pos = 0;
+    this.tokenStart = 0;
+    this.end = length;
+  }
+
+  /**
+   * Lex the next token.
+   *
+   * @return The {@link TokenKind} of the token, or {@link TokenKind#EOF} at the end of the range.
+   */
+  public int next() {
+    tokenStart = pos;
+    if (pos >= end) {
+      // Let go of the text, which may be a large copy made by reset().
+      buffer = ownBuffer;
+      return TokenKind.EOF;
+    }
+
+    final char[] buf = buffer;
+    final int limit = end;
+    int state = startState;
+    int acceptKind = -1;
+    int acceptEnd = pos;
+    for (int p = pos; p < limit; ) {
+      char c = buf[p];
+      int next = TRANSITIONS[state * NUM_CLASSES + (c < 128 ? ASCII_CLASSES[c] : classify(c))];
+      if (next < 0) {
+        break;
+      }
+
+      state = next;
+      ++p;
+      if (ACCEPTS[state] >= 0) {
+        acceptKind = ACCEPTS[state];
+        acceptEnd = p;
+      }
+    }
+
+    if (acceptKind < 0) {
+      // An unterminated literal: the opening quote is an ordinary character.
+      acceptKind = TokenKind.DEFAULT;
+      acceptEnd = pos + 1;
+    }
+
+    pos = acceptEnd;
+    if (acceptKind == TokenKind.IDENT) {
+      return TartKeywords.lookup(buf, tokenStart, pos - tokenStart);
+    }
+
+    return acceptKind;
+  }
+
+  /** Return the offset of the start of the current token. */
+  public int getTokenStart() {
+    return base + tokenStart;
+  }
+
+  /** Return the offset just past the end of the current token. */
+  public int getTokenEnd() {
+    return base + pos;
+  }
+
+  /** Return the length of the current token. */
+  public int getTokenLength() {
+    return pos - tokenStart;
+  }
+}
@@ -0,0 +1,210 @@
+package org.viridia.tart.eclipse.lexer;
+
+/**
+ * Divides Tart source text into partitions: comments, doc comments, and runs of code. Each
+ * comment is reported as a token of one of the comment kinds; the code between comments is
+ * reported as a single {@link TokenKind#DEFAULT} token.
+ * <p>
+ * Line comments extend to the end of the line, including the line delimiter. A block comment
+ * which is not closed before the end of the range is not a comment.
+ * <p>
+ * Comment delimiters inside string and character literals do not start comments. Literals
+ * follow the same rules as in {@link TartLexer}: a literal ends at its closing quote or at
+ * the end of the line, even one that follows a backslash, and a quote which is still open at
+ * the end of the range is an ordinary character.
+ */
+public final class TartPartitionLexer {
+  private CharSequence text;
+  private int end;
+  private int tokenStart;
+  private int pos;
+
+  /** The comment found by the last call to {@link #matchComment}. */
+  private int commentStart = -1;
+  private int commentEnd;
+  private int commentKind;
+
+  /**
+   * Block comments starting at or after this offset can't be closed, because a search
+   * starting here has already failed to find the closing delimiter.
+   */
+  private int unclosedFrom;
+
+  /** The start of the first block comment found to be unclosed, or -1. */
+  private int firstUnclosed;
+
+  /**
+   * Prepare to lex a range of a character sequence. Token offsets are indices into the
+   * sequence.
+   */
+  public void reset(CharSequence text, int start, int end) {
+    this.text = text;
+    this.end = end;
+    this.pos = start;
+    this.tokenStart = start;
+    this.commentStart = -1;
+    this.unclosedFrom = Integer.MAX_VALUE;
+    this.firstUnclosed = -1;
+  }
+
+  /**
+   * Lex the next partition.
+   *
+   * @return The {@link TokenKind} of the partition, or {@link TokenKind#EOF} at the end of
+   *     the range.
+   */
+  public int next() {
+    tokenStart = pos;
+    if (pos >= end) {
+      return TokenKind.EOF;
+    }
+
+    if (commentStart == pos || matchComment(pos)) {
+      pos = commentEnd;
+      commentStart = -1;
+      return commentKind;
+    }
+
+    // Code extends up to the next comment, which is kept for the next call.
+    int p = pos + 1;
+    char c = text.charAt(pos);
+    if (c == '"' || c == '\'') {
+      p = literalEnd(pos, c);
+    }
+
+    while (p < end) {
+      c = text.charAt(p);
+      switch (c) {
+        case '/':
+          if (matchComment(p)) {
+            pos = p;
+            return TokenKind.DEFAULT;
+          }
+          ++p;
+          break;
+
+        case '"':
+        case '\'':
+          p = literalEnd(p, c);
+          break;
+
+        default:
+          ++p;
+          break;
+      }
+    }
+
+    pos = end;
+    return TokenKind.DEFAULT;
+  }
+
+  /** Return the offset of the start of the current partition. */
+  public int getTokenStart() {
+    return tokenStart;
+  }
+
+  /** Return the offset just past the end of the current partition. */
+  public int getTokenEnd() {
+    return pos;
+  }
+
+  /**
+   * Return the start of the first block comment opener seen so far which is not closed
+   * before the end of the range, or -1 if there is none.
+   */
+  public int getFirstUnclosed() {
+    return firstUnclosed;
+  }
+
+  /**
+   * If a comment starts at the given offset, record its extent and kind and return true.
+   */
+  private boolean matchComment(int start) {
+    if (start + 1 >= end || text.charAt(start) != '/') {
+      return false;
+    }
+
+    char c = text.charAt(start + 1);
+    if (c == '/') {
+      commentKind = (start + 2 < end && text.charAt(start + 2) == '/')
+          ? TokenKind.DOC_COMMENT : TokenKind.SINGLE_LINE_COMMENT;
+      commentEnd = lineEnd(start + 2);
+    } else if (c == '*') {
+      // "/**" starts a doc comment, but "/**/" is an empty block comment.
+      int bodyStart = start + 2;
+      commentKind = TokenKind.MULTI_LINE_COMMENT;
+      if (bodyStart + 1 < end && text.charAt(bodyStart) == '*'
+          && text.charAt(bodyStart + 1) != '/') {
+        commentKind = TokenKind.DOC_COMMENT;
+        ++bodyStart;
+      }
+
+      commentEnd = blockEnd(bodyStart);
+      if (commentEnd < 0) {
+        if (firstUnclosed < 0) {
+          firstUnclosed = start;
+        }
+        return false;
+      }
+    } else {
+      return false;
+    }
+
+    commentStart = start;
+    return true;
+  }
+
+  /**
+   * Return the offset just past the string or character literal which starts with the
+   * quote at p, or p + 1 if the literal is not closed before the end of the range.
+   */
+  private int literalEnd(int p, char quote) {
+    int i = p + 1;
+    while (i < end) {
+      char c = text.charAt(i++);
+      if (c == quote || c == '\n') {
+        return i;
+      } else if (c == '\r') {
+        return i < end && text.charAt(i) == '\n' ? i + 1 : i;
+      } else if (c == '\\' && i < end && text.charAt(i) != '\n' && text.charAt(i) != '\r') {
+        // An escape sequence; a line delimiter still ends the literal.
+        ++i;
+      }
+    }
+
+    return p + 1;
+  }
+
+  /** Return the offset just past the line delimiter which ends the line containing p. */
+  private int lineEnd(int p) {
+    while (p < end) {
+      char c = text.charAt(p++);
+      if (c == '\n') {
+        break;
+      } else if (c == '\r') {
+        if (p < end && text.charAt(p) == '\n') {
+          ++p;
+        }
+        break;
+      }
+    }
+
+    return p;
+  }
+
+  /** Return the offset just past the first "*&#47;" at or after p, or -1 if there is none. */
+  private int blockEnd(int p) {
+    if (p >= unclosedFrom) {
+      return -1;
+    }
+
+    for (int i = p; i + 1 < end; ++i) {
+      if (text.charAt(i) == '*' && text.charAt(i + 1) == '/') {
+        return i + 2;
+      }
+    }
+
+    unclosedFrom = p;
+    return -1;
+  }
+}
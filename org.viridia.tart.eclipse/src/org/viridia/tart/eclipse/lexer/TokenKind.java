@@ -0,0 +1,48 @@
+package org.viridia.tart.eclipse.lexer;
+
+/**
+ * The kinds of tokens produced by {@link TartLexer} and {@link TartPartitionLexer}. Kinds are
+ * small consecutive integers so that clients can use them to index tables.
+ */
+public final class TokenKind {
+  /** Returned when there are no more tokens. */
+  public static final int EOF = -1;
+
+  public static final int WHITESPACE = 0;
+  /** A character that is not part of any other kind of token, or a run of code in partitions. */
+  public static final int DEFAULT = 1;
+  public static final int NUMBER = 2;
+  public static final int STRING = 3;
+  public static final int OPERATOR = 4;
+  public static final int ATTRIBUTE = 5;
+  public static final int IDENT = 6;
+  public static final int STMT_KEYWORD = 7;
+  public static final int DECL_KEYWORD = 8;
+  public static final int OPERATOR_KEYWORD = 9;
+  public static final int VISIBILITY = 10;
+  public static final int MODIFIER = 11;
+  public static final int BUILTIN_TYPE = 12;
+  public static final int BUILTIN_SYMBOL = 13;
+  public static final int SINGLE_LINE_COMMENT = 14;
+  public static final int MULTI_LINE_COMMENT = 15;
+  public static final int DOC_COMMENT = 16;
+
+  /** The number of token kinds. */
+  public static final int COUNT = 17;
+
+  /** The mask of the comment kinds, with bit (1 << kind) set for each. */
+  public static final int COMMENT_MASK =
+      (1 << SINGLE_LINE_COMMENT) | (1 << MULTI_LINE_COMMENT) | (1 << DOC_COMMENT);
+
+  private TokenKind() {}
+
+  /** Return true if the given kind is one of the keyword kinds. */
+  public static boolean isKeyword(int kind) {
+    return kind >= STMT_KEYWORD && kind <= BUILTIN_SYMBOL;
+  }
+
+  /** Return true if the given kind is one of the comment kinds. */
+  public static boolean isComment(int kind) {
+    return kind >= SINGLE_LINE_COMMENT && kind <= DOC_COMMENT;
+  }
+}
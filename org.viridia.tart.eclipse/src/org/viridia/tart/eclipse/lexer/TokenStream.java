@@ -0,0 +1,119 @@
+package org.viridia.tart.eclipse.lexer;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of tokens, stored as parallel arrays of offsets, lengths and kinds rather
+ * than as one object per token. A stream is meant to be cleared and refilled, so that once
+ * its arrays have grown to fit, lexing into it allocates nothing.
+ */
+public final class TokenStream {
+  private int[] offsets;
+  private int[] lengths;
+  private byte[] kinds;
+  private int size;
+
+  public TokenStream() {
+    this(64);
+  }
+
+  /**
+   * Construct a token stream.
+   *
+   * @param capacity The number of tokens the stream can hold before its arrays must grow.
+   */
+  public TokenStream(int capacity) {
+    capacity = Math.max(1, capacity);
+    offsets = new int[capacity];
+    lengths = new int[capacity];
+    kinds = new byte[capacity];
+  }
+
+  /** Remove all tokens, keeping the arrays for reuse. */
+  public void clear() {
+    size = 0;
+  }
+
+  /** Return the number of tokens in the stream. */
+  public int size() {
+    return size;
+  }
+
+  /** Append a token. */
+  public void add(int offset, int length, int kind) {
+    if (size == offsets.length) {
+      int capacity = size * 2;
+      offsets = Arrays.copyOf(offsets, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      kinds = Arrays.copyOf(kinds, capacity);
+    }
+
+    offsets[size] = offset;
+    lengths[size] = length;
+    kinds[size] = (byte) kind;
+    ++size;
+  }
+
+  /**
+   * Append a token, or extend the last token if it has the same kind and ends where the new
+   * token starts.
+   */
+  public void addMerged(int offset, int length, int kind) {
+    int last = size - 1;
+    if (last >= 0 && kinds[last] == kind && offsets[last] + lengths[last] == offset) {
+      lengths[last] += length;
+    } else {
+      add(offset, length, kind);
+    }
+  }
+
+  /**
+   * Append the remaining tokens of a lexer.
+   *
+   * @param lexer The lexer, which has been reset to the range to be lexed.
+   * @param skipWhitespace If true, whitespace tokens are left out.
+   */
+  public void lex(TartLexer lexer, boolean skipWhitespace) {
+    int kind;
+    while ((kind = lexer.next()) != TokenKind.EOF) {
+      if (kind != TokenKind.WHITESPACE || !skipWhitespace) {
+        add(lexer.getTokenStart(), lexer.getTokenLength(), kind);
+      }
+    }
+  }
+
+  /** Return the offset of a token. */
+  public int getOffset(int index) {
+    return offsets[index];
+  }
+
+  /** Return the length of a token. */
+  public int getLength(int index) {
+    return lengths[index];
+  }
+
+  /** Return the offset just past the end of a token. */
+  public int getEnd(int index) {
+    return offsets[index] + lengths[index];
+  }
+
+  /** Return the {@link TokenKind} of a token. */
+  public int getKind(int index) {
+    return kinds[index];
+  }
+
+  /**
+   * Return the index of the first token which ends after the given offset, or the size of the
+   * stream if there is none. The tokens must be in order and must not overlap.
+   */
+  public int indexOf(int offset) {
+    int index = Arrays.binarySearch(offsets, 0, size, offset);
+    if (index < 0) {
+      index = -index - 2;
+    }
+    if (index < 0 || offsets[index] + lengths[index] <= offset) {
+      ++index;
+    }
+    return index;
+  }
+}
@@ -0,0 +1,207 @@
+package org.viridia.tart.eclipse.parser;
+
+import java.util.Arrays;
+
+/**
+ * A declaration in the syntax tree built by {@link TartParser}, or the root of the tree.
+ * <p>
+ * Nodes are immutable, and do not know where they are: every offset a node holds is relative
+ * to its own start, and the offset of each child is held by its parent. This is what lets the
+ * parser share an unchanged subtree between the trees before and after an edit, wherever the
+ * edit moved it. The absolute offset of a node is the sum of the child offsets on the path
+ * from the root.
+ * <p>
+ * The only mutable state of a node is the result of its semantic analysis, which depends on
+ * nothing but the text of the node, and is only touched by {@link TartSemanticAnalyzer}.
+ */
+public final class TartNode {
+  // Node kinds.
+  public static final int FILE = 0;
+  public static final int NAMESPACE = 1;
+  public static final int CLASS = 2;
+  public static final int STRUCT = 3;
+  public static final int INTERFACE = 4;
+  public static final int PROTOCOL = 5;
+  public static final int ENUM = 6;
+  public static final int DEF = 7;
+  public static final int FN = 8;
+  public static final int VAR = 9;
+  public static final int LET = 10;
+  public static final int MACRO = 11;
+  public static final int TYPEALIAS = 12;
+
+  /** The number of node kinds. */
+  public static final int COUNT = 13;
+
+  // Error flags.
+  /** The declaration has no name. */
+  public static final int MISSING_NAME = 1;
+  /** The body of the declaration is not closed. */
+  public static final int UNCLOSED_BODY = 2;
+
+  /** Set if the node or any of its descendants has an error. */
+  private static final int CONTAINS_ERRORS = 1 << 8;
+
+  /** The keyword which introduces each kind of declaration. */
+  private static final String[] KEYWORDS = {
+    null, "namespace", "class", "struct", "interface", "protocol", "enum", "def", "fn", "var",
+    "let", "macro", "typealias",
+  };
+
+  private static final TartNode[] NO_CHILDREN = new TartNode[0];
+  private static final int[] NO_OFFSETS = new int[0];
+
+  private final int kind;
+  private final String name;
+  private final int nameOffset;
+  private final int length;
+  private final int bodyOffset;
+  private final int flags;
+
+  /**
+   * The number of characters from the start of the node which the parser looked at to parse
+   * it. This can reach past the end of the node, as the parser sometimes needs to see the
+   * next token to know where the node ends.
+   */
+  final int extent;
+
+  /**
+   * The number of characters before the start of the node which the parser looked at: those
+   * back to the start of its line, whose indentation decides where an unclosed body ends.
+   */
+  final int lead;
+
+  private final TartNode[] children;
+  private final int[] childOffsets;
+
+  /** What the semantic analyzer found in the node, or null if it has not been analyzed. */
+  TartSemanticAnalyzer.NodeInfo analysis;
+
+  TartNode(int kind, String name, int nameOffset, int length, int bodyOffset, int errors,
+      int lead, int extent, TartNode[] children, int[] childOffsets, int childCount) {
+    this.kind = kind;
+    this.name = name;
+    this.nameOffset = nameOffset;
+    this.length = length;
+    this.bodyOffset = bodyOffset;
+    this.lead = lead;
+    this.extent = extent;
+    if (childCount == 0) {
+      this.children = NO_CHILDREN;
+      this.childOffsets = NO_OFFSETS;
+    } else {
+      this.children = Arrays.copyOf(children, childCount);
+      this.childOffsets = Arrays.copyOf(childOffsets, childCount);
+    }
+
+    int flags = errors;
+    if (errors != 0) {
+      flags |= CONTAINS_ERRORS;
+    }
+    for (TartNode child : this.children) {
+      if (child.hasErrors()) {
+        flags |= CONTAINS_ERRORS;
+      }
+    }
+    this.flags = flags;
+  }
+
+  /**
+   * Return the kind of declaration introduced by the keyword spelled by a range of
+   * characters, or -1 if the keyword does not introduce a declaration.
+   */
+  public static int kindOfKeyword(CharSequence text, int start, int end) {
+    int length = end - start;
+    for (int kind = FILE + 1; kind < COUNT; ++kind) {
+      String keyword = KEYWORDS[kind];
+      if (keyword.length() == length) {
+        int i = 0;
+        while (i < length && keyword.charAt(i) == text.charAt(start + i)) {
+          ++i;
+        }
+        if (i == length) {
+          return kind;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  /** Return the keyword which introduces a kind of declaration, or null for the root. */
+  public static String getKeyword(int kind) {
+    return KEYWORDS[kind];
+  }
+
+  /** Return true if declarations of the given kind hold other declarations in their body. */
+  public static boolean isContainer(int kind) {
+    return kind >= NAMESPACE && kind <= ENUM;
+  }
+
+  /** Return the kind of the node. */
+  public int getKind() {
+    return kind;
+  }
+
+  /** Return the name of the declaration, or null if it has none. */
+  public String getName() {
+    return name;
+  }
+
+  /** Return the offset of the name relative to the start of the node, or -1 if none. */
+  public int getNameOffset() {
+    return nameOffset;
+  }
+
+  /** Return the length of the text covered by the node. */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Return the offset of the opening brace of the body relative to the start of the node,
+   * or -1 if the declaration has no body.
+   */
+  public int getBodyOffset() {
+    return bodyOffset;
+  }
+
+  /** Return the error flags of the node itself. */
+  public int getErrors() {
+    return flags & (MISSING_NAME | UNCLOSED_BODY);
+  }
+
+  /** Return true if the node or any of its descendants has an error. */
+  public boolean hasErrors() {
+    return (flags & CONTAINS_ERRORS) != 0;
+  }
+
+  public int getChildCount() {
+    return children.length;
+  }
+
+  public TartNode getChild(int index) {
+    return children[index];
+  }
+
+  /** Return the offset of a child relative to the start of this node. */
+  public int getChildOffset(int index) {
+    return childOffsets[index];
+  }
+
+  /**
+   * Return the index of the child which covers an offset relative to the start of this node,
+   * or -1 if there is none.
+   */
+  public int indexOfChild(int offset) {
+    int index = Arrays.binarySearch(childOffsets, offset);
+    if (index < 0) {
+      index = -index - 2;
+    }
+    if (index >= 0 && offset < childOffsets[index] + children[index].length) {
+      return index;
+    }
+
+    return -1;
+  }
+}
@@ -0,0 +1,345 @@
+package org.viridia.tart.eclipse.parser;
+
+import org.viridia.tart.eclipse.lexer.TokenKind;
+
+/**
+ * Error-tolerant parser for the declarations of a Tart source file. It builds a tree of
+ * {@link TartNode}s for the namespaces, types, functions, variables, macros and type aliases
+ * of the file. Other statements are skipped, and the bodies of functions, variables, macros
+ * and type aliases are only matched for braces.
+ * <p>
+ * Errors never stop the parser. A declaration without a name is kept without one. A body
+ * which is not closed ends where a declaration starts a line at or left of the indentation of
+ * the line of its owner, so that a missing brace does not swallow the rest of the file;
+ * namespaces, whose members are often not indented, are closed only by a brace or the end of
+ * the text.
+ * <p>
+ * After an edit, the parser is given the tree of the text before the edit and the range which
+ * changed. It parses from the top again, but wherever a declaration starts at an offset where
+ * one started before, and the parser did not look at any changed text to parse it, the old
+ * node is reused as a whole, without lexing it again. The work done is then proportional to
+ * the size of the edit and the number of declarations around it, not to the size of the file.
+ * <p>
+ * A parser is not thread safe, but may be reused for any number of parses.
+ */
+public final class TartParser {
+  private final TokenReader reader = new TokenReader();
+  private CharSequence text;
+
+  /** The tree of the text before the edit, and the range of the edit. */
+  private TartNode oldRoot;
+  private int editStart;
+  private int editOldEnd;
+  private int editNewEnd;
+
+  /** The children of a node while it is being parsed. */
+  private static final class ChildList {
+    TartNode[] nodes = new TartNode[8];
+    int[] offsets = new int[8];
+    int size;
+
+    void add(TartNode node, int offset) {
+      if (size == nodes.length) {
+        TartNode[] newNodes = new TartNode[size * 2];
+        int[] newOffsets = new int[size * 2];
+        System.arraycopy(nodes, 0, newNodes, 0, size);
+        System.arraycopy(offsets, 0, newOffsets, 0, size);
+        nodes = newNodes;
+        offsets = newOffsets;
+      }
+
+      nodes[size] = node;
+      offsets[size] = offset;
+      ++size;
+    }
+  }
+
+  /** Parse a whole text. */
+  public TartNode parse(CharSequence text) {
+    return parse(text, null, 0, 0, 0);
+  }
+
+  /**
+   * Parse a text which has been edited since an earlier parse, reusing the unchanged parts
+   * of the earlier tree.
+   *
+   * @param text The text after the edit.
+   * @param oldRoot The tree of the text before the edit, or null to parse from scratch.
+   * @param start The offset of the start of the edit.
+   * @param oldEnd The offset of the end of the replaced text, before the edit.
+   * @param newEnd The offset of the end of the replacement text, after the edit.
+   * @return The root of the new tree, of kind {@link TartNode#FILE}.
+   */
+  public TartNode parse(CharSequence text, TartNode oldRoot, int start, int oldEnd,
+      int newEnd) {
+    this.text = text;
+    this.oldRoot = oldRoot;
+    this.editStart = start;
+    this.editOldEnd = oldEnd;
+    this.editNewEnd = newEnd;
+    try {
+      reader.reset(text);
+      reader.seek(0);
+      ChildList members = new ChildList();
+      for (;;) {
+        parseMembers(0, -1, members);
+        if (reader.kind == TokenKind.EOF) {
+          break;
+        }
+
+        // A closing brace without an opening one.
+        reader.next();
+      }
+
+      int length = text.length();
+      return new TartNode(TartNode.FILE, null, -1, length, -1, 0, 0, length,
+          members.nodes, members.offsets, members.size);
+    } finally {
+      this.text = null;
+      this.oldRoot = null;
+    }
+  }
+
+  /**
+   * Parse declarations until the end of the text, a closing brace, or a declaration which is
+   * outdented past the owner of the list. The token which ends the list is not consumed.
+   *
+   * @param base The offset which the offsets of the members are relative to.
+   * @param indent The indentation of the owner, or -1 if the list ends only at a brace.
+   * @param members Receives the declarations.
+   */
+  private void parseMembers(int base, int indent, ChildList members) {
+    int runStart = -1;
+    while (reader.kind != TokenKind.EOF && !reader.is('}')) {
+      if (!isMemberStart(reader.kind)) {
+        runStart = -1;
+        if (reader.is('{')) {
+          // A block which belongs to no declaration.
+          skipBlock(indent);
+        } else {
+          reader.next();
+        }
+        continue;
+      }
+
+      if (reader.newline) {
+        if (isOutdented(indent)) {
+          return;
+        }
+
+        // Modifiers on a line of their own are not kept with the declaration, so that a
+        // declaration never spans a line start which its parent would have to check.
+        runStart = -1;
+      }
+
+      if (runStart < 0) {
+        TartNode reused = findReusable(reader.start);
+        if (reused != null) {
+          int start = reader.start;
+          members.add(reused, start - base);
+          reader.examinedEnd = Math.max(reader.examinedEnd, start + reused.extent);
+          reader.seek(start + reused.getLength());
+          continue;
+        }
+      }
+
+      int kind = reader.kind == TokenKind.DECL_KEYWORD
+          ? TartNode.kindOfKeyword(text, reader.start, reader.end) : -1;
+      if (kind < 0) {
+        // Visibility, modifiers, attributes and the like: part of the next declaration.
+        if (runStart < 0) {
+          runStart = reader.start;
+        }
+        reader.next();
+        continue;
+      }
+
+      int start = runStart >= 0 ? runStart : reader.start;
+      runStart = -1;
+      members.add(parseDeclaration(start, kind), start - base);
+    }
+  }
+
+  /** Parse a declaration. The current token is its keyword. */
+  private TartNode parseDeclaration(int start, int kind) {
+    int lead = 0;
+    int indent = -1;
+    if (kind != TartNode.NAMESPACE) {
+      int lineStart = lineStartOf(start);
+      // The line break before the line counts too, as it is what makes it a line start.
+      lead = start - Math.max(0, lineStart - 1);
+      indent = indentOf(lineStart, start);
+    }
+
+    String name = null;
+    int nameOffset = -1;
+    int bodyOffset = -1;
+    int errors = 0;
+    ChildList members = null;
+    int depth = 0;
+
+    reader.next();
+    while (reader.kind != TokenKind.EOF) {
+      if (reader.newline && isMemberStart(reader.kind) && (depth == 0 || isOutdented(indent))) {
+        // The next declaration.
+        break;
+      }
+
+      if (depth == 0) {
+        if (reader.is(';')) {
+          reader.next();
+          break;
+        } else if (reader.is('}')) {
+          break;
+        } else if (reader.is('{')) {
+          bodyOffset = reader.start - start;
+          if (TartNode.isContainer(kind)) {
+            reader.next();
+            members = new ChildList();
+            parseMembers(start, indent, members);
+            if (reader.is('}')) {
+              reader.next();
+            } else {
+              errors |= TartNode.UNCLOSED_BODY;
+            }
+          } else if (!skipBlock(indent)) {
+            errors |= TartNode.UNCLOSED_BODY;
+          }
+          break;
+        }
+      }
+
+      if (name == null && depth == 0 && reader.kind == TokenKind.IDENT) {
+        name = text.subSequence(reader.start, reader.end).toString();
+        nameOffset = reader.start - start;
+      } else if (reader.is('(') || reader.is('[')) {
+        ++depth;
+      } else if (reader.is(')') || reader.is(']')) {
+        depth = Math.max(0, depth - 1);
+      }
+
+      reader.next();
+    }
+
+    if (name == null) {
+      errors |= TartNode.MISSING_NAME;
+    }
+
+    int end = reader.previousEnd;
+    if (members == null) {
+      return new TartNode(kind, name, nameOffset, end - start, bodyOffset, errors, lead,
+          reader.examinedEnd - start, null, null, 0);
+    }
+
+    return new TartNode(kind, name, nameOffset, end - start, bodyOffset, errors, lead,
+        reader.examinedEnd - start, members.nodes, members.offsets, members.size);
+  }
+
+  /**
+   * Skip a block whose contents are not parsed. The current token is its opening brace.
+   *
+   * @param indent The indentation of the owner of the block, or -1.
+   * @return True if the block was closed, false if it ended at an outdented declaration or
+   *     at the end of the text.
+   */
+  private boolean skipBlock(int indent) {
+    int depth = 0;
+    do {
+      if (reader.kind == TokenKind.EOF) {
+        return false;
+      } else if (reader.is('{')) {
+        ++depth;
+      } else if (reader.is('}')) {
+        --depth;
+      } else if (reader.newline && isMemberStart(reader.kind) && isOutdented(indent)) {
+        return false;
+      }
+
+      reader.next();
+    } while (depth > 0);
+
+    return true;
+  }
+
+  /**
+   * Return a node of the old tree which can be reused for a declaration starting at an
+   * offset, or null if there is none. The node must have started at the same place in the
+   * old text, and the parser must not have looked at any of the changed text to parse it.
+   */
+  private TartNode findReusable(int offset) {
+    if (oldRoot == null) {
+      return null;
+    }
+
+    int oldOffset;
+    if (offset < editStart) {
+      oldOffset = offset;
+    } else if (offset >= editNewEnd) {
+      oldOffset = offset - editNewEnd + editOldEnd;
+    } else {
+      return null;
+    }
+
+    TartNode node = oldRoot;
+    int base = 0;
+    for (;;) {
+      int index = node.indexOfChild(oldOffset - base);
+      if (index < 0) {
+        return null;
+      }
+
+      TartNode child = node.getChild(index);
+      int childStart = base + node.getChildOffset(index);
+      if (childStart == oldOffset) {
+        // A node with errors may parse differently once the text around it has changed.
+        boolean unchanged = childStart + child.extent <= editStart
+            || childStart - child.lead >= editOldEnd;
+        return unchanged && !child.hasErrors() ? child : null;
+      }
+
+      node = child;
+      base = childStart;
+    }
+  }
+
+  private static boolean isMemberStart(int kind) {
+    return kind == TokenKind.DECL_KEYWORD || kind == TokenKind.VISIBILITY
+        || kind == TokenKind.MODIFIER || kind == TokenKind.ATTRIBUTE;
+  }
+
+  /**
+   * Return true if the current token, which starts a line, is indented no more than the
+   * owner of the construct being parsed.
+   */
+  private boolean isOutdented(int indent) {
+    return indent >= 0 && indentOf(lineStartOf(reader.start), reader.start) <= indent;
+  }
+
+  /** Return the offset of the start of the line which contains an offset. */
+  private int lineStartOf(int offset) {
+    int lineStart = offset;
+    while (lineStart > 0) {
+      char ch = text.charAt(lineStart - 1);
+      if (ch == '\n' || ch == '\r') {
+        break;
+      }
+      --lineStart;
+    }
+
+    return lineStart;
+  }
+
+  /** Return the indentation of a line, looking no further than an offset in the line. */
+  private int indentOf(int lineStart, int offset) {
+    int pos = lineStart;
+    while (pos < offset) {
+      char ch = text.charAt(pos);
+      if (ch != ' ' && ch != '\t') {
+        break;
+      }
+      ++pos;
+    }
+
+    return pos - lineStart;
+  }
+}
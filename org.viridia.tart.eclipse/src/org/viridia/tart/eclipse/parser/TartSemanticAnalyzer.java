@@ -0,0 +1,381 @@
+package org.viridia.tart.eclipse.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.viridia.tart.eclipse.lexer.TartLexer;
+import org.viridia.tart.eclipse.lexer.TokenKind;
+
+/**
+ * Finds the declared names of a Tart source file, and what kind of name each is, from its
+ * syntax tree: the names of types, functions and fields, the parameters of functions and
+ * their uses in the function body, and the names of declarations which carry attributes.
+ * <p>
+ * What the analyzer finds inside a node, apart from its children, depends only on the text
+ * of the node, so it is kept in the node, and lives as long as the parser reuses the node.
+ * After an edit, only the nodes which the parser built again are lexed; the rest of the work
+ * is a walk over the tree. What depends on the surroundings of a node, such as whether a
+ * variable is a field or whether an attribute precedes the declaration, is worked out again
+ * on every walk.
+ * <p>
+ * An analyzer is not thread safe, but may be reused for any number of trees.
+ */
+public final class TartSemanticAnalyzer {
+  // Semantic kinds.
+  public static final int DECLARED_TYPE = 0;
+  public static final int FUNCTION = 1;
+  public static final int FIELD = 2;
+  public static final int PARAMETER = 3;
+  public static final int ATTRIBUTE_TARGET = 4;
+
+  /** The number of semantic kinds. */
+  public static final int COUNT = 5;
+
+  /** The furthest to look back from a declaration for an attribute on the lines above it. */
+  private static final int MAX_ATTRIBUTE_SCAN = 256;
+
+  /** The ranges found in a text, sorted by offset and not overlapping. */
+  public static final class Ranges {
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] kinds;
+    private final int size;
+
+    Ranges(int[] offsets, int[] lengths, int[] kinds, int size) {
+      this.offsets = offsets;
+      this.lengths = lengths;
+      this.kinds = kinds;
+      this.size = size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int getOffset(int index) {
+      return offsets[index];
+    }
+
+    public int getLength(int index) {
+      return lengths[index];
+    }
+
+    /** Return the semantic kind of a range. */
+    public int getKind(int index) {
+      return kinds[index];
+    }
+
+    /** Return the index of the first range which ends after an offset, or size() if none. */
+    public int indexOf(int offset) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (offsets[mid] + lengths[mid] <= offset) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+
+      return low;
+    }
+  }
+
+  /** What was found inside a node, apart from its name and children. */
+  static final class NodeInfo {
+    static final NodeInfo EMPTY = new NodeInfo(false, new int[0], 0);
+
+    /** True if an attribute comes before the keyword of the declaration. */
+    final boolean attributed;
+
+    /** The parameter ranges, as pairs of offset relative to the node and length. */
+    final int[] parameters;
+    final int size;
+
+    NodeInfo(boolean attributed, int[] parameters, int size) {
+      this.attributed = attributed;
+      this.parameters = parameters;
+      this.size = size;
+    }
+  }
+
+  private final TartLexer lexer = new TartLexer(true);
+  private CharSequence text;
+
+  /** The nodes analyzed since the last call to {@link #commit()}. */
+  private final List<TartNode> analyzedNodes = new ArrayList<TartNode>();
+
+  /** The ranges being built. */
+  private int[] offsets = new int[256];
+  private int[] lengths = new int[256];
+  private int[] kinds = new int[256];
+  private int size;
+
+  /** The parameter ranges of the function being lexed, and the names of the parameters. */
+  private int[] parameters = new int[32];
+  private int parameterSize;
+  private final List<String> parameterNames = new ArrayList<String>();
+
+  /**
+   * Find the semantic ranges of a text. The analyses of the nodes which had none are kept
+   * only if {@link #commit()} is called before the next call, so that a caller which finds
+   * that the text changed during the analysis can drop them by not calling it.
+   *
+   * @param text The text which was parsed.
+   * @param root The syntax tree of the text.
+   */
+  public Ranges analyze(CharSequence text, TartNode root) {
+    for (TartNode node : analyzedNodes) {
+      node.analysis = null;
+    }
+
+    analyzedNodes.clear();
+    this.text = text;
+    size = 0;
+    try {
+      analyzeMembers(root, 0, 0);
+      return new Ranges(Arrays.copyOf(offsets, size), Arrays.copyOf(lengths, size),
+          Arrays.copyOf(kinds, size), size);
+    } finally {
+      this.text = null;
+    }
+  }
+
+  /** Keep the analyses of the nodes of the last tree, for reuse by later calls. */
+  public void commit() {
+    analyzedNodes.clear();
+  }
+
+  /**
+   * Add the ranges of the children of a node, and of their descendants.
+   *
+   * @param node The node.
+   * @param start The absolute offset of the node.
+   * @param limit The offset before which no attribute of the first child is looked for.
+   */
+  private void analyzeMembers(TartNode node, int start, int limit) {
+    int parentKind = node.getKind();
+    for (int i = 0; i < node.getChildCount(); ++i) {
+      TartNode child = node.getChild(i);
+      int childStart = start + node.getChildOffset(i);
+      NodeInfo info = getInfo(child, childStart);
+      if (child.getNameOffset() >= 0) {
+        boolean attributed = info.attributed || isAttributed(childStart, limit);
+        int kind = kindOfName(child.getKind(), parentKind, attributed);
+        if (kind >= 0) {
+          add(childStart + child.getNameOffset(), child.getName().length(), kind);
+        }
+      }
+
+      for (int j = 0; j < info.size; j += 2) {
+        add(childStart + info.parameters[j], info.parameters[j + 1], PARAMETER);
+      }
+
+      if (child.getChildCount() > 0) {
+        analyzeMembers(child, childStart, childStart + child.getBodyOffset() + 1);
+      }
+
+      limit = childStart + child.getLength();
+    }
+  }
+
+  /** Return the analysis of a node, analyzing it if it has none yet. */
+  private NodeInfo getInfo(TartNode node, int start) {
+    NodeInfo info = node.analysis;
+    if (info == null) {
+      info = analyzeNode(node, start);
+      node.analysis = info;
+      analyzedNodes.add(node);
+    }
+
+    return info;
+  }
+
+  /** Lex a node to find its attributes and, for a function, its parameters. */
+  private NodeInfo analyzeNode(TartNode node, int start) {
+    if (node.getNameOffset() < 0) {
+      // The name of a declaration without one is not highlighted.
+      return NodeInfo.EMPTY;
+    }
+
+    // Of other declarations than functions, only the modifiers before the name matter.
+    int kind = node.getKind();
+    boolean function = kind == TartNode.DEF || kind == TartNode.FN || kind == TartNode.MACRO;
+    int nameStart = start + node.getNameOffset();
+    lexer.reset(text, start, function ? start + node.getLength() : nameStart);
+    boolean attributed = false;
+    parameterSize = 0;
+    parameterNames.clear();
+
+    // The state of the parameter list: before it, inside it, or past it.
+    int depth = 0;
+    boolean inParameters = false;
+    boolean pastParameters = false;
+    boolean expectParameter = false;
+    boolean afterDot = false;
+    int tokenKind;
+    while ((tokenKind = lexer.next()) != TokenKind.EOF) {
+      if (tokenKind == TokenKind.WHITESPACE || TokenKind.isComment(tokenKind)) {
+        continue;
+      }
+
+      int tokenStart = lexer.getTokenStart();
+      int tokenEnd = lexer.getTokenEnd();
+      if (tokenStart < nameStart) {
+        attributed |= tokenKind == TokenKind.ATTRIBUTE;
+        continue;
+      }
+      if (tokenStart == nameStart) {
+        continue;
+      }
+
+      // Brackets and commas are operators, and a dot is a character of its own.
+      char ch = tokenKind != TokenKind.IDENT && tokenEnd - tokenStart == 1
+          ? text.charAt(tokenStart) : 0;
+      if (tokenKind == TokenKind.IDENT) {
+        if (inParameters && depth == 1 && expectParameter) {
+          addParameter(start, tokenStart, tokenEnd);
+          parameterNames.add(text.subSequence(tokenStart, tokenEnd).toString());
+        } else if (pastParameters && !afterDot && isParameterName(tokenStart, tokenEnd)) {
+          addParameter(start, tokenStart, tokenEnd);
+        }
+      } else if (ch == '(' || ch == '[' || ch == '{') {
+        if (ch == '(' && depth == 0 && !inParameters && !pastParameters) {
+          inParameters = true;
+        }
+        ++depth;
+      } else if (ch == ')' || ch == ']' || ch == '}') {
+        depth = Math.max(0, depth - 1);
+        if (depth == 0 && inParameters) {
+          inParameters = false;
+          pastParameters = true;
+        }
+      }
+
+      expectParameter = ch == '(' || ch == ',';
+      afterDot = ch == '.';
+    }
+
+    if (!attributed && parameterSize == 0) {
+      return NodeInfo.EMPTY;
+    }
+
+    return new NodeInfo(attributed, Arrays.copyOf(parameters, parameterSize), parameterSize);
+  }
+
+  /** Add the range of a parameter to those of the node which starts at an offset. */
+  private void addParameter(int nodeStart, int start, int end) {
+    if (parameterSize + 2 > parameters.length) {
+      parameters = Arrays.copyOf(parameters, parameters.length * 2);
+    }
+
+    parameters[parameterSize++] = start - nodeStart;
+    parameters[parameterSize++] = end - start;
+  }
+
+  /** Return true if a range of the text spells the name of a parameter of the function. */
+  private boolean isParameterName(int start, int end) {
+    for (String name : parameterNames) {
+      if (name.length() == end - start) {
+        int i = 0;
+        while (i < name.length() && name.charAt(i) == text.charAt(start + i)) {
+          ++i;
+        }
+        if (i == name.length()) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Return true if the nearest token before a declaration, on the lines above it, is an
+   * attribute, or the argument list of one.
+   */
+  private boolean isAttributed(int start, int limit) {
+    limit = Math.max(limit, start - MAX_ATTRIBUTE_SCAN);
+    int pos = start;
+    while (pos > limit && Character.isWhitespace(text.charAt(pos - 1))) {
+      --pos;
+    }
+
+    if (pos > limit && text.charAt(pos - 1) == ')') {
+      int depth = 0;
+      do {
+        char ch = text.charAt(--pos);
+        if (ch == ')') {
+          ++depth;
+        } else if (ch == '(') {
+          --depth;
+        }
+      } while (depth > 0 && pos > limit);
+
+      if (depth > 0) {
+        return false;
+      }
+    }
+
+    int nameEnd = pos;
+    while (pos > limit && isAttributeChar(text.charAt(pos - 1))) {
+      --pos;
+    }
+
+    return pos < nameEnd && pos > limit && text.charAt(pos - 1) == '@';
+  }
+
+  private static boolean isAttributeChar(char ch) {
+    return Character.isLetterOrDigit(ch) || ch == '_' || ch == '$' || ch == '.';
+  }
+
+  /**
+   * Return the semantic kind of the name of a declaration, or -1 if it is not highlighted.
+   *
+   * @param kind The kind of the declaration.
+   * @param parentKind The kind of the node which holds the declaration.
+   * @param attributed True if the declaration carries attributes.
+   */
+  private static int kindOfName(int kind, int parentKind, boolean attributed) {
+    if (kind == TartNode.NAMESPACE) {
+      return -1;
+    } else if (attributed) {
+      return ATTRIBUTE_TARGET;
+    }
+
+    switch (kind) {
+      case TartNode.CLASS:
+      case TartNode.STRUCT:
+      case TartNode.INTERFACE:
+      case TartNode.PROTOCOL:
+      case TartNode.ENUM:
+      case TartNode.TYPEALIAS:
+        return DECLARED_TYPE;
+      case TartNode.DEF:
+      case TartNode.FN:
+      case TartNode.MACRO:
+        return FUNCTION;
+      case TartNode.VAR:
+      case TartNode.LET:
+        return parentKind != TartNode.NAMESPACE && TartNode.isContainer(parentKind)
+            ? FIELD : -1;
+      default:
+        return -1;
+    }
+  }
+
+  private void add(int offset, int length, int kind) {
+    if (size == offsets.length) {
+      offsets = Arrays.copyOf(offsets, size * 2);
+      lengths = Arrays.copyOf(lengths, size * 2);
+      kinds = Arrays.copyOf(kinds, size * 2);
+    }
+
+    offsets[size] = offset;
+    lengths[size] = length;
+    kinds[size] = kind;
+    ++size;
+  }
+}
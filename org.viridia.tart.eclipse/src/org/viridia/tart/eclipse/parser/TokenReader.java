@@ -0,0 +1,145 @@
+package org.viridia.tart.eclipse.parser;
+
+import org.viridia.tart.eclipse.lexer.TartLexer;
+import org.viridia.tart.eclipse.lexer.TokenKind;
+
+/**
+ * Reads the significant tokens of a text for the parser, skipping whitespace and comments.
+ * <p>
+ * The text is lexed through a window which starts small at every seek and grows as the
+ * reader moves on, so that jumping over a reused subtree costs only the few characters lexed
+ * after it. A token which may continue past the end of the window is lexed again with a
+ * larger one.
+ */
+final class TokenReader {
+  /** The size of the window after a seek. */
+  private static final int MIN_WINDOW = 64;
+
+  /** The size the window grows to as the reader moves on. */
+  private static final int MAX_WINDOW = 16 * 1024;
+
+  private final TartLexer lexer = new TartLexer(true);
+  private CharSequence text;
+  private int length;
+  private int windowEnd;
+  private int windowSize;
+
+  /** The {@link TokenKind} of the current token, or {@link TokenKind#EOF}. */
+  int kind;
+
+  /** The offsets of the start and end of the current token. */
+  int start;
+  int end;
+
+  /** The end of the token before the current one. */
+  int previousEnd;
+
+  /** True if a line break comes between the previous token and the current one. */
+  boolean newline;
+
+  /**
+   * The offset just past the last character the lexer has looked at, which is one past the
+   * end of the text once the lexer has reached it.
+   */
+  int examinedEnd;
+
+  void reset(CharSequence text) {
+    this.text = text;
+    this.length = text.length();
+    this.examinedEnd = 0;
+  }
+
+  /** Move to the first significant token at or after an offset. */
+  void seek(int offset) {
+    previousEnd = offset;
+    windowSize = MIN_WINDOW;
+    fill(offset);
+    advance(offset == 0);
+  }
+
+  /** Move to the next significant token. */
+  void next() {
+    previousEnd = end;
+    advance(false);
+  }
+
+  /** Return true if the current token is the given punctuation character. */
+  boolean is(char ch) {
+    return kind == TokenKind.OPERATOR && end - start == 1 && text.charAt(start) == ch;
+  }
+
+  private void advance(boolean lineStart) {
+    newline = lineStart;
+    for (;;) {
+      int tokenKind = lexer.next();
+      int tokenStart = lexer.getTokenStart();
+      int tokenEnd = lexer.getTokenEnd();
+      boolean unclosed = isUnclosed(tokenKind, tokenStart, tokenEnd);
+      if (windowEnd < length) {
+        if (tokenKind == TokenKind.EOF) {
+          windowSize = Math.min(MAX_WINDOW, windowSize * 2);
+          fill(tokenStart);
+          continue;
+        } else if (tokenEnd == windowEnd || unclosed) {
+          // The token may continue past the window: lex it again with a larger one.
+          windowSize *= 2;
+          fill(tokenStart);
+          continue;
+        }
+      }
+
+      if (tokenKind == TokenKind.EOF) {
+        kind = TokenKind.EOF;
+        start = end = length;
+        examinedEnd = length + 1;
+        return;
+      }
+
+      // The lexer looks one character past a token, or to the end of the text for the
+      // closing delimiter of an unclosed literal or comment. Seeing the end of the text
+      // counts as looking one character past it.
+      examinedEnd = Math.max(examinedEnd, unclosed ? length + 1 : tokenEnd + 1);
+      if (tokenKind == TokenKind.WHITESPACE || TokenKind.isComment(tokenKind)) {
+        if (!newline) {
+          newline = hasLineBreak(tokenStart, tokenEnd);
+        }
+        continue;
+      }
+
+      kind = tokenKind;
+      start = tokenStart;
+      end = tokenEnd;
+      return;
+    }
+  }
+
+  private void fill(int offset) {
+    windowEnd = Math.min(length, offset + windowSize);
+    lexer.reset(text, offset, windowEnd);
+  }
+
+  /**
+   * Return true if a token is the first character of a literal or block comment which was
+   * not closed before the end of the window, and so was lexed as an ordinary character.
+   */
+  private boolean isUnclosed(int tokenKind, int tokenStart, int tokenEnd) {
+    if (tokenKind != TokenKind.DEFAULT || tokenEnd - tokenStart != 1) {
+      return false;
+    }
+
+    char ch = text.charAt(tokenStart);
+    return ch == '"' || ch == '\''
+        || (ch == '/' && tokenEnd < length && text.charAt(tokenEnd) == '*');
+  }
+
+  private boolean hasLineBreak(int from, int to) {
+    for (int i = from; i < to; ++i) {
+      char ch = text.charAt(i);
+      if (ch == '\n' || ch == '\r') {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
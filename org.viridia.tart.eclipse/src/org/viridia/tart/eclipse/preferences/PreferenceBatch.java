@@ -0,0 +1,83 @@
+package org.viridia.tart.eclipse.preferences;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
+
+/**
+ * Groups a series of changes to a preference store into one event. While a batch is open, the
+ * keys of the changed preferences are collected, and when it ends, a single
+ * {@link #BATCH_CHANGED} event is fired whose new value is the array of changed keys.
+ * <p>
+ * The individual change events are still fired, as the store does not allow them to be held
+ * back. Listeners which react to the batch event should ignore the others while
+ * {@link #isOpen()} is true. Batches are opened and ended on the UI thread only, and may be
+ * nested, in which case the event is fired when the outermost batch ends.
+ */
+public class PreferenceBatch implements IPropertyChangeListener {
+  /** The property of the event fired when a batch ends. */
+  public static final String BATCH_CHANGED = "tartBatchChanged";
+
+  /** The batch which is open, if any. */
+  private static PreferenceBatch current;
+
+  private final IPreferenceStore store;
+  private final Set<String> changedKeys = new LinkedHashSet<String>();
+  private int depth;
+
+  private PreferenceBatch(IPreferenceStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Open a batch of changes to a preference store. Every call must be matched by a call to
+   * {@link #end()} on the returned batch, preferably in a finally block.
+   */
+  public static PreferenceBatch begin(IPreferenceStore store) {
+    if (current == null) {
+      current = new PreferenceBatch(store);
+      store.addPropertyChangeListener(current);
+    } else if (current.store != store) {
+      throw new IllegalStateException("A batch is already open on another preference store");
+    }
+
+    ++current.depth;
+    return current;
+  }
+
+  /** Return true if a batch of preference changes is open. */
+  public static boolean isOpen() {
+    return current != null;
+  }
+
+  /**
+   * End the batch. If it is the outermost one, and any preference changed, fire the
+   * {@link #BATCH_CHANGED} event.
+   */
+  public void end() {
+    if (--depth > 0) {
+      return;
+    }
+
+    store.removePropertyChangeListener(this);
+    current = null;
+    if (!changedKeys.isEmpty()) {
+      String[] keys = changedKeys.toArray(new String[changedKeys.size()]);
+      changedKeys.clear();
+      store.firePropertyChangeEvent(BATCH_CHANGED, null, keys);
+    }
+  }
+
+  public void propertyChange(PropertyChangeEvent event) {
+    changedKeys.add(event.getProperty());
+  }
+
+  /** Return the keys listed by a {@link #BATCH_CHANGED} event. */
+  public static String[] getChangedKeys(PropertyChangeEvent event) {
+    Object keys = event.getNewValue();
+    return keys instanceof String[] ? (String[]) keys : new String[0];
+  }
+}
@@ -10,6 +10,7 @@ public class SaveActionsPreferencePage extends FieldEditorPreferencePage impleme
 
   private BooleanFieldEditor removeTrailingWhitespace;
   private BooleanFieldEditor ensureNewlineAtEof;
+  private BooleanFieldEditor convertTabsToSpaces;
 
   public SaveActionsPreferencePage() {
     setDescription("Save Actions");
@@ -27,5 +28,10 @@ public class SaveActionsPreferencePage extends FieldEditorPreferencePage impleme
     ensureNewlineAtEof = new BooleanFieldEditor(
         TartPrefs.ENSURE_NEWLINE_AT_EOF, "Ensure newline at EOF", getFieldEditorParent());
     addField(ensureNewlineAtEof);
+
+    convertTabsToSpaces = new BooleanFieldEditor(
+        TartPrefs.CONVERT_TABS_TO_SPACES, "Convert tabs in indentation to spaces",
+        getFieldEditorParent());
+    addField(convertTabsToSpaces);
   }
 }
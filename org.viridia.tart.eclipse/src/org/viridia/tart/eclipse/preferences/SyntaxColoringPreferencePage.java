@@ -10,7 +10,6 @@ import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.events.SelectionListener;
-import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.layout.RowLayout;
@@ -24,6 +23,7 @@ import org.eclipse.swt.widgets.TreeItem;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
 import org.viridia.tart.eclipse.Activator;
+import org.viridia.tart.eclipse.editors.TartColorManager;
 import org.viridia.tart.eclipse.preferences.TartPrefs.SyntaxElement;
 
 public class SyntaxColoringPreferencePage extends PreferencePage implements
@@ -33,12 +33,18 @@ public class SyntaxColoringPreferencePage extends PreferencePage implements
   private ColorSelector colorSelector;
   private Button boldStyle;
   private Button italicStyle;
+
+  /** The text font in each combination of bold and italic, indexed by SWT style bits. */
+  private final Font[] styleFonts = new Font[4];
   
   private static class StylePreference {
     private RGB color;
     private boolean bold;
     private boolean italic;
     private final String styleName;
+
+    /** The color acquired from the shared color manager for the tree item, if any. */
+    private RGB shownColor;
     
     public StylePreference(String styleName) {
       this.styleName = styleName;
@@ -191,11 +197,48 @@ public class SyntaxColoringPreferencePage extends PreferencePage implements
   }
   
   private void updateTreeItemStyle(TreeItem item, StylePreference stylePref) {
-    Display display = Display.getCurrent();
-    Font defaultFont = JFaceResources.getFont(JFaceResources.TEXT_FONT);
-    item.setForeground(new Color(display, stylePref.getColor()));
-    Font font = new Font(display, defaultFont.getFontData()[0].getName(), 11, stylePref.getStyle());
-    item.setFont(font);
+    TartColorManager colors = Activator.getDefault().getColorManager();
+    RGB oldColor = stylePref.shownColor;
+    stylePref.shownColor = stylePref.getColor();
+    item.setForeground(colors.acquireColor(stylePref.shownColor));
+    if (oldColor != null) {
+      colors.releaseColor(oldColor);
+    }
+
+    int style = stylePref.getStyle() & (SWT.BOLD | SWT.ITALIC);
+    if (styleFonts[style] == null) {
+      Font defaultFont = JFaceResources.getFont(JFaceResources.TEXT_FONT);
+      styleFonts[style] = new Font(Display.getCurrent(),
+          defaultFont.getFontData()[0].getName(), 11, style);
+    }
+    item.setFont(styleFonts[style]);
+  }
+
+  @Override
+  public void dispose() {
+    if (syntaxColorList != null && !syntaxColorList.isDisposed()) {
+      // Reset the items, so that they don't use the colors and fonts after they are freed.
+      TartColorManager colors = Activator.getDefault().getColorManager();
+      for (int i = 0; i < syntaxColorList.getItemCount(); ++i) {
+        TreeItem item = syntaxColorList.getItem(i);
+        StylePreference stylePref = (StylePreference) item.getData();
+        item.setForeground(null);
+        item.setFont(null);
+        if (stylePref.shownColor != null) {
+          colors.releaseColor(stylePref.shownColor);
+          stylePref.shownColor = null;
+        }
+      }
+    }
+
+    for (int i = 0; i < styleFonts.length; ++i) {
+      if (styleFonts[i] != null) {
+        styleFonts[i].dispose();
+        styleFonts[i] = null;
+      }
+    }
+
+    super.dispose();
   }
 
   protected void performDefaults() {
@@ -211,27 +254,32 @@ public class SyntaxColoringPreferencePage extends PreferencePage implements
   }
 
   public boolean performOk() {
-    IPreferenceStore store = getPreferenceStore();
-    int numTreeElements = syntaxColorList.getItemCount();
-    for (int i = 0; i < numTreeElements; ++i) {
-      TreeItem ti = syntaxColorList.getItem(i);
-      StylePreference stylePref = (StylePreference) ti.getData();
-      stylePref.store(store);
-    }
-
+    storeStyles();
     return super.performOk();
   }
 
   public void performApply() {
+    storeStyles();
+    super.performApply();
+  }
+
+  /**
+   * Store the styles of all the syntax elements in a single batch, so that editors restyle
+   * once rather than for every preference.
+   */
+  private void storeStyles() {
     IPreferenceStore store = getPreferenceStore();
-    int numTreeElements = syntaxColorList.getItemCount();
-    for (int i = 0; i < numTreeElements; ++i) {
-      TreeItem ti = syntaxColorList.getItem(i);
-      StylePreference stylePref = (StylePreference) ti.getData();
-      stylePref.store(store);
+    PreferenceBatch batch = PreferenceBatch.begin(store);
+    try {
+      int numTreeElements = syntaxColorList.getItemCount();
+      for (int i = 0; i < numTreeElements; ++i) {
+        TreeItem ti = syntaxColorList.getItem(i);
+        StylePreference stylePref = (StylePreference) ti.getData();
+        stylePref.store(store);
+      }
+    } finally {
+      batch.end();
     }
-
-    super.performApply();
   }
 
   /**
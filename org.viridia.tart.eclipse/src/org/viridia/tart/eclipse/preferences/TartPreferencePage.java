@@ -1,6 +1,7 @@
 package org.viridia.tart.eclipse.preferences;
 
 import org.eclipse.jface.preference.BooleanFieldEditor;
+import org.eclipse.jface.preference.ColorFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.ui.IWorkbench;
@@ -21,6 +22,11 @@ public class TartPreferencePage extends FieldEditorPreferencePage implements IWo
 
   private BooleanFieldEditor showPrintMargin;
   private IntegerFieldEditor printMarginColumn;
+  private BooleanFieldEditor matchingBrackets;
+  private ColorFieldEditor matchingBracketsColor;
+  private BooleanFieldEditor asyncHighlighting;
+  private IntegerFieldEditor largeFileSize;
+  private IntegerFieldEditor largeFileLines;
 
   public TartPreferencePage() {
     setDescription("Tart preferenced");
@@ -39,5 +45,28 @@ public class TartPreferencePage extends FieldEditorPreferencePage implements IWo
         TartPrefs.TART_PRINT_MARGIN_COLUMN, "Print margin column:", getFieldEditorParent(), 3);
     printMarginColumn.setValidRange(1, 200);
     addField(printMarginColumn);
+
+    matchingBrackets = new BooleanFieldEditor(
+        TartPrefs.MATCHING_BRACKETS, "Highlight matching brackets", getFieldEditorParent());
+    addField(matchingBrackets);
+
+    matchingBracketsColor = new ColorFieldEditor(
+        TartPrefs.MATCHING_BRACKETS_COLOR, "Matching brackets color:", getFieldEditorParent());
+    addField(matchingBracketsColor);
+
+    asyncHighlighting = new BooleanFieldEditor(
+        TartPrefs.ASYNC_HIGHLIGHTING, "Highlight large files in the background",
+        getFieldEditorParent());
+    addField(asyncHighlighting);
+
+    largeFileSize = new IntegerFieldEditor(
+        TartPrefs.LARGE_FILE_SIZE, "Large file size (KB):", getFieldEditorParent(), 8);
+    largeFileSize.setValidRange(1, Integer.MAX_VALUE / 1024);
+    addField(largeFileSize);
+
+    largeFileLines = new IntegerFieldEditor(
+        TartPrefs.LARGE_FILE_LINES, "Large file line count:", getFieldEditorParent(), 8);
+    largeFileLines.setValidRange(1, Integer.MAX_VALUE);
+    addField(largeFileLines);
   }
 }
@@ -62,6 +62,13 @@ public class TartPrefs extends AbstractPreferenceInitializer {
   public static final String TART_ATTRIBUTE = "TART_ATTRIBUTE";
   public static final String TART_DEFAULT = "TART_DEFAULT";
 
+  // Semantic style preferences, applied to the names found by the declaration analysis
+  public static final String TART_DECLARED_TYPE = "TART_DECLARED_TYPE";
+  public static final String TART_FUNCTION = "TART_FUNCTION";
+  public static final String TART_FIELD = "TART_FIELD";
+  public static final String TART_PARAMETER = "TART_PARAMETER";
+  public static final String TART_ATTRIBUTE_TARGET = "TART_ATTRIBUTE_TARGET";
+
   // Print margin
   /** @since 0.1 */
   public static final String TART_PRINT_MARGIN = "tartPrintMargin";
@@ -70,12 +77,26 @@ public class TartPrefs extends AbstractPreferenceInitializer {
   /** @since 0.1 */
   public static final String TART_PRINT_MARGIN_COLUMN = "tartPrintMarginColumn";
 
+  // Matching brackets
+  public static final String MATCHING_BRACKETS = "matchingBrackets";
+  public static final String MATCHING_BRACKETS_COLOR = "matchingBracketsColor";
+
   // Other preferences
   public static final String REMOVE_TRAILING_WHITESPACE = "removeTrailingWhitespace";
   public static final String ENSURE_NEWLINE_AT_EOF = "ensureNewlineAtEOF";
+  public static final String CONVERT_TABS_TO_SPACES = "convertTabsToSpaces";
 
   public static final String EDITOR_SUB_WORD_NAVIGATION = "EDITOR_SUB_WORD_NAVIGATION";
 
+  /** Tokenize large regions of a document on a background thread. */
+  public static final String ASYNC_HIGHLIGHTING = "asyncHighlighting";
+
+  /** Size in kilobytes at which a file is opened in large-file mode. */
+  public static final String LARGE_FILE_SIZE = "largeFileSize";
+
+  /** Line count at which a file is opened in large-file mode. */
+  public static final String LARGE_FILE_LINES = "largeFileLines";
+
   public static SyntaxElement[] SYNTAX_ELEMENTS = new SyntaxElement[] {
     new SyntaxElement(TART_DEFAULT, "Default Text Style", new RGB(0, 128, 0), 0),
     new SyntaxElement(TART_SINGLE_LINE_COMMENT, "Single line comment", new RGB(64, 128, 64), SWT.ITALIC),
@@ -93,7 +114,12 @@ public class TartPrefs extends AbstractPreferenceInitializer {
     new SyntaxElement(TART_OPERATOR, "Operator", new RGB(0, 0, 0), 0),
     new SyntaxElement(TART_OPERATOR_KEYWORD, "Operator Keyword", new RGB(0, 0, 128), SWT.BOLD),
     new SyntaxElement(TART_BRACE, "Braces", new RGB(0, 128, 0), 0),
-    new SyntaxElement(TART_ATTRIBUTE, "Attributes", new RGB(64, 128, 0), 0)
+    new SyntaxElement(TART_ATTRIBUTE, "Attributes", new RGB(64, 128, 0), 0),
+    new SyntaxElement(TART_DECLARED_TYPE, "Declared type name", new RGB(0, 80, 128), SWT.BOLD),
+    new SyntaxElement(TART_FUNCTION, "Declared function name", new RGB(0, 0, 0), SWT.BOLD),
+    new SyntaxElement(TART_FIELD, "Field", new RGB(0, 0, 192), 0),
+    new SyntaxElement(TART_PARAMETER, "Parameter", new RGB(128, 64, 0), 0),
+    new SyntaxElement(TART_ATTRIBUTE_TARGET, "Declaration with attributes", new RGB(64, 128, 0), SWT.BOLD)
   };
 
   /**
@@ -110,10 +136,16 @@ public class TartPrefs extends AbstractPreferenceInitializer {
     }
 
     store.setDefault(EDITOR_SUB_WORD_NAVIGATION, true);
+    store.setDefault(ASYNC_HIGHLIGHTING, true);
+    store.setDefault(LARGE_FILE_SIZE, 4096);
+    store.setDefault(LARGE_FILE_LINES, 100000);
     store.setDefault(REMOVE_TRAILING_WHITESPACE, true);
     store.setDefault(ENSURE_NEWLINE_AT_EOF, true);
+    store.setDefault(CONVERT_TABS_TO_SPACES, false);
     store.setDefault(TART_PRINT_MARGIN, true);
     PreferenceConverter.setDefault(store, TART_PRINT_MARGIN_COLOR, new RGB(200, 200, 200));
     store.setDefault(TART_PRINT_MARGIN_COLUMN, 100);
+    store.setDefault(MATCHING_BRACKETS, true);
+    PreferenceConverter.setDefault(store, MATCHING_BRACKETS_COLOR, new RGB(192, 192, 192));
   }
 }